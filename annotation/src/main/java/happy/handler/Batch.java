@@ -0,0 +1,57 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 jrfeng
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package happy.handler;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Target;
+
+/**
+ * Only for {@link Handler}. The calls of the method annotated with {@code @Batch} are gathered
+ * into a {@code List}, and delivered to the companion method (specified by {@link #value()})
+ * once per window. The method must have exactly one parameter, and the companion method must
+ * have one {@code List} parameter of that type, for example:
+ * <pre>
+ * &#64;Batch("onEvents")
+ * void onEvent(Event event);
+ *
+ * void onEvents(List&lt;Event&gt; batch);
+ * </pre>
+ */
+@Target(ElementType.METHOD)
+public @interface Batch {
+    /**
+     * Name of the companion method.
+     */
+    String value();
+
+    /**
+     * Gather window in milliseconds, the default value 0 means deliver once per looper turn.
+     */
+    long window() default 0;
+
+    /**
+     * A batch is delivered immediately when it reaches this size.
+     */
+    int maxSize() default Integer.MAX_VALUE;
+}
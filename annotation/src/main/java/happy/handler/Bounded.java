@@ -0,0 +1,64 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 jrfeng
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package happy.handler;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Target;
+
+/**
+ * Only for {@link Handler}. Limit the number of pending calls of the method to {@link #value()},
+ * the calls beyond the capacity are handled by {@link #overflow()}:
+ * <ul>
+ * <li>{@link #DROP_NEWEST}: the new call is dropped.</li>
+ * <li>{@link #DROP_OLDEST}: the oldest pending call is dropped, and the new call is queued.</li>
+ * <li>{@link #BLOCK}: the caller is blocked until there is room or {@link #timeout()} elapses,
+ * then the new call is dropped. The caller on the thread of Looper is never blocked.</li>
+ * <li>{@link #RETURN_FALSE}: the new call is dropped, and the method returns {@code false}, so the
+ * method must return {@code boolean}.</li>
+ * </ul>
+ * <p>
+ * If annotated on the interface, all methods that without {@code @Bounded} use it, and the methods
+ * return {@code void} use {@link #DROP_NEWEST} instead of {@link #RETURN_FALSE}.
+ * {@code @Coalesce}, {@code @Throttle}, {@code @Debounce} and {@code @Batch} methods are not
+ * bounded.
+ */
+@Target({ElementType.TYPE, ElementType.METHOD})
+public @interface Bounded {
+    int DROP_NEWEST = 0;
+    int DROP_OLDEST = 1;
+    int BLOCK = 2;
+    int RETURN_FALSE = 3;
+
+    /**
+     * Capacity, must be greater than 0.
+     */
+    int value();
+
+    int overflow() default DROP_NEWEST;
+
+    /**
+     * Timeout of {@link #BLOCK} in milliseconds, 0 means wait until there is room.
+     */
+    long timeout() default 0;
+}
@@ -28,5 +28,82 @@ import java.lang.annotation.Target;
 
 @Target(ElementType.TYPE)
 public @interface Handler {
+    /**
+     * The generated class extends {@code android.os.Handler}, the calls are dispatched on the
+     * thread of Looper.
+     */
+    int LOOPER = 0;
+    /**
+     * The generated class runs the calls on a {@link java.util.concurrent.Executor} one at a
+     * time, in the order of calls, for stateful receivers. No Android dependency.
+     */
+    int SERIAL_EXECUTOR = 1;
+    /**
+     * The generated class submits every call to a {@link java.util.concurrent.Executor}
+     * directly, the calls may run concurrently and in any order. Use with
+     * {@code Executors.newVirtualThreadPerTaskExecutor()} for the receivers that block on I/O.
+     * No Android dependency.
+     */
+    int CONCURRENT_EXECUTOR = 2;
+    /**
+     * The generated class extends {@code happy.handler.runtime.Actor} of the runtime module, the
+     * calls are dispatched on a {@code happy.handler.runtime.MailboxThread} in the order of calls.
+     * No Android dependency.
+     */
+    int ACTOR = 3;
+    /**
+     * The generated class owns {@link #shards()} {@code android.os.HandlerThread}s, and routes
+     * every call to a shard by the hash of its {@link ShardKey} parameter. The calls with the same
+     * key are dispatched in order, and the calls with different keys may be dispatched in
+     * parallel, so the receiver must be thread-safe. {@code quit()} must be called when the
+     * generated instance is no longer used, a collected receiver does not quit the idle threads
+     * (only a call dispatched after it does).
+     */
+    int SHARDED = 4;
+
     String value() default "";
+
+    /**
+     * {@link #LOOPER}, {@link #SERIAL_EXECUTOR}, {@link #CONCURRENT_EXECUTOR}, {@link #ACTOR} or
+     * {@link #SHARDED}. The executor, actor and sharded targets only support the plain methods,
+     * and can not be used with the other options.
+     */
+    int target() default LOOPER;
+
+    /**
+     * The number of shards of {@link #SHARDED} target, the number of available processors if 0.
+     */
+    int shards() default 0;
+
+    /**
+     * Whether all messages are asynchronous, see {@link Async}.
+     */
+    boolean async() default false;
+
+    /**
+     * If true, a call on the thread of Looper invokes the receiver directly when there is no
+     * pending call, instead of going through the message queue. {@link Coalesce}, {@link Throttle},
+     * {@link Debounce} and {@link Batch} methods are always sent as message.
+     */
+    boolean directCall() default false;
+
+    /**
+     * If true, the generated class dispatches every call to multiple receivers, the receivers are
+     * added by {@code addReceiver} and removed by {@code removeReceiver}. Each call is enqueued
+     * once, and the arguments are shared by all receivers. The collected receivers are pruned
+     * lazily on dispatch. Can not be used with the methods that return
+     * {@code CompletableFuture}.
+     */
+    boolean fanOut() default false;
+
+    /**
+     * If true, the dispatch statistics of every method are recorded, see {@link MethodStats}.
+     */
+    boolean stats() default false;
+
+    /**
+     * If true, the calls and the dispatch of every method are traced, see {@link Tracing}.
+     * Nothing is generated if false.
+     */
+    boolean trace() default false;
 }
@@ -6,4 +6,60 @@ import java.lang.annotation.Target;
 @Target(ElementType.TYPE)
 public @interface Messenger {
     String value() default "";
+
+    /**
+     * If true, the dispatch statistics of every method are recorded on the receiving side, see
+     * {@link MethodStats}.
+     */
+    boolean stats() default false;
+
+    /**
+     * If true, the calls and the dispatch of every method are traced, see {@link Tracing}.
+     * Nothing is generated if false.
+     */
+    boolean trace() default false;
+
+    /**
+     * The timeout (in milliseconds) of the methods that return
+     * {@code java.util.concurrent.CompletableFuture}, the future is completed with
+     * {@code java.util.concurrent.TimeoutException} if no reply is received in time. No timeout
+     * if 0.
+     */
+    long replyTimeout() default 10000;
+
+    /**
+     * The size (in bytes) from which a primitive array argument (except {@code boolean[]}) is
+     * transferred in an {@code android.os.SharedMemory} instead of the binder transaction, on API
+     * level 27 and higher. Disabled if 0, enabling it requires the {@code runtime} module.
+     */
+    int sharedMemoryThreshold() default 0;
+
+    /**
+     * The size (in bytes) from which a {@code String} (counted in chars) or {@code byte[]} argument
+     * is compressed with {@code java.util.zip.Deflater} by the client, it is sent compressed only
+     * if it gets smaller. Disabled if 0.
+     */
+    int compressThreshold() default 0;
+
+    /**
+     * If greater than 1, the calls of client are buffered, and sent in one Message when
+     * {@code batchSize} calls are buffered, {@link #batchWindow()} elapsed, or {@code flush()} of
+     * the generated class is called. The methods that return
+     * {@code java.util.concurrent.CompletableFuture} are not buffered, they flush the buffered
+     * calls first.
+     */
+    int batchSize() default 0;
+
+    /**
+     * The maximum time (in milliseconds) that a call is buffered if {@link #batchSize()} is
+     * greater than 1, the buffered calls are flushed on the main thread. Not flushed by time if 0.
+     */
+    long batchWindow() default 16;
+
+    /**
+     * The maximum number of calls that the client buffers while the service is dead, the buffered
+     * calls are sent when {@code attach(IBinder)} of the generated class is called. The calls
+     * beyond it are lost.
+     */
+    int reconnectBufferSize() default 64;
 }
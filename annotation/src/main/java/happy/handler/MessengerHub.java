@@ -0,0 +1,50 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 jrfeng
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package happy.handler;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Target;
+
+/**
+ * Generates a hub that hosts the {@link Messenger} interfaces of {@link #members()} behind one
+ * {@code android.os.Messenger}, so a service returns one IBinder for all of them, and the client
+ * gets the typed proxies of all of them from that IBinder.
+ * <p>
+ * The calls are routed by the channel (the index of interface in {@link #members()}, start from 1)
+ * and the method id, to the Messenger of receiver, which may share a Looper with the others. The
+ * client and the server must be generated from the same version of the hub.
+ */
+@Target(ElementType.TYPE)
+public @interface MessengerHub {
+    /**
+     * The name of generated class, the simple name of annotated interface with suffix "Hub" if
+     * empty.
+     */
+    String value() default "";
+
+    /**
+     * The interfaces annotated with {@link Messenger}, the order of them must not be changed.
+     */
+    Class<?>[] members();
+}
@@ -0,0 +1,188 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 jrfeng
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package happy.handler;
+
+import java.io.PrintWriter;
+
+/**
+ * Snapshot of the dispatch statistics of a method, see {@link Handler#stats()} and
+ * {@link Messenger#stats()}.
+ * <p>
+ * The latency(from the message is due to it is dispatched, in milliseconds) and the execution
+ * time of receiver(in microseconds) are recorded in log2 histograms: the bucket 0 counts the
+ * value 0, and the bucket i counts the values in [2^(i-1), 2^i - 1].
+ */
+public final class MethodStats {
+    public static final int BUCKET_COUNT = 32;
+
+    private final int mMethodId;
+    private final String mMethodName;
+    private final long mCallCount;
+    private final long mDispatchCount;
+    private final int mPendingCount;
+    private final long mDroppedCount;
+    private final long mExecutionNanos;
+    private final long[] mLatencyHistogram;
+    private final long[] mExecutionHistogram;
+
+    public MethodStats(int methodId,
+                       String methodName,
+                       long callCount,
+                       long dispatchCount,
+                       int pendingCount,
+                       long droppedCount,
+                       long executionNanos,
+                       long[] latencyHistogram,
+                       long[] executionHistogram) {
+        mMethodId = methodId;
+        mMethodName = methodName;
+        mCallCount = callCount;
+        mDispatchCount = dispatchCount;
+        mPendingCount = pendingCount;
+        mDroppedCount = droppedCount;
+        mExecutionNanos = executionNanos;
+        mLatencyHistogram = latencyHistogram;
+        mExecutionHistogram = executionHistogram;
+    }
+
+    /**
+     * Returns the bucket of the value.
+     */
+    public static int bucketOf(long value) {
+        if (value <= 0) {
+            return 0;
+        }
+
+        return Math.min(64 - Long.numberOfLeadingZeros(value), BUCKET_COUNT - 1);
+    }
+
+    /**
+     * Returns the max value that counted by the bucket.
+     */
+    public static long getBucketUpperBound(int bucket) {
+        return bucket <= 0 ? 0 : (1L << bucket) - 1;
+    }
+
+    /**
+     * The {@code METHOD_n} constant of generated class.
+     */
+    public int getMethodId() {
+        return mMethodId;
+    }
+
+    public String getMethodName() {
+        return mMethodName;
+    }
+
+    public long getCallCount() {
+        return mCallCount;
+    }
+
+    public long getDispatchCount() {
+        return mDispatchCount;
+    }
+
+    public int getPendingCount() {
+        return mPendingCount;
+    }
+
+    public long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * Returns the total execution time of receiver in nanoseconds.
+     */
+    public long getExecutionNanos() {
+        return mExecutionNanos;
+    }
+
+    public long[] getLatencyHistogram() {
+        return mLatencyHistogram.clone();
+    }
+
+    public long[] getExecutionHistogram() {
+        return mExecutionHistogram.clone();
+    }
+
+    /**
+     * Returns the upper bound of latency percentile in milliseconds.
+     *
+     * @param percentile 0 ~ 100
+     */
+    public long getLatencyPercentile(double percentile) {
+        return percentileOf(mLatencyHistogram, percentile);
+    }
+
+    /**
+     * Returns the upper bound of execution time percentile in microseconds.
+     *
+     * @param percentile 0 ~ 100
+     */
+    public long getExecutionPercentile(double percentile) {
+        return percentileOf(mExecutionHistogram, percentile);
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.println(toString());
+    }
+
+    @Override
+    public String toString() {
+        return mMethodName +
+                ": calls=" + mCallCount +
+                ", dispatched=" + mDispatchCount +
+                ", pending=" + mPendingCount +
+                ", dropped=" + mDroppedCount +
+                ", latency(ms) p50=" + getLatencyPercentile(50) +
+                " p90=" + getLatencyPercentile(90) +
+                " p99=" + getLatencyPercentile(99) +
+                ", execution(us) p50=" + getExecutionPercentile(50) +
+                " p90=" + getExecutionPercentile(90) +
+                " p99=" + getExecutionPercentile(99) +
+                " total=" + mExecutionNanos / 1000;
+    }
+
+    private static long percentileOf(long[] histogram, double percentile) {
+        long total = 0;
+        for (long count : histogram) {
+            total += count;
+        }
+
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(total * Math.min(Math.max(percentile, 0), 100) / 100);
+        long count = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            count += histogram[i];
+            if (count >= Math.max(rank, 1)) {
+                return getBucketUpperBound(i);
+            }
+        }
+
+        return getBucketUpperBound(histogram.length - 1);
+    }
+}
@@ -0,0 +1,154 @@
+package happy.handler.test;
+
+import android.os.Build;
+import android.os.HandlerThread;
+import android.os.MessageQueue;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNoException;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Measures the latency of a sync call ({@code methodFloat}) and of a {@code @Async} call
+ * ({@code methodAsync}) of the generated Handler while the looper is held behind a sync barrier
+ * for {@link #BARRIER_MILLIS}, like the barrier posted during layout/traversal. The medians are
+ * logged with the tag "SyncBarrierBenchmark".
+ */
+@RunWith(AndroidJUnit4.class)
+public class SyncBarrierBenchmark {
+    private static final String TAG = "SyncBarrierBenchmark";
+    private static final int WARMUP_ROUNDS = 10;
+    private static final int MEASURE_ROUNDS = 50;
+    private static final long BARRIER_MILLIS = 16;
+
+    private HandlerThread mHandlerThread;
+    // the handler only holds a weak reference
+    private HandlerTest<Integer> mReceiver;
+    private Method mPostSyncBarrier;
+    private Method mRemoveSyncBarrier;
+
+    private volatile CountDownLatch mSyncReceived;
+    private volatile CountDownLatch mAsyncReceived;
+    private volatile long mSyncTime;
+    private volatile long mAsyncTime;
+
+    @Before
+    public void setUp() {
+        // Message.setAsynchronous() is called on API level 22 and higher, Looper.getQueue() is 23
+        assumeTrue(Build.VERSION.SDK_INT >= Build.VERSION_CODES.M);
+
+        // the sync barrier is a hidden API
+        try {
+            mPostSyncBarrier = MessageQueue.class.getDeclaredMethod("postSyncBarrier");
+            mRemoveSyncBarrier = MessageQueue.class.getDeclaredMethod("removeSyncBarrier", int.class);
+            mPostSyncBarrier.setAccessible(true);
+            mRemoveSyncBarrier.setAccessible(true);
+        } catch (Exception e) {
+            assumeNoException(e);
+        }
+
+        mHandlerThread = new HandlerThread(TAG);
+        mHandlerThread.start();
+    }
+
+    @After
+    public void tearDown() {
+        if (mHandlerThread != null) {
+            mHandlerThread.quit();
+        }
+    }
+
+    @Test
+    public void asyncBypassesSyncBarrier() throws Exception {
+        mReceiver = newReceiver();
+        MyHandler<Integer> handler = new MyHandler<>(mHandlerThread.getLooper(), mReceiver);
+        MessageQueue queue = mHandlerThread.getLooper().getQueue();
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            round(handler, queue);
+        }
+
+        long[] syncLatency = new long[MEASURE_ROUNDS];
+        long[] asyncLatency = new long[MEASURE_ROUNDS];
+        for (int i = 0; i < MEASURE_ROUNDS; i++) {
+            long start = round(handler, queue);
+            syncLatency[i] = mSyncTime - start;
+            asyncLatency[i] = mAsyncTime - start;
+        }
+
+        long syncMedian = median(syncLatency);
+        long asyncMedian = median(asyncLatency);
+        Log.i(TAG, String.format("behind a %d ms sync barrier: sync median %.3f ms, async median %.3f ms",
+                BARRIER_MILLIS, syncMedian / 1e6, asyncMedian / 1e6));
+
+        assertTrue(syncMedian >= TimeUnit.MILLISECONDS.toNanos(BARRIER_MILLIS));
+        assertTrue(asyncMedian < syncMedian);
+    }
+
+    // post a barrier, send both calls, hold the barrier for BARRIER_MILLIS, returns the start time
+    private long round(MyHandler<Integer> handler, MessageQueue queue) throws Exception {
+        mSyncReceived = new CountDownLatch(1);
+        mAsyncReceived = new CountDownLatch(1);
+
+        int token = (Integer) mPostSyncBarrier.invoke(queue);
+        long start = System.nanoTime();
+        handler.methodFloat(0);
+        handler.methodAsync(0, 0);
+
+        assertTrue(mAsyncReceived.await(5, TimeUnit.SECONDS));
+        SystemClock.sleep(BARRIER_MILLIS);
+        mRemoveSyncBarrier.invoke(queue, token);
+
+        assertTrue(mSyncReceived.await(5, TimeUnit.SECONDS));
+        return start;
+    }
+
+    // only methodFloat and methodAsync are called
+    @SuppressWarnings("unchecked")
+    private HandlerTest<Integer> newReceiver() {
+        return (HandlerTest<Integer>) Proxy.newProxyInstance(HandlerTest.class.getClassLoader(),
+                new Class<?>[]{HandlerTest.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        long now = System.nanoTime();
+                        switch (method.getName()) {
+                            case "methodFloat":
+                                mSyncTime = now;
+                                mSyncReceived.countDown();
+                                break;
+                            case "methodAsync":
+                                mAsyncTime = now;
+                                mAsyncReceived.countDown();
+                                break;
+                            case "hashCode":
+                                return System.identityHashCode(proxy);
+                            case "equals":
+                                return proxy == args[0];
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
@@ -0,0 +1,18 @@
+package happy.handler.test;
+
+import java.util.concurrent.CompletableFuture;
+
+import happy.handler.Handler;
+
+@Handler(value = "MyActorHandler", target = Handler.ACTOR)
+public interface ActorTest extends HandlerParent {
+    void methodNoParam();
+
+    void methodInt(int aInt);
+
+    void methodString(String text);
+
+    void methodVarArgString(String... strings);
+
+    CompletableFuture<String> methodFuture(String text);
+}
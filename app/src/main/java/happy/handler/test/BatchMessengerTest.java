@@ -0,0 +1,16 @@
+package happy.handler.test;
+
+import java.util.concurrent.CompletableFuture;
+
+import happy.handler.Messenger;
+
+@Messenger(value = "MyBatchMessenger", batchSize = 32, batchWindow = 8, compressThreshold = 4 * 1024, sharedMemoryThreshold = 64 * 1024, stats = true, trace = true)
+public interface BatchMessengerTest {
+    void methodNoParam();
+
+    void methodProgress(String url, int progress);
+
+    void methodFrame(byte[] frame);
+
+    CompletableFuture<String> methodFuture(String key);
+}
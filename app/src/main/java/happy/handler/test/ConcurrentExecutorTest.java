@@ -0,0 +1,8 @@
+package happy.handler.test;
+
+import happy.handler.Handler;
+
+@Handler(target = Handler.CONCURRENT_EXECUTOR)
+public interface ConcurrentExecutorTest extends HandlerParent {
+    void methodString(String aString);
+}
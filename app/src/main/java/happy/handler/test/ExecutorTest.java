@@ -0,0 +1,21 @@
+package happy.handler.test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import happy.handler.Handler;
+
+@Handler(value = "MyExecutorHandler", target = Handler.SERIAL_EXECUTOR)
+public interface ExecutorTest<T extends Number> {
+    void methodNoParam();
+
+    void methodInt(int aInt);
+
+    void methodAll(byte aByte, short aShort, int aInt, long aLong, float aFloat, double aDouble, char aChar, boolean aBoolean, String aString);
+
+    void methodVarArgString(String... strings);
+
+    void methodGenerationType(List<T> list);
+
+    CompletableFuture<T> methodFuture(int aInt);
+}
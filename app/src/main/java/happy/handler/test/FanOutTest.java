@@ -0,0 +1,28 @@
+package happy.handler.test;
+
+import java.util.List;
+
+import happy.handler.Batch;
+import happy.handler.Coalesce;
+import happy.handler.Handler;
+import happy.handler.Unordered;
+
+@Handler(value = "MyFanOutHandler", fanOut = true, directCall = true, stats = true)
+public interface FanOutTest extends HandlerParent {
+    void methodNoParam();
+
+    void methodInt(int aInt);
+
+    void methodAll(byte aByte, short aShort, int aInt, long aLong, float aFloat, double aDouble, char aChar, boolean aBoolean, String aString);
+
+    @Coalesce
+    void methodCoalesce(int progress);
+
+    @Batch("methodBatchList")
+    void methodBatch(String item);
+
+    void methodBatchList(List<String> items);
+
+    @Unordered
+    void methodUnordered(int value);
+}
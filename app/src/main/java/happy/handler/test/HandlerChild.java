@@ -1,10 +1,15 @@
 package happy.handler.test;
 
+import happy.handler.Bounded;
 import happy.handler.Handler;
+import happy.handler.Priority;
 
-@Handler
+@Handler(async = true, stats = true, trace = true)
+@Bounded(256)
 public interface HandlerChild extends HandlerParent {
+    @Priority(Priority.URGENT)
     void childA();
 
+    @Priority(Priority.HIGH)
     void childB();
 }
@@ -1,10 +1,18 @@
 package happy.handler.test;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
+import happy.handler.Async;
+import happy.handler.Batch;
+import happy.handler.Bounded;
+import happy.handler.Coalesce;
+import happy.handler.Debounce;
 import happy.handler.Handler;
+import happy.handler.Throttle;
+import happy.handler.Unordered;
 
-@Handler("MyHandler")
+@Handler(value = "MyHandler", directCall = true, stats = true)
 public interface HandlerTest<T extends Number> {
     void methodNoParam();
 
@@ -57,4 +65,57 @@ public interface HandlerTest<T extends Number> {
     void methodGenerationType2(List<? extends Number> numbers);
 
     void methodGenerationType3(List<? extends Number>[] numbersList);
+
+    @Coalesce
+    void methodCoalesce(int progress, String text);
+
+    @Coalesce
+    void methodCoalesceNoParam();
+
+    @Throttle(100)
+    void methodThrottle(float position);
+
+    @Debounce(300)
+    void methodDebounce(String query);
+
+    @Async
+    void methodAsync(float x, float y);
+
+    @Batch(value = "methodBatchList", window = 16, maxSize = 64)
+    void methodBatch(String item);
+
+    void methodBatchList(List<String> items);
+
+    @Batch("methodBatchIntList")
+    void methodBatchInt(int item);
+
+    void methodBatchIntList(List<Integer> items);
+
+    @Bounded(value = 64, overflow = Bounded.DROP_OLDEST)
+    void methodBoundedDropOldest(int value);
+
+    @Bounded(value = 16, overflow = Bounded.BLOCK, timeout = 100)
+    void methodBoundedBlock(String text);
+
+    @Bounded(value = 16, overflow = Bounded.RETURN_FALSE)
+    boolean methodBoundedReturnFalse(int value);
+
+    CompletableFuture<String> methodFuture(int value);
+
+    CompletableFuture<T> methodFutureGeneric();
+
+    @Coalesce
+    CompletableFuture<Void> methodFutureCoalesce(int progress);
+
+    @Bounded(value = 16, overflow = Bounded.DROP_OLDEST)
+    CompletableFuture<Integer> methodFutureDropOldest(int value);
+
+    @Unordered
+    void methodUnordered(String path, byte[] data);
+
+    @Unordered
+    void methodUnorderedNoParam();
+
+    @Unordered
+    CompletableFuture<Long> methodUnorderedFuture(String path);
 }
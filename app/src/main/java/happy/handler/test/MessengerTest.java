@@ -8,10 +8,12 @@ import android.util.SparseArray;
 
 import java.io.File;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import happy.handler.Messenger;
 
-@Messenger("MyMessenger")
+@Messenger(value = "MyMessenger", stats = true, trace = true)
 public interface MessengerTest {
     void methodNoParam();
 
@@ -83,9 +85,25 @@ public interface MessengerTest {
     void methodAllList(List<Integer> integerList, List<String> stringList,
                        List<CharSequence> charSequenceList, List<Bundle> parcelableList);
 
+    void methodLongList(List<Long> longList);
+
+    void methodPrimitiveList(List<Long> longList, List<Double> doubleList, List<Float> floatList);
+
+    void methodStringMap(Map<String, Integer> stringMap);
+
+    void methodMap(Map<Long, String> longMap, Map<Character, Boolean> charMap, Map<String, Bundle> parcelableMap);
+
     void methodSparseParcelableArray(SparseArray<Bundle> sparseParcelableArray);
 
     void methodSize(Size size);
 
     void methodSizeF(SizeF sizeF);
+
+    void methodSerializableCodec(Point point, Long boxed, Thread.State state);
+
+    CompletableFuture<Void> methodFutureNoParam();
+
+    CompletableFuture<String> methodFutureString(int aInt);
+
+    CompletableFuture<Bundle> methodFutureParcelable(String key);
 }
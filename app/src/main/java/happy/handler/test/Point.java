@@ -0,0 +1,10 @@
+package happy.handler.test;
+
+import java.io.Serializable;
+
+public class Point implements Serializable {
+    public int x;
+    public int y;
+    public String label;
+    public transient boolean selected;
+}
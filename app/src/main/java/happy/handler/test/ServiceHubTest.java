@@ -0,0 +1,7 @@
+package happy.handler.test;
+
+import happy.handler.MessengerHub;
+
+@MessengerHub(value = "MyServiceHub", members = {MessengerTest.class, BatchMessengerTest.class, MessengerChild.class})
+public interface ServiceHubTest {
+}
@@ -0,0 +1,23 @@
+package happy.handler.test;
+
+import java.util.concurrent.CompletableFuture;
+
+import happy.handler.Handler;
+import happy.handler.ShardKey;
+
+@Handler(value = "MyShardedHandler", target = Handler.SHARDED, shards = 4)
+public interface ShardedTest {
+    void methodNoKey();
+
+    void methodIntKey(@ShardKey int id, String text);
+
+    void methodLongKey(@ShardKey long id, byte[] data);
+
+    void methodStringKey(String text, @ShardKey String key);
+
+    void methodDoubleKey(@ShardKey double key);
+
+    void methodBooleanKey(@ShardKey boolean key);
+
+    CompletableFuture<String> methodFuture(@ShardKey String key);
+}
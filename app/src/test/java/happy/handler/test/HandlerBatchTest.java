@@ -0,0 +1,98 @@
+package happy.handler.test;
+
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.LooperMode;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives the {@code @Batch} methods of the generated Handler.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class HandlerBatchTest {
+    private RecordingReceiver mReceiver;
+    private MyHandler<Integer> mHandler;
+
+    @Before
+    public void setUp() {
+        mReceiver = new RecordingReceiver();
+        mHandler = new MyHandler<>(Looper.getMainLooper(), mReceiver);
+    }
+
+    // the calls in a 16 ms window are delivered as one list, in the order of calls
+    @Test
+    public void deliverOncePerWindow() {
+        mHandler.methodBatch("a");
+        mHandler.methodBatch("b");
+        mHandler.methodBatch("c");
+        assertEquals(1, mHandler.getPendingCount(MyHandler.METHOD_32));
+
+        ShadowLooper.idleMainLooper(15, TimeUnit.MILLISECONDS);
+        assertTrue(mReceiver.calls.isEmpty());
+
+        ShadowLooper.idleMainLooper(1, TimeUnit.MILLISECONDS);
+        assertEquals(Arrays.asList("methodBatchList:[a, b, c]"), mReceiver.calls);
+        assertEquals(0, mHandler.getPendingCount(MyHandler.METHOD_32));
+        assertEquals(3, mHandler.getStats(MyHandler.METHOD_32).getCallCount());
+        assertEquals(1, mHandler.getStats(MyHandler.METHOD_32).getDispatchCount());
+    }
+
+    // a batch that reaches maxSize (64) is delivered without waiting for the window
+    @Test
+    public void deliverOnMaxSize() {
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 65; i++) {
+            mHandler.methodBatch(String.valueOf(i));
+            if (i < 64) {
+                expected.add(String.valueOf(i));
+            }
+        }
+
+        ShadowLooper.idleMainLooper();
+        assertEquals(Arrays.asList("methodBatchList:" + expected), mReceiver.calls);
+        assertEquals(1, mHandler.getPendingCount(MyHandler.METHOD_32));
+
+        // the 65th call starts a new window
+        ShadowLooper.idleMainLooper(16, TimeUnit.MILLISECONDS);
+        assertEquals(2, mReceiver.calls.size());
+        assertEquals("methodBatchList:[64]", mReceiver.calls.get(1));
+    }
+
+    // window 0 delivers the calls gathered until the next looper turn
+    @Test
+    public void deliverOncePerLooperTurn() {
+        mHandler.methodBatchInt(1);
+        mHandler.methodBatchInt(2);
+        ShadowLooper.idleMainLooper();
+        mHandler.methodBatchInt(3);
+        ShadowLooper.idleMainLooper();
+
+        assertEquals(Arrays.asList("methodBatchIntList:[1, 2]", "methodBatchIntList:[3]"), mReceiver.calls);
+    }
+
+    // the methods are gathered separately
+    @Test
+    public void batchPerMethod() {
+        mHandler.methodBatch("a");
+        mHandler.methodBatchInt(1);
+        mHandler.methodBatch("b");
+        mHandler.methodBatchInt(2);
+        ShadowLooper.idleMainLooper(16, TimeUnit.MILLISECONDS);
+
+        assertEquals(Arrays.asList("methodBatchIntList:[1, 2]", "methodBatchList:[a, b]"), mReceiver.calls);
+    }
+}
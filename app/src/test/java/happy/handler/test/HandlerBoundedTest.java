@@ -0,0 +1,144 @@
+package happy.handler.test;
+
+import android.os.Looper;
+import android.os.SystemClock;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.LooperMode;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives the {@code @Bounded} methods of the generated Handler. The calls are made on other
+ * threads, so they are queued instead of direct calls.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class HandlerBoundedTest {
+    private RecordingReceiver mReceiver;
+    private MyHandler<Integer> mHandler;
+
+    @Before
+    public void setUp() {
+        mReceiver = new RecordingReceiver();
+        mHandler = new MyHandler<>(Looper.getMainLooper(), mReceiver);
+    }
+
+    // the latest 64 calls are kept in order, the oldest ones are dropped
+    @Test
+    public void dropOldest() throws InterruptedException {
+        start(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 70; i++) {
+                    mHandler.methodBoundedDropOldest(i);
+                }
+            }
+        }).join();
+        assertEquals(64, mHandler.getPendingCount(MyHandler.METHOD_36));
+        assertEquals(6, mHandler.getOverflowCount(MyHandler.METHOD_36));
+
+        ShadowLooper.idleMainLooper();
+        List<String> expected = new ArrayList<>();
+        for (int i = 6; i < 70; i++) {
+            expected.add("methodBoundedDropOldest:" + i);
+        }
+        assertEquals(expected, mReceiver.calls);
+        assertEquals(0, mHandler.getPendingCount(MyHandler.METHOD_36));
+        assertEquals(70, mHandler.getStats(MyHandler.METHOD_36).getCallCount());
+        assertEquals(64, mHandler.getStats(MyHandler.METHOD_36).getDispatchCount());
+        assertEquals(6, mHandler.getStats(MyHandler.METHOD_36).getDroppedCount());
+    }
+
+    // the looper thread never blocks on a full queue, the call is dropped at once
+    @Test
+    public void blockNotOnLooperThread() throws InterruptedException {
+        fillBlockQueue();
+        mHandler.methodBoundedBlock("16");
+        assertEquals(16, mHandler.getPendingCount(MyHandler.METHOD_37));
+        assertEquals(1, mHandler.getOverflowCount(MyHandler.METHOD_37));
+
+        ShadowLooper.idleMainLooper();
+        assertEquals(16, mReceiver.calls.size());
+        assertEquals("methodBoundedBlock:15", mReceiver.calls.get(15));
+    }
+
+    // a blocked call goes on once the looper dispatches a pending call
+    @Test(timeout = 10_000)
+    public void blockUntilDispatched() throws InterruptedException {
+        fillBlockQueue();
+        Thread blocked = start(new Runnable() {
+            @Override
+            public void run() {
+                mHandler.methodBoundedBlock("16");
+            }
+        });
+        awaitBlocked(blocked);
+        assertEquals(16, mHandler.getPendingCount(MyHandler.METHOD_37));
+
+        ShadowLooper.idleMainLooper();
+        blocked.join();
+        ShadowLooper.idleMainLooper();
+
+        assertEquals(17, mReceiver.calls.size());
+        assertEquals("methodBoundedBlock:16", mReceiver.calls.get(16));
+        assertEquals(0, mHandler.getOverflowCount(MyHandler.METHOD_37));
+        assertEquals(0, mHandler.getPendingCount(MyHandler.METHOD_37));
+    }
+
+    // a blocked call is dropped after the 100 ms timeout
+    @Test(timeout = 10_000)
+    public void blockTimeout() throws InterruptedException {
+        fillBlockQueue();
+        Thread blocked = start(new Runnable() {
+            @Override
+            public void run() {
+                mHandler.methodBoundedBlock("16");
+            }
+        });
+        awaitBlocked(blocked);
+
+        // the paused looper does not dispatch, only the clock moves
+        SystemClock.setCurrentTimeMillis(SystemClock.uptimeMillis() + 100);
+        blocked.join();
+        assertEquals(1, mHandler.getOverflowCount(MyHandler.METHOD_37));
+        assertEquals(16, mHandler.getPendingCount(MyHandler.METHOD_37));
+
+        ShadowLooper.idleMainLooper();
+        assertEquals(16, mReceiver.calls.size());
+    }
+
+    private void fillBlockQueue() throws InterruptedException {
+        start(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 16; i++) {
+                    mHandler.methodBoundedBlock(String.valueOf(i));
+                }
+            }
+        }).join();
+        assertEquals(16, mHandler.getPendingCount(MyHandler.METHOD_37));
+        assertEquals(0, mHandler.getOverflowCount(MyHandler.METHOD_37));
+    }
+
+    private static Thread start(Runnable runnable) {
+        Thread thread = new Thread(runnable);
+        thread.start();
+        return thread;
+    }
+
+    private static void awaitBlocked(Thread thread) {
+        while (thread.getState() != Thread.State.TIMED_WAITING) {
+            Thread.yield();
+        }
+    }
+}
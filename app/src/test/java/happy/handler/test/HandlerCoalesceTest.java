@@ -0,0 +1,87 @@
+package happy.handler.test;
+
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.LooperMode;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives the {@code @Coalesce} methods of the generated Handler.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class HandlerCoalesceTest {
+    private RecordingReceiver mReceiver;
+    private MyHandler<Integer> mHandler;
+
+    @Before
+    public void setUp() {
+        mReceiver = new RecordingReceiver();
+        mHandler = new MyHandler<>(Looper.getMainLooper(), mReceiver);
+    }
+
+    // only the latest of the pending calls is dispatched, the replaced ones are counted as dropped
+    @Test
+    public void latestValueWins() {
+        mHandler.methodCoalesce(1, "a");
+        mHandler.methodCoalesce(2, "b");
+        mHandler.methodCoalesce(3, "c");
+        assertTrue(mReceiver.calls.isEmpty());
+        assertEquals(1, mHandler.getPendingCount(MyHandler.METHOD_27));
+
+        ShadowLooper.idleMainLooper();
+        assertEquals(Arrays.asList("methodCoalesce:3,c"), mReceiver.calls);
+        assertEquals(2, mHandler.getDroppedCount(MyHandler.METHOD_27));
+        assertEquals(0, mHandler.getPendingCount(MyHandler.METHOD_27));
+        assertEquals(3, mHandler.getStats(MyHandler.METHOD_27).getCallCount());
+        assertEquals(1, mHandler.getStats(MyHandler.METHOD_27).getDispatchCount());
+    }
+
+    // a call after the dispatch starts a new pending call instead of replacing the dispatched one
+    @Test
+    public void newSequenceAfterDispatch() {
+        mHandler.methodCoalesce(1, "a");
+        ShadowLooper.idleMainLooper();
+        mHandler.methodCoalesce(2, "b");
+        ShadowLooper.idleMainLooper();
+
+        assertEquals(Arrays.asList("methodCoalesce:1,a", "methodCoalesce:2,b"), mReceiver.calls);
+        assertEquals(0, mHandler.getDroppedCount(MyHandler.METHOD_27));
+    }
+
+    // the coalesced call takes the position of the latest call, after the calls sent before it
+    @Test
+    public void latestCallPosition() {
+        mHandler.methodCoalesce(1, "a");
+        mHandler.methodInt(10);
+        mHandler.methodCoalesce(2, "b");
+        mHandler.methodInt(20);
+        ShadowLooper.idleMainLooper();
+
+        assertEquals(Arrays.asList("methodInt:10", "methodCoalesce:2,b", "methodInt:20"), mReceiver.calls);
+    }
+
+    // the methods are coalesced separately
+    @Test
+    public void coalescePerMethod() {
+        mHandler.methodCoalesce(1, "a");
+        mHandler.methodCoalesceNoParam();
+        mHandler.methodCoalesce(2, "b");
+        mHandler.methodCoalesceNoParam();
+        ShadowLooper.idleMainLooper();
+
+        assertEquals(Arrays.asList("methodCoalesce:2,b", "methodCoalesceNoParam"), mReceiver.calls);
+        assertEquals(1, mHandler.getDroppedCount(MyHandler.METHOD_27));
+        assertEquals(1, mHandler.getDroppedCount(MyHandler.METHOD_28));
+    }
+}
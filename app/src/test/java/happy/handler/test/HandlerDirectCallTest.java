@@ -0,0 +1,101 @@
+package happy.handler.test;
+
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.LooperMode;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives the {@code directCall} fast path of the generated Handler.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class HandlerDirectCallTest {
+    private RecordingReceiver mReceiver;
+    private MyHandler<Integer> mHandler;
+
+    @Before
+    public void setUp() {
+        mReceiver = new RecordingReceiver() {
+            @Override
+            public void methodInt(int aInt) {
+                super.methodInt(aInt);
+                // a call from the receiver is queued instead of nested
+                if (aInt < 0) {
+                    mHandler.methodString("nested");
+                    calls.add("return");
+                }
+            }
+        };
+        mHandler = new MyHandler<>(Looper.getMainLooper(), mReceiver);
+    }
+
+    // a call on the looper thread with nothing pending runs at once
+    @Test
+    public void directOnLooperThread() {
+        mHandler.methodInt(1);
+        assertEquals(Arrays.asList("methodInt:1"), mReceiver.calls);
+        assertEquals(1, mHandler.getStats(MyHandler.METHOD_4).getDispatchCount());
+        assertEquals(0, mHandler.getPendingCount(MyHandler.METHOD_4));
+    }
+
+    // a call of another thread is queued
+    @Test
+    public void queuedOnOtherThread() throws InterruptedException {
+        callOnOtherThread(1);
+        assertEquals(Collections.emptyList(), mReceiver.calls);
+        assertEquals(1, mHandler.getPendingCount(MyHandler.METHOD_4));
+
+        ShadowLooper.idleMainLooper();
+        assertEquals(Arrays.asList("methodInt:1"), mReceiver.calls);
+    }
+
+    // while a call is pending, the calls on the looper thread are queued behind it
+    @Test
+    public void queuedBehindPendingCall() throws InterruptedException {
+        callOnOtherThread(1);
+        mHandler.methodInt(2);
+        mHandler.methodCoalesce(3, "c");
+        mHandler.methodInt(4);
+        assertEquals(Collections.emptyList(), mReceiver.calls);
+
+        ShadowLooper.idleMainLooper();
+        assertEquals(Arrays.asList("methodInt:1", "methodInt:2", "methodCoalesce:3,c", "methodInt:4"), mReceiver.calls);
+
+        // nothing pending again
+        mHandler.methodInt(5);
+        assertEquals("methodInt:5", mReceiver.calls.get(4));
+    }
+
+    // a call made while dispatching is not nested into the running call
+    @Test
+    public void queuedWhileDispatching() {
+        mHandler.methodInt(-1);
+        assertEquals(Arrays.asList("methodInt:-1", "return"), mReceiver.calls);
+
+        ShadowLooper.idleMainLooper();
+        assertEquals(Arrays.asList("methodInt:-1", "return", "methodString:nested"), mReceiver.calls);
+    }
+
+    private void callOnOtherThread(final int value) throws InterruptedException {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mHandler.methodInt(value);
+            }
+        });
+        thread.start();
+        thread.join();
+    }
+}
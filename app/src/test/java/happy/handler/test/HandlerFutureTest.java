@@ -0,0 +1,67 @@
+package happy.handler.test;
+
+import android.os.Looper;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.LooperMode;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the futures of the dropped calls of the generated Handler are cancelled.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class HandlerFutureTest {
+
+    // the replaced coalesce call is cancelled, the latest one completes
+    @Test
+    public void coalesceCancelsReplacedFuture() {
+        RecordingReceiver receiver = new RecordingReceiver();
+        MyHandler<Integer> handler = new MyHandler<>(Looper.getMainLooper(), receiver);
+
+        CompletableFuture<Void> first = handler.methodFutureCoalesce(1);
+        CompletableFuture<Void> second = handler.methodFutureCoalesce(2);
+        assertTrue(first.isCancelled());
+        assertFalse(second.isDone());
+
+        ShadowLooper.idleMainLooper();
+        assertTrue(second.isDone());
+        assertFalse(second.isCancelled());
+        assertEquals(1, receiver.callsOf("methodFutureCoalesce").size());
+        assertEquals("methodFutureCoalesce:2", receiver.calls.get(0));
+        assertEquals(1, handler.getDroppedCount(MyHandler.METHOD_41));
+    }
+
+    // the pending calls are cancelled once the receiver is garbage collected
+    @Test
+    public void detachCancelsPendingFutures() throws InterruptedException {
+        RecordingReceiver receiver = new RecordingReceiver();
+        MyHandler<Integer> handler = new MyHandler<>(Looper.getMainLooper(), receiver);
+
+        // the pending coalesce call makes the other calls queued instead of direct
+        CompletableFuture<Void> coalesce = handler.methodFutureCoalesce(1);
+        CompletableFuture<String> queued = handler.methodFuture(2);
+        CompletableFuture<Integer> bounded = handler.methodFutureDropOldest(3);
+
+        receiver = null;
+        for (int i = 0; i < 50 && !handler.isDetached(); i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertTrue(handler.isDetached());
+        assertTrue(coalesce.isCancelled());
+        assertTrue(bounded.isCancelled());
+
+        ShadowLooper.idleMainLooper();
+        assertTrue(queued.isCancelled());
+        assertTrue(handler.methodFuture(4).isCancelled());
+    }
+}
@@ -0,0 +1,114 @@
+package happy.handler.test;
+
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.LooperMode;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import happy.handler.MethodStats;
+import happy.handler.Priority;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives the {@code @Priority} lanes of the generated Handler.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class HandlerPriorityTest {
+    private final List<String> mCalls = new ArrayList<>();
+    private HandlerChild mReceiver;
+    private HandlerChildHandler mHandler;
+
+    @Before
+    public void setUp() {
+        mReceiver = new HandlerChild() {
+            @Override
+            public void childA() {
+                mCalls.add("childA");
+            }
+
+            @Override
+            public void childB() {
+                mCalls.add("childB");
+            }
+
+            @Override
+            public void parentA() {
+                mCalls.add("parentA");
+            }
+
+            @Override
+            public void parentB() {
+                mCalls.add("parentB");
+            }
+        };
+        mHandler = new HandlerChildHandler(Looper.getMainLooper(), mReceiver);
+    }
+
+    // urgent first, then high in order, then normal in order
+    @Test
+    public void dispatchByLane() {
+        mHandler.parentA();
+        mHandler.childB();
+        mHandler.parentB();
+        mHandler.childB();
+        mHandler.childA();
+
+        assertEquals(2, mHandler.getLaneDepth(Priority.NORMAL));
+        assertEquals(2, mHandler.getLaneDepth(Priority.HIGH));
+        assertEquals(1, mHandler.getLaneDepth(Priority.URGENT));
+
+        ShadowLooper.idleMainLooper();
+        assertEquals(Arrays.asList("childA", "childB", "childB", "parentA", "parentB"), mCalls);
+        assertEquals(0, mHandler.getLaneDepth(Priority.NORMAL));
+        assertEquals(0, mHandler.getLaneDepth(Priority.HIGH));
+        assertEquals(0, mHandler.getLaneDepth(Priority.URGENT));
+    }
+
+    // the pending urgent calls are dispatched in reverse order
+    @Test
+    public void urgentReverseOrder() {
+        mHandler.parentA();
+        mHandler.childA();
+        mHandler.childB();
+        mHandler.childA();
+
+        ShadowLooper.idleMainLooper();
+        assertEquals(Arrays.asList("childA", "childA", "childB", "parentA"), mCalls);
+    }
+
+    // the HIGH lane is due at HIGH_LANE_UPTIME, it is not counted as latency
+    @Test
+    public void highLaneLatencyNotRecorded() {
+        mHandler.childB();
+        mHandler.parentA();
+        ShadowLooper.idleMainLooper();
+
+        MethodStats high = mHandler.getStats(HandlerChildHandler.METHOD_4);
+        assertEquals(1, high.getDispatchCount());
+        assertEquals(0, sum(high.getLatencyHistogram()));
+
+        MethodStats normal = mHandler.getStats(HandlerChildHandler.METHOD_1);
+        assertEquals(1, normal.getDispatchCount());
+        assertEquals(1, sum(normal.getLatencyHistogram()));
+    }
+
+    private static long sum(long[] histogram) {
+        long sum = 0;
+        for (long count : histogram) {
+            sum += count;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,78 @@
+package happy.handler.test;
+
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.LooperMode;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives the {@code @Throttle(100)} and {@code @Debounce(300)} methods of the generated Handler,
+ * the time is advanced by the paused main looper.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class HandlerThrottleTest {
+    private RecordingReceiver mReceiver;
+    private MyHandler<Integer> mHandler;
+
+    @Before
+    public void setUp() {
+        mReceiver = new RecordingReceiver();
+        mHandler = new MyHandler<>(Looper.getMainLooper(), mReceiver);
+        // far from the uptime 0, so the first throttle call is not delayed
+        ShadowLooper.idleMainLooper(1, TimeUnit.SECONDS);
+    }
+
+    // the first call is delivered at once, the next ones at most once per 100 ms with the latest value
+    @Test
+    public void throttle() {
+        mHandler.methodThrottle(1);
+        ShadowLooper.idleMainLooper();
+        assertEquals(Arrays.asList("methodThrottle:1.0"), mReceiver.calls);
+
+        ShadowLooper.idleMainLooper(10, TimeUnit.MILLISECONDS);
+        mHandler.methodThrottle(2);
+        mHandler.methodThrottle(3);
+
+        ShadowLooper.idleMainLooper(89, TimeUnit.MILLISECONDS);
+        assertEquals(1, mReceiver.calls.size());
+
+        ShadowLooper.idleMainLooper(1, TimeUnit.MILLISECONDS);
+        assertEquals(Arrays.asList("methodThrottle:1.0", "methodThrottle:3.0"), mReceiver.calls);
+        assertEquals(1, mHandler.getDroppedCount(MyHandler.METHOD_29));
+
+        // a call after the interval is delivered at once
+        ShadowLooper.idleMainLooper(100, TimeUnit.MILLISECONDS);
+        mHandler.methodThrottle(4);
+        ShadowLooper.idleMainLooper();
+        assertEquals("methodThrottle:4.0", mReceiver.calls.get(2));
+    }
+
+    // the call is delivered 300 ms after the latest call, each call restarts the delay
+    @Test
+    public void debounce() {
+        mHandler.methodDebounce("a");
+        ShadowLooper.idleMainLooper(200, TimeUnit.MILLISECONDS);
+        mHandler.methodDebounce("ab");
+
+        ShadowLooper.idleMainLooper(299, TimeUnit.MILLISECONDS);
+        assertEquals(Collections.emptyList(), mReceiver.calls);
+
+        ShadowLooper.idleMainLooper(1, TimeUnit.MILLISECONDS);
+        assertEquals(Arrays.asList("methodDebounce:ab"), mReceiver.calls);
+        assertEquals(1, mHandler.getDroppedCount(MyHandler.METHOD_30));
+        assertEquals(0, mHandler.getPendingCount(MyHandler.METHOD_30));
+    }
+}
@@ -0,0 +1,262 @@
+package happy.handler.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The receiver of {@link HandlerTest} that records every call as "methodName:args" in order.
+ */
+public class RecordingReceiver implements HandlerTest<Integer> {
+    public final List<String> calls = new ArrayList<>();
+
+    private void record(String method, Object... args) {
+        StringBuilder buff = new StringBuilder(method);
+        for (int i = 0; i < args.length; i++) {
+            buff.append(i == 0 ? ":" : ",").append(args[i]);
+        }
+        calls.add(buff.toString());
+    }
+
+    public List<String> callsOf(String method) {
+        List<String> result = new ArrayList<>();
+        for (String call : calls) {
+            if (call.equals(method) || call.startsWith(method + ":")) {
+                result.add(call);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void methodNoParam() {
+        record("methodNoParam");
+    }
+
+    @Override
+    public void methodByte(byte aByte) {
+        record("methodByte", aByte);
+    }
+
+    @Override
+    public void methodShort(short aShort) {
+        record("methodShort", aShort);
+    }
+
+    @Override
+    public void methodInt(int aInt) {
+        record("methodInt", aInt);
+    }
+
+    @Override
+    public void methodLong(long aLong) {
+        record("methodLong", aLong);
+    }
+
+    @Override
+    public void methodFloat(float aFloat) {
+        record("methodFloat", aFloat);
+    }
+
+    @Override
+    public void methodDouble(double aDouble) {
+        record("methodDouble", aDouble);
+    }
+
+    @Override
+    public void methodChar(char aChar) {
+        record("methodChar", aChar);
+    }
+
+    @Override
+    public void methodBoolean(boolean aBoolean) {
+        record("methodBoolean", aBoolean);
+    }
+
+    @Override
+    public void methodString(String aString) {
+        record("methodString", aString);
+    }
+
+    @Override
+    public void methodAll(byte aByte, short aShort, int aInt, long aLong, float aFloat, double aDouble, char aChar, boolean aBoolean, String aString) {
+        record("methodAll", aByte, aShort, aInt, aLong, aFloat, aDouble, aChar, aBoolean, aString);
+    }
+
+    @Override
+    public void methodArrayByte(byte[] aByte) {
+        record("methodArrayByte", Arrays.toString(aByte));
+    }
+
+    @Override
+    public void methodArrayShort(short[] aShort) {
+        record("methodArrayShort", Arrays.toString(aShort));
+    }
+
+    @Override
+    public void methodArrayInt(int[] aInt) {
+        record("methodArrayInt", Arrays.toString(aInt));
+    }
+
+    @Override
+    public void methodArrayLong(long[] aLong) {
+        record("methodArrayLong", Arrays.toString(aLong));
+    }
+
+    @Override
+    public void methodArrayFloat(float[] aFloat) {
+        record("methodArrayFloat", Arrays.toString(aFloat));
+    }
+
+    @Override
+    public void methodArrayDouble(double[] aDouble) {
+        record("methodArrayDouble", Arrays.toString(aDouble));
+    }
+
+    @Override
+    public void methodArrayChar(char[] aChar) {
+        record("methodArrayChar", Arrays.toString(aChar));
+    }
+
+    @Override
+    public void methodArrayBoolean(boolean[] aBoolean) {
+        record("methodArrayBoolean", Arrays.toString(aBoolean));
+    }
+
+    @Override
+    public void methodArrayString(String[] aString) {
+        record("methodArrayString", Arrays.toString(aString));
+    }
+
+    @Override
+    public void methodArrayAll(byte[] aByte, short[] aShort, int[] aInt, long[] aLong, float[] aFloat, double[] aDouble, char[] aChar, boolean[] aBoolean, String[] aString) {
+        record("methodArrayAll");
+    }
+
+    @Override
+    public void methodVarArgByte(byte... bytes) {
+        record("methodVarArgByte", Arrays.toString(bytes));
+    }
+
+    @Override
+    public void methodVarArgString(String... strings) {
+        record("methodVarArgString", Arrays.toString(strings));
+    }
+
+    @Override
+    public void methodGenerationType(List<Integer> list) {
+        record("methodGenerationType", list);
+    }
+
+    @Override
+    public void methodGenerationType2(List<? extends Number> numbers) {
+        record("methodGenerationType2", numbers);
+    }
+
+    @Override
+    public void methodGenerationType3(List<? extends Number>[] numbersList) {
+        record("methodGenerationType3");
+    }
+
+    @Override
+    public void methodCoalesce(int progress, String text) {
+        record("methodCoalesce", progress, text);
+    }
+
+    @Override
+    public void methodCoalesceNoParam() {
+        record("methodCoalesceNoParam");
+    }
+
+    @Override
+    public void methodThrottle(float position) {
+        record("methodThrottle", position);
+    }
+
+    @Override
+    public void methodDebounce(String query) {
+        record("methodDebounce", query);
+    }
+
+    @Override
+    public void methodAsync(float x, float y) {
+        record("methodAsync", x, y);
+    }
+
+    @Override
+    public void methodBatch(String item) {
+        record("methodBatch", item);
+    }
+
+    @Override
+    public void methodBatchList(List<String> items) {
+        record("methodBatchList", items);
+    }
+
+    @Override
+    public void methodBatchInt(int item) {
+        record("methodBatchInt", item);
+    }
+
+    @Override
+    public void methodBatchIntList(List<Integer> items) {
+        record("methodBatchIntList", items);
+    }
+
+    @Override
+    public void methodBoundedDropOldest(int value) {
+        record("methodBoundedDropOldest", value);
+    }
+
+    @Override
+    public void methodBoundedBlock(String text) {
+        record("methodBoundedBlock", text);
+    }
+
+    @Override
+    public boolean methodBoundedReturnFalse(int value) {
+        record("methodBoundedReturnFalse", value);
+        return true;
+    }
+
+    @Override
+    public CompletableFuture<String> methodFuture(int value) {
+        record("methodFuture", value);
+        return CompletableFuture.completedFuture("result" + value);
+    }
+
+    @Override
+    public CompletableFuture<Integer> methodFutureGeneric() {
+        record("methodFutureGeneric");
+        return CompletableFuture.completedFuture(0);
+    }
+
+    @Override
+    public CompletableFuture<Void> methodFutureCoalesce(int progress) {
+        record("methodFutureCoalesce", progress);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletableFuture<Integer> methodFutureDropOldest(int value) {
+        record("methodFutureDropOldest", value);
+        return CompletableFuture.completedFuture(value);
+    }
+
+    @Override
+    public void methodUnordered(String path, byte[] data) {
+        record("methodUnordered", path);
+    }
+
+    @Override
+    public void methodUnorderedNoParam() {
+        record("methodUnorderedNoParam");
+    }
+
+    @Override
+    public CompletableFuture<Long> methodUnorderedFuture(String path) {
+        record("methodUnorderedFuture", path);
+        return CompletableFuture.completedFuture(0L);
+    }
+}
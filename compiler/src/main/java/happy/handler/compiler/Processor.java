@@ -44,31 +44,40 @@ import javax.tools.Diagnostic;
 
 import happy.handler.Handler;
 import happy.handler.Messenger;
+import happy.handler.MessengerHub;
+import happy.handler.compiler.generator.ExecutorGenerator;
 import happy.handler.compiler.generator.HandlerGenerator;
 import happy.handler.compiler.generator.MessengerGenerator;
+import happy.handler.compiler.generator.MessengerHubGenerator;
 
 
 @SupportedSourceVersion(SourceVersion.RELEASE_8)
 @SupportedAnnotationTypes({
         "happy.handler.Handler",
-        "happy.handler.Messenger"
+        "happy.handler.Messenger",
+        "happy.handler.MessengerHub"
 })
 public class Processor extends AbstractProcessor {
     private HandlerGenerator mHandlerGenerator;
+    private ExecutorGenerator mExecutorGenerator;
     private MessengerGenerator mMessengerGenerator;
+    private MessengerHubGenerator mMessengerHubGenerator;
 
     @Override
     public synchronized void init(ProcessingEnvironment processingEnv) {
         super.init(processingEnv);
 
         mHandlerGenerator = new HandlerGenerator(processingEnv);
+        mExecutorGenerator = new ExecutorGenerator(processingEnv);
         mMessengerGenerator = new MessengerGenerator(processingEnv);
+        mMessengerHubGenerator = new MessengerHubGenerator(processingEnv);
     }
 
     @Override
     public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
         generateAllHandlerSourceFile(roundEnv);
         generateAllMessengerSourceFile(roundEnv);
+        generateAllMessengerHubSourceFile(roundEnv);
         return true;
     }
 
@@ -103,7 +112,23 @@ public class Processor extends AbstractProcessor {
             className = interfaceElement.getAnnotation(Handler.class).value();
         }
 
-        TypeSpec handlerSpec = mHandlerGenerator.generate(className, interfaceElement);
+        TypeSpec handlerSpec;
+        switch (interfaceElement.getAnnotation(Handler.class).target()) {
+            case Handler.LOOPER:
+                handlerSpec = mHandlerGenerator.generate(className, interfaceElement);
+                break;
+            case Handler.SERIAL_EXECUTOR:
+            case Handler.CONCURRENT_EXECUTOR:
+            case Handler.ACTOR:
+            case Handler.SHARDED:
+                handlerSpec = mExecutorGenerator.generate(className, interfaceElement);
+                break;
+            default:
+                processingEnv.getMessager()
+                        .printMessage(Diagnostic.Kind.ERROR, "illegal target: " +
+                                interfaceElement.getAnnotation(Handler.class).target(), interfaceElement);
+                return;
+        }
 
         JavaFile handlerFile = JavaFile.builder(
                 processingEnv.getElementUtils().getPackageOf(interfaceElement).getQualifiedName().toString(),
@@ -153,4 +178,40 @@ public class Processor extends AbstractProcessor {
                             messengerFile.typeSpec.name);
         }
     }
+
+    private void generateAllMessengerHubSourceFile(RoundEnvironment roundEnv) {
+        Set<? extends Element> elements = roundEnv.getElementsAnnotatedWith(MessengerHub.class);
+        List<TypeElement> interfaces = getAllInterfaceElement(elements);
+
+        for (TypeElement targetInterface : interfaces) {
+            generateMessengerHubSourceFile(targetInterface);
+        }
+    }
+
+    private void generateMessengerHubSourceFile(TypeElement interfaceElement) {
+        String className = interfaceElement.getSimpleName() + "Hub";
+        if (!"".equals(interfaceElement.getAnnotation(MessengerHub.class).value())) {
+            className = interfaceElement.getAnnotation(MessengerHub.class).value();
+        }
+
+        TypeSpec hubSpec = mMessengerHubGenerator.generate(className, interfaceElement);
+        if (hubSpec == null) {
+            return;
+        }
+
+        JavaFile hubFile = JavaFile.builder(
+                processingEnv.getElementUtils().getPackageOf(interfaceElement).getQualifiedName().toString(),
+                hubSpec
+        ).build();
+
+        try {
+            hubFile.writeTo(processingEnv.getFiler());
+        } catch (IOException e) {
+            e.printStackTrace();
+            processingEnv.getMessager()
+                    .printMessage(Diagnostic.Kind.NOTE, "fail, can not create source file: " +
+                            hubFile.packageName + "." +
+                            hubFile.typeSpec.name);
+        }
+    }
 }
@@ -24,15 +24,19 @@
 package happy.handler.compiler.generator;
 
 import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.CodeBlock;
 import com.squareup.javapoet.FieldSpec;
 import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.ParameterizedTypeName;
 import com.squareup.javapoet.TypeName;
 import com.squareup.javapoet.TypeSpec;
 import com.squareup.javapoet.TypeVariableName;
 
+import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import javax.annotation.processing.Messager;
 import javax.annotation.processing.ProcessingEnvironment;
@@ -41,20 +45,35 @@ import javax.lang.model.element.ExecutableElement;
 import javax.lang.model.element.Modifier;
 import javax.lang.model.element.TypeElement;
 import javax.lang.model.element.TypeParameterElement;
+import javax.lang.model.element.VariableElement;
 import javax.lang.model.type.TypeKind;
 import javax.lang.model.type.TypeMirror;
 import javax.lang.model.util.Types;
 import javax.tools.Diagnostic;
 
+import happy.handler.MethodStats;
+import happy.handler.ShardKey;
+import happy.handler.Tracer;
+import happy.handler.Tracing;
 import javafx.util.Pair;
 
 public abstract class AbstractGenerator {
+    private static final int ARGS_POOL_SIZE = 50;
+    private static final int STATS_STRIPES = 8;
+    private static final int MAX_SECTION_NAME_LENGTH = 127;
+    // the uptime of the messages in high lane, they are queued before all the messages that are due
+    static final long HIGH_LANE_UPTIME = 1L;
+
+    // java.util.concurrent.CompletableFuture, Java 8
+    static final ClassName COMPLETABLE_FUTURE = ClassName.get("java.util.concurrent", "CompletableFuture");
+
     private Types mTypes;
     private Messager mMessager;
     private List<Pair<String, ExecutableElement>> mInterfaceMethodPairs;
     private List<FieldSpec> mAllMethodIdFields;
 
     private TypeSpec.Builder mHandlerBuilder;
+    private String mInterfaceName;
 
     AbstractGenerator(ProcessingEnvironment processingEnv) {
         mTypes = processingEnv.getTypeUtils();
@@ -68,6 +87,31 @@ public abstract class AbstractGenerator {
 
     protected abstract void implement_handleMessageStatement(MethodSpec.Builder builder, TypeElement interfaceElement, String paramName);
 
+    // reset the state of generated class when receiver is collected, default is nothing
+    protected void implement_detachStatement(MethodSpec.Builder builder) {
+    }
+
+    // whether generate the dispatch statistics, default is false
+    protected boolean isStatsEnabled() {
+        return false;
+    }
+
+    // declare the local variable "pending" and "dropped" of getStats(), the "calls" and "dispatched"
+    // are available
+    protected void implement_statsCountStatement(MethodSpec.Builder builder) {
+        builder.addStatement("int pending = (int) Math.max(calls - dispatched, 0)")
+                .addStatement("long dropped = 0");
+    }
+
+    // whether trace the calls and the dispatch, default is false
+    protected boolean isTraceEnabled() {
+        return false;
+    }
+
+    // called by sendMessageAtTime() before the message is enqueued, default is nothing
+    protected void implement_sendMessageAtTimeStatement(MethodSpec.Builder builder, String paramName) {
+    }
+
     protected TypeSpec.Builder getInterfaceBuilder() {
         return mHandlerBuilder;
     }
@@ -77,6 +121,8 @@ public abstract class AbstractGenerator {
     }
 
     public TypeSpec generate(String className, TypeElement interfaceElement) {
+        mInterfaceName = interfaceElement.getSimpleName().toString();
+
         List<ExecutableElement> allMethodElement = getAllMethod(interfaceElement);
         checkMethodReturnType(allMethodElement);
 
@@ -88,21 +134,35 @@ public abstract class AbstractGenerator {
 
         generateHandlerConstructors(handlerBuilder, interfaceElement);
 
+        if (isStatsEnabled()) {
+            generateStats(handlerBuilder);
+        }
+
         return handlerBuilder.build();
     }
 
-    private TypeSpec.Builder buildHandler(String className, TypeElement interfaceElement) {
+    // the class that dispatches the calls, default is a subclass of android.os.Handler
+    protected TypeSpec.Builder buildHandler(String className, TypeElement interfaceElement) {
         // Receiver Class Builder
         mHandlerBuilder = TypeSpec.classBuilder(className)
                 .superclass(ClassName.get("android.os", "Handler"))
                 .addModifiers(Modifier.PUBLIC, Modifier.FINAL);
 
         // Field: mReceiverWeakRef
-        mHandlerBuilder.addField(generateReceiverWeakReference());
+        generateReceiverFields(mHandlerBuilder);
+
+        // Field: mDetached
+        mHandlerBuilder.addField(boolean.class, "mDetached", Modifier.PRIVATE, Modifier.VOLATILE);
 
         // handleMessage
         mHandlerBuilder.addMethod(implement_handleMessage(interfaceElement));
 
+        // isDetached
+        mHandlerBuilder.addMethod(generate_isDetached());
+
+        // _detach
+        mHandlerBuilder.addMethod(generate_detach());
+
         return mHandlerBuilder;
     }
 
@@ -115,11 +175,97 @@ public abstract class AbstractGenerator {
                 .returns(void.class)
                 .addParameter(ClassName.get("android.os", "Message"), paramName);
 
+        if (isTraceEnabled()) {
+            builder.addStatement("_beginDispatchTrace($N.what)", paramName)
+                    .beginControlFlow("try");
+        }
+
         implement_handleMessageStatement(builder, interfaceElement, paramName);
 
+        if (isTraceEnabled()) {
+            builder.nextControlFlow("finally")
+                    .addStatement("_endTrace()")
+                    .endControlFlow();
+        }
+
+        return builder.build();
+    }
+
+    // the fields that reference the receiver, default is mReceiverWeakRef
+    protected void generateReceiverFields(TypeSpec.Builder builder) {
+        builder.addField(generateReceiverWeakReference());
+    }
+
+    protected MethodSpec generate_isDetached() {
+        return MethodSpec.methodBuilder("isDetached")
+                .addJavadoc("Returns true if the receiver has been garbage collected. Once detached, all pending\n")
+                .addJavadoc("calls are discarded, and all subsequent calls are ignored.\n")
+                .addModifiers(Modifier.PUBLIC)
+                .returns(boolean.class)
+                .beginControlFlow("if (mDetached)")
+                .addStatement("return true")
+                .endControlFlow()
+                .beginControlFlow("if (mReceiverWeakRef.get() == null)")
+                .addStatement("_detach()")
+                .addStatement("return true")
+                .endControlFlow()
+                .addStatement("return false")
+                .build();
+    }
+
+    private MethodSpec generate_detach() {
+        MethodSpec.Builder builder = MethodSpec.methodBuilder("_detach")
+                .addModifiers(Modifier.PRIVATE)
+                .addStatement("mDetached = true");
+
+        if (!isDiscardedOnDispatch()) {
+            builder.addStatement("removeCallbacksAndMessages(null)");
+        }
+
+        implement_detachStatement(builder);
+
         return builder.build();
     }
 
+    // true if the pending messages are not removed on detach, but discarded one by one by
+    // handleMessage(), so the futures of the pending calls are cancelled
+    protected boolean isDiscardedOnDispatch() {
+        return false;
+    }
+
+    // _dropArgs(what, args): the call is discarded without being dispatched, the future of the
+    // call is cancelled, and the pooled args is recycled. Nothing if args is null.
+    protected final void generateDropArgs(TypeSpec.Builder builder, List<Pair<String, ExecutableElement>> methodPairs, boolean pooled) {
+        MethodSpec.Builder dropBuilder = MethodSpec.methodBuilder("_dropArgs")
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                .addParameter(int.class, "what")
+                .addParameter(Object.class, "args")
+                .beginControlFlow("if (args == null)")
+                .addStatement("return")
+                .endControlFlow()
+                .beginControlFlow("switch (what)");
+
+        for (Pair<String, ExecutableElement> methodPair : methodPairs) {
+            boolean future = returnsFuture(methodPair.getValue());
+            if (!future && !pooled) {
+                continue;
+            }
+
+            ClassName argsType = getArgsClassName(methodPair);
+            dropBuilder.addCode("case $N:\n", methodPair.getKey());
+            if (future) {
+                dropBuilder.addStatement("(($T) args).future.cancel(false)", argsType);
+            }
+            if (pooled) {
+                dropBuilder.addStatement("(($T) args).recycle()", argsType);
+            }
+            dropBuilder.addStatement("break");
+        }
+
+        builder.addMethod(dropBuilder.endControlFlow()
+                .build());
+    }
+
     private void implementInterface(TypeSpec.Builder builder, TypeElement interfaceElement) {
         builder.addSuperinterface(interfaceElement.asType());
 
@@ -139,6 +285,10 @@ public abstract class AbstractGenerator {
 
         // _sendMessage
         builder.addMethod(generate_sendMessage());
+
+        if (isTraceEnabled()) {
+            generateTrace(builder);
+        }
     }
 
     private List<ExecutableElement> getAllMethod(TypeElement element) {
@@ -163,16 +313,60 @@ public abstract class AbstractGenerator {
 
     private void checkMethodReturnType(List<ExecutableElement> elements) {
         for (ExecutableElement e : elements) {
-            if (returnTypeNotVoid(e)) {
-                mMessager.printMessage(Diagnostic.Kind.ERROR, "return type must be void.", e);
-            }
+            checkMethodReturnType(e);
         }
     }
 
-    private boolean returnTypeNotVoid(ExecutableElement element) {
+    // the return type must be void or CompletableFuture by default
+    protected void checkMethodReturnType(ExecutableElement element) {
+        if (returnTypeNotVoid(element) && !returnsFuture(element)) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, "return type must be void or CompletableFuture.", element);
+        }
+    }
+
+    protected final boolean returnTypeNotVoid(ExecutableElement element) {
         return element.getReturnType().getKind() != TypeKind.VOID;
     }
 
+    protected final boolean returnsFuture(ExecutableElement element) {
+        TypeMirror returnType = element.getReturnType();
+        return returnType.getKind() == TypeKind.DECLARED &&
+                mTypes.erasure(returnType).toString().equals(COMPLETABLE_FUTURE.toString());
+    }
+
+    protected final boolean hasFutureMethod() {
+        for (Pair<String, ExecutableElement> methodPair : mInterfaceMethodPairs) {
+            if (returnsFuture(methodPair.getValue())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // the parameter that annotated with @ShardKey, or null
+    protected final VariableElement getShardKey(ExecutableElement element) {
+        for (VariableElement param : element.getParameters()) {
+            if (param.getAnnotation(ShardKey.class) != null) {
+                return param;
+            }
+        }
+
+        return null;
+    }
+
+    protected final void checkShardKeyUnsupported(ExecutableElement element) {
+        VariableElement shardKey = getShardKey(element);
+        if (shardKey != null) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, "@ShardKey is only supported by @Handler(target = Handler.SHARDED).", shardKey);
+        }
+    }
+
+    // whether the call needs a MethodNArgs, the future of call is also carried by MethodNArgs
+    protected final boolean hasArgs(ExecutableElement element) {
+        return element.getParameters().size() > 0 || returnsFuture(element);
+    }
+
     private List<FieldSpec> generateAllMethodId(List<ExecutableElement> methodElements) {
         mInterfaceMethodPairs.clear();
 
@@ -196,7 +390,7 @@ public abstract class AbstractGenerator {
                 .build();
     }
 
-    private FieldSpec generateReceiverWeakReference() {
+    protected final FieldSpec generateReceiverWeakReference() {
         return FieldSpec.builder(WeakReference.class,
                 "mReceiverWeakRef",
                 Modifier.PRIVATE
@@ -207,7 +401,7 @@ public abstract class AbstractGenerator {
         return FieldSpec.builder(
                 TypeName.INT,
                 "METHOD_" + id,
-                Modifier.PRIVATE,
+                Modifier.PUBLIC,
                 Modifier.STATIC,
                 Modifier.FINAL
         ).initializer("$L", id)
@@ -229,12 +423,84 @@ public abstract class AbstractGenerator {
     private MethodSpec implementMethod(Pair<String, ExecutableElement> methodPair) {
         MethodSpec.Builder builder = MethodSpec.overriding(methodPair.getValue());
 
+        if (isTraceEnabled()) {
+            builder.addStatement("_beginTrace($S)", getSectionName(methodPair.getValue(), " enqueue"))
+                    .beginControlFlow("try");
+        }
+
         implementMethodStatement(builder, methodPair);
 
+        if (isTraceEnabled()) {
+            builder.nextControlFlow("finally")
+                    .addStatement("_endTrace()")
+                    .endControlFlow();
+        }
+
         return builder.build();
     }
 
-    private MethodSpec generate_sendMessage() {
+    // Interface.method + suffix, android.os.Trace limits the length of section name
+    private String getSectionName(ExecutableElement methodElement, String suffix) {
+        String sectionName = mInterfaceName + "." + methodElement.getSimpleName() + suffix;
+        if (sectionName.length() > MAX_SECTION_NAME_LENGTH) {
+            return sectionName.substring(0, MAX_SECTION_NAME_LENGTH);
+        }
+
+        return sectionName;
+    }
+
+    // Trace:
+    // the registered Tracer is preferred, otherwise use android.os.Trace. The name of dispatch
+    // section is looked up by message.what, the "what" of remote message is untrusted.
+    private void generateTrace(TypeSpec.Builder builder) {
+        ClassName buildType = ClassName.get("android.os", "Build");
+        ClassName traceType = ClassName.get("android.os", "Trace");
+
+        StringBuilder sectionNames = new StringBuilder("null");
+        for (Pair<String, ExecutableElement> methodPair : mInterfaceMethodPairs) {
+            sectionNames.append(", \"")
+                    .append(getSectionName(methodPair.getValue(), ""))
+                    .append("\"");
+        }
+
+        builder.addField(FieldSpec.builder(String[].class, "TRACE_SECTION_NAMES", Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                .initializer("{$L}", sectionNames.toString())
+                .build());
+
+        builder.addMethod(MethodSpec.methodBuilder("_beginTrace")
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                .addParameter(String.class, "sectionName")
+                .addStatement("$T tracer = $T.getTracer()", Tracer.class, Tracing.class)
+                .beginControlFlow("if (tracer != null)")
+                .addStatement("tracer.beginSection(sectionName)")
+                .nextControlFlow("else if ($T.VERSION.SDK_INT >= $T.VERSION_CODES.JELLY_BEAN_MR2)", buildType, buildType)
+                .addStatement("$T.beginSection(sectionName)", traceType)
+                .endControlFlow()
+                .build());
+
+        builder.addMethod(MethodSpec.methodBuilder("_beginDispatchTrace")
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                .addParameter(int.class, "what")
+                .beginControlFlow("if (what > 0 && what <= LAST_METHOD_ID)")
+                .addStatement("_beginTrace(TRACE_SECTION_NAMES[what])")
+                .nextControlFlow("else")
+                .addStatement("_beginTrace($S)", mInterfaceName + ".unknown")
+                .endControlFlow()
+                .build());
+
+        builder.addMethod(MethodSpec.methodBuilder("_endTrace")
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                .addStatement("$T tracer = $T.getTracer()", Tracer.class, Tracing.class)
+                .beginControlFlow("if (tracer != null)")
+                .addStatement("tracer.endSection()")
+                .nextControlFlow("else if ($T.VERSION.SDK_INT >= $T.VERSION_CODES.JELLY_BEAN_MR2)", buildType, buildType)
+                .addStatement("$T.endSection()", traceType)
+                .endControlFlow()
+                .build());
+    }
+
+    // _sendMessage(android.os.Message)
+    protected MethodSpec generate_sendMessage() {
         MethodSpec.Builder builder = MethodSpec.methodBuilder("_sendMessage")
                 .addModifiers(Modifier.PRIVATE)
                 .addParameter(ClassName.get("android.os", "Message"), "message");
@@ -244,10 +510,207 @@ public abstract class AbstractGenerator {
         return builder.build();
     }
 
+    // "methodNStart": the start time of receiver in nanoseconds
+    protected final void addDispatchStartStatement(MethodSpec.Builder builder, String methodId) {
+        if (isStatsEnabled()) {
+            builder.addStatement("long $N = System.nanoTime()", getDispatchStartVarName(methodId));
+        }
+    }
+
+    protected final void addDispatchEndStatement(MethodSpec.Builder builder, String methodId, String paramName) {
+        if (isStatsEnabled()) {
+            builder.addStatement("_recordDispatch($N, _latencyOf($L), $N)",
+                    methodId,
+                    getDispatchWhen(paramName),
+                    getDispatchStartVarName(methodId));
+        }
+    }
+
+    // the uptime that the message is due, Message.getWhen() is 0 if the message is not from MessageQueue
+    protected CodeBlock getDispatchWhen(String paramName) {
+        return CodeBlock.of("$N.getWhen()", paramName);
+    }
+
+    // "future" is the CompletableFuture that returned to caller
+    protected final void addNewFutureStatement(MethodSpec.Builder builder, ExecutableElement methodElement) {
+        builder.addStatement("$T future = new $T<>()", TypeName.get(methodElement.getReturnType()), COMPLETABLE_FUTURE);
+    }
+
+    // the exception of receiver is delivered to the future instead of the caller or Looper
+    protected final void addFutureDispatchStatement(MethodSpec.Builder builder, String callStatement, String futureName) {
+        builder.beginControlFlow("try")
+                .addStatement("_completeFuture($L, $L)", futureName, callStatement)
+                .nextControlFlow("catch (Throwable e)")
+                .addStatement("$L.completeExceptionally(e)", futureName)
+                .endControlFlow();
+    }
+
+    // _completeFuture(future, result): complete the future of caller when the future returned by
+    // receiver is completed, a null result completes the future with null.
+    protected final void generateFuture(TypeSpec.Builder builder) {
+        TypeVariableName t = TypeVariableName.get("T");
+        ParameterizedTypeName futureType = ParameterizedTypeName.get(COMPLETABLE_FUTURE, t);
+
+        builder.addMethod(MethodSpec.methodBuilder("_completeFuture")
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                .addTypeVariable(t)
+                .addParameter(futureType, "future", Modifier.FINAL)
+                .addParameter(futureType, "result")
+                .beginControlFlow("if (result == null)")
+                .addStatement("future.complete(null)")
+                .addStatement("return")
+                .endControlFlow()
+                .addStatement("result.whenComplete($L)", TypeSpec.anonymousClassBuilder("")
+                        .addSuperinterface(ParameterizedTypeName.get(ClassName.get("java.util.function", "BiConsumer"), t, ClassName.get(Throwable.class)))
+                        .addMethod(MethodSpec.methodBuilder("accept")
+                                .addAnnotation(Override.class)
+                                .addModifiers(Modifier.PUBLIC)
+                                .addParameter(t, "value")
+                                .addParameter(Throwable.class, "error")
+                                .beginControlFlow("if (error != null)")
+                                .addStatement("future.completeExceptionally(error)")
+                                .nextControlFlow("else")
+                                .addStatement("future.complete(value)")
+                                .endControlFlow()
+                                .build())
+                        .build())
+                .build());
+    }
+
+    private String getDispatchStartVarName(String methodId) {
+        // METHOD_N -> methodNStart
+        return "method" + methodId.substring(methodId.indexOf('_') + 1) + "Start";
+    }
+
+    // Statistics:
+    // 1. mCallCount is striped by the id of calling thread, the stripes are padded to avoid false
+    //    sharing, so the producers on many threads do not contend.
+    // 2. the latency is measured from Message.getWhen(), the fields of message(arg1, arg2) belong to
+    //    the caller. The message that has no real due time (sent at front of queue, or at
+    //    HIGH_LANE_UPTIME) is not counted in the latency histogram.
+    // 3. the dispatch counters are only updated on the thread of Looper.
+    private void generateStats(TypeSpec.Builder builder) {
+        ClassName systemClockType = ClassName.get("android.os", "SystemClock");
+        ClassName methodStatsType = ClassName.get(MethodStats.class);
+
+        StringBuilder methodNames = new StringBuilder("null");
+        for (Pair<String, ExecutableElement> methodPair : mInterfaceMethodPairs) {
+            methodNames.append(", \"")
+                    .append(methodPair.getValue().toString())
+                    .append("\"");
+        }
+
+        builder.addField(FieldSpec.builder(String[].class, "METHOD_NAMES", Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                .initializer("{$L}", methodNames.toString())
+                .build());
+        builder.addField(FieldSpec.builder(int.class, "STATS_STRIPES", Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                .initializer("$L", STATS_STRIPES)
+                .build());
+        builder.addField(FieldSpec.builder(int.class, "STATS_STRIDE", Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                .addJavadoc("LAST_METHOD_ID + 1, and padding of 64 bytes.\n")
+                .initializer("LAST_METHOD_ID + 9")
+                .build());
+
+        builder.addField(FieldSpec.builder(AtomicLongArray.class, "mCallCount", Modifier.PRIVATE, Modifier.FINAL)
+                .initializer("new $T(STATS_STRIPES * STATS_STRIDE)", AtomicLongArray.class)
+                .build());
+        builder.addField(FieldSpec.builder(AtomicLongArray.class, "mDispatchCount", Modifier.PRIVATE, Modifier.FINAL)
+                .initializer("new $T(LAST_METHOD_ID + 1)", AtomicLongArray.class)
+                .build());
+        builder.addField(FieldSpec.builder(AtomicLongArray.class, "mExecutionNanos", Modifier.PRIVATE, Modifier.FINAL)
+                .initializer("new $T(LAST_METHOD_ID + 1)", AtomicLongArray.class)
+                .build());
+        builder.addField(FieldSpec.builder(AtomicLongArray.class, "mLatencyHistogram", Modifier.PRIVATE, Modifier.FINAL)
+                .initializer("new $T((LAST_METHOD_ID + 1) * $T.BUCKET_COUNT)", AtomicLongArray.class, methodStatsType)
+                .build());
+        builder.addField(FieldSpec.builder(AtomicLongArray.class, "mExecutionHistogram", Modifier.PRIVATE, Modifier.FINAL)
+                .initializer("new $T((LAST_METHOD_ID + 1) * $T.BUCKET_COUNT)", AtomicLongArray.class, methodStatsType)
+                .build());
+
+        MethodSpec.Builder sendBuilder = MethodSpec.methodBuilder("sendMessageAtTime")
+                .addAnnotation(Override.class)
+                .addModifiers(Modifier.PUBLIC)
+                .returns(boolean.class)
+                .addParameter(ClassName.get("android.os", "Message"), "msg")
+                .addParameter(long.class, "uptimeMillis");
+
+        implement_sendMessageAtTimeStatement(sendBuilder, "msg");
+
+        builder.addMethod(sendBuilder.addStatement("return super.sendMessageAtTime(msg, uptimeMillis)")
+                .build());
+
+        builder.addMethod(MethodSpec.methodBuilder("_recordCall")
+                .addModifiers(Modifier.PRIVATE)
+                .addParameter(int.class, "what")
+                .addStatement("int stripe = (int) $T.currentThread().getId() & (STATS_STRIPES - 1)", Thread.class)
+                .addStatement("mCallCount.incrementAndGet(stripe * STATS_STRIDE + what)")
+                .build());
+
+        builder.addMethod(MethodSpec.methodBuilder("_latencyOf")
+                .addJavadoc("Returns -1 if the message has no real due time.\n")
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                .returns(long.class)
+                .addParameter(long.class, "when")
+                .beginControlFlow("if (when <= $LL)", HIGH_LANE_UPTIME)
+                .addStatement("return -1")
+                .endControlFlow()
+                .addStatement("return $T.uptimeMillis() - when", systemClockType)
+                .build());
+
+        builder.addMethod(MethodSpec.methodBuilder("_recordDispatch")
+                .addModifiers(Modifier.PRIVATE)
+                .addParameter(int.class, "what")
+                .addParameter(long.class, "latencyMillis")
+                .addParameter(long.class, "startNanos")
+                .addStatement("long executionNanos = System.nanoTime() - startNanos")
+                .addStatement("mDispatchCount.incrementAndGet(what)")
+                .addStatement("mExecutionNanos.addAndGet(what, executionNanos)")
+                .beginControlFlow("if (latencyMillis >= 0)")
+                .addStatement("mLatencyHistogram.incrementAndGet(what * $T.BUCKET_COUNT + $T.bucketOf(latencyMillis))",
+                        methodStatsType, methodStatsType)
+                .endControlFlow()
+                .addStatement("mExecutionHistogram.incrementAndGet(what * $T.BUCKET_COUNT + $T.bucketOf(executionNanos / 1000))",
+                        methodStatsType, methodStatsType)
+                .build());
+
+        MethodSpec.Builder getStatsBuilder = MethodSpec.methodBuilder("getStats")
+                .addJavadoc("Returns the snapshot of dispatch statistics of the given method.\n")
+                .addModifiers(Modifier.PUBLIC)
+                .returns(methodStatsType)
+                .addParameter(int.class, "methodId")
+                .addStatement("long calls = 0")
+                .beginControlFlow("for (int i = 0; i < STATS_STRIPES; i++)")
+                .addStatement("calls += mCallCount.get(i * STATS_STRIDE + methodId)")
+                .endControlFlow()
+                .addStatement("long dispatched = mDispatchCount.get(methodId)");
+
+        implement_statsCountStatement(getStatsBuilder);
+
+        builder.addMethod(getStatsBuilder
+                .addStatement("long[] latency = new long[$T.BUCKET_COUNT]", methodStatsType)
+                .addStatement("long[] execution = new long[$T.BUCKET_COUNT]", methodStatsType)
+                .beginControlFlow("for (int i = 0; i < $T.BUCKET_COUNT; i++)", methodStatsType)
+                .addStatement("latency[i] = mLatencyHistogram.get(methodId * $T.BUCKET_COUNT + i)", methodStatsType)
+                .addStatement("execution[i] = mExecutionHistogram.get(methodId * $T.BUCKET_COUNT + i)", methodStatsType)
+                .endControlFlow()
+                .addStatement("return new $T(methodId, METHOD_NAMES[methodId], calls, dispatched, pending, dropped, " +
+                        "mExecutionNanos.get(methodId), latency, execution)", methodStatsType)
+                .build());
+
+        builder.addMethod(MethodSpec.methodBuilder("dump")
+                .addJavadoc("Print the dispatch statistics of all methods.\n")
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(PrintWriter.class, "writer")
+                .beginControlFlow("for (int i = 1; i <= LAST_METHOD_ID; i++)")
+                .addStatement("getStats(i).dump(writer)")
+                .endControlFlow()
+                .build());
+    }
+
     // Constructor:
     // 1. (Looper looper, Receiver receiver)
     // 2. (Receiver receiver)
-    private void generateHandlerConstructors(TypeSpec.Builder receiverBuilder, TypeElement interfaceElement) {
+    protected void generateHandlerConstructors(TypeSpec.Builder receiverBuilder, TypeElement interfaceElement) {
         MethodSpec mainConstructor = MethodSpec.constructorBuilder()
                 .addModifiers(Modifier.PUBLIC)
                 .addParameter(ClassName.get("android.os", "Looper"), "looper")
@@ -265,4 +728,111 @@ public abstract class AbstractGenerator {
         receiverBuilder.addMethod(mainConstructor);
         receiverBuilder.addMethod(constructor2);
     }
+
+    protected final void extractParamList(List<? extends VariableElement> parameters, String varArgs, StringBuilder buff) {
+        for (int i = 0; i < parameters.size(); i++) {
+            TypeMirror paramType = parameters.get(i).asType();
+
+            // the field of MethodNArgs is erasure type, so generic type need cast
+            if (!mTypes.isSameType(paramType, mTypes.erasure(paramType))) {
+                buff.append("(")
+                        .append(paramType.toString())
+                        .append(")");
+            }
+
+            buff.append(varArgs)
+                    .append(".arg")
+                    .append(i);
+
+            if (i < parameters.size() - 1) {
+                buff.append(",");
+            }
+        }
+    }
+
+    protected final ClassName getArgsClassName(Pair<String, ExecutableElement> methodPair) {
+        // METHOD_N -> MethodNArgs
+        String methodId = methodPair.getKey();
+        return ClassName.get("", "Method" + methodId.substring(methodId.indexOf('_') + 1) + "Args");
+    }
+
+    protected final String getArgsVarName(ClassName argsType) {
+        String simpleName = argsType.simpleName();
+        return simpleName.substring(0, 1).toLowerCase() + simpleName.substring(1);
+    }
+
+    // Arguments holder, if pooled, like android.os.Message:
+    // 1. obtain(): take a instance from pool, or create a new instance if pool is empty
+    // 2. recycle(): clear the reference fields, and return the instance to pool
+    protected final TypeSpec generateArgsClass(Pair<String, ExecutableElement> methodPair, boolean pooled) {
+        ClassName argsType = getArgsClassName(methodPair);
+        List<? extends VariableElement> parameters = methodPair.getValue().getParameters();
+
+        TypeSpec.Builder builder = TypeSpec.classBuilder(argsType.simpleName())
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                .addJavadoc("Arguments of: $L\n", methodPair.getValue().toString());
+
+        for (int i = 0; i < parameters.size(); i++) {
+            builder.addField(TypeName.get(mTypes.erasure(parameters.get(i).asType())), "arg" + i);
+        }
+
+        boolean future = returnsFuture(methodPair.getValue());
+        if (future) {
+            builder.addField(COMPLETABLE_FUTURE, "future");
+        }
+
+        if (!pooled) {
+            return builder.build();
+        }
+
+        builder.addField(FieldSpec.builder(int.class, "MAX_POOL_SIZE", Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                .initializer("$L", ARGS_POOL_SIZE)
+                .build());
+        builder.addField(FieldSpec.builder(Object.class, "sPoolSync", Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                .initializer("new $T()", Object.class)
+                .build());
+        builder.addField(argsType, "sPool", Modifier.PRIVATE, Modifier.STATIC);
+        builder.addField(int.class, "sPoolSize", Modifier.PRIVATE, Modifier.STATIC);
+        builder.addField(argsType, "mNext", Modifier.PRIVATE);
+
+        MethodSpec.Builder recycleBuilder = MethodSpec.methodBuilder("recycle")
+                .returns(void.class);
+
+        for (int i = 0; i < parameters.size(); i++) {
+            if (!parameters.get(i).asType().getKind().isPrimitive()) {
+                recycleBuilder.addStatement("arg$L = null", i);
+            }
+        }
+
+        if (future) {
+            recycleBuilder.addStatement("future = null");
+        }
+
+        recycleBuilder.beginControlFlow("synchronized (sPoolSync)")
+                .beginControlFlow("if (sPoolSize < MAX_POOL_SIZE)")
+                .addStatement("mNext = sPool")
+                .addStatement("sPool = this")
+                .addStatement("sPoolSize++")
+                .endControlFlow()
+                .endControlFlow();
+
+        MethodSpec obtain = MethodSpec.methodBuilder("obtain")
+                .addModifiers(Modifier.STATIC)
+                .returns(argsType)
+                .beginControlFlow("synchronized (sPoolSync)")
+                .beginControlFlow("if (sPool != null)")
+                .addStatement("$T args = sPool", argsType)
+                .addStatement("sPool = args.mNext")
+                .addStatement("args.mNext = null")
+                .addStatement("sPoolSize--")
+                .addStatement("return args")
+                .endControlFlow()
+                .endControlFlow()
+                .addStatement("return new $T()", argsType)
+                .build();
+
+        return builder.addMethod(obtain)
+                .addMethod(recycleBuilder.build())
+                .build();
+    }
 }
@@ -0,0 +1,726 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 jrfeng
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package happy.handler.compiler.generator;
+
+import com.squareup.javapoet.ArrayTypeName;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.FieldSpec;
+import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.ParameterizedTypeName;
+import com.squareup.javapoet.TypeName;
+import com.squareup.javapoet.TypeSpec;
+
+import java.lang.annotation.Annotation;
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import javax.tools.Diagnostic;
+
+import happy.handler.Async;
+import happy.handler.Batch;
+import happy.handler.Bounded;
+import happy.handler.Coalesce;
+import happy.handler.Debounce;
+import happy.handler.Handler;
+import happy.handler.Priority;
+import happy.handler.ShardKey;
+import happy.handler.Throttle;
+import happy.handler.Unordered;
+import javafx.util.Pair;
+
+/**
+ * Generate Handler Source File for {@link Handler#SERIAL_EXECUTOR},
+ * {@link Handler#CONCURRENT_EXECUTOR}, {@link Handler#ACTOR} and {@link Handler#SHARDED}.
+ * <p>
+ * The generated class has no Android dependency except the sharded target. For the executor
+ * targets, every call is captured as a Task(METHOD_n and the arguments holder), and run on the
+ * Executor that passed to constructor. For the actor target, the generated class extends
+ * {@code Actor}, and every call is sent to the mailbox of {@code MailboxThread} that passed to
+ * constructor. For the sharded target, every call is sent to the Handler of a HandlerThread
+ * that owned by the generated class, the shard is selected by the hash of {@code @ShardKey}.
+ * The shard threads run until {@code quit()} is called, or a call is dispatched after the
+ * receiver is collected.
+ * <p>
+ * The call that is discarded (after detached, or the MailboxThread is quit) is passed to
+ * {@code _dropArgs()}, which cancels its future.
+ */
+public class ExecutorGenerator extends AbstractGenerator {
+    private static final int DRAIN_BATCH_SIZE = 64;
+
+    private Messager mMessager;
+
+    private TypeElement mInterfaceElement;
+    private TypeSpec.Builder mExecutorBuilder;
+
+    private ClassName mTaskType = ClassName.get("", "Task");
+    private ClassName mActorType = ClassName.get("happy.handler.runtime", "Actor");
+    private ClassName mMailboxThreadType = ClassName.get("happy.handler.runtime", "MailboxThread");
+    private ClassName mShardType = ClassName.get("", "Shard");
+    private ClassName mHandlerThreadType = ClassName.get("android.os", "HandlerThread");
+
+    public ExecutorGenerator(ProcessingEnvironment processingEnv) {
+        super(processingEnv);
+
+        mMessager = processingEnv.getMessager();
+    }
+
+    @Override
+    public TypeSpec generate(String className, TypeElement interfaceElement) {
+        mInterfaceElement = interfaceElement;
+
+        checkInterface();
+
+        TypeSpec.Builder executorBuilder = super.generate(className, interfaceElement).toBuilder();
+
+        // Inner class: MethodNArgs
+        for (Pair<String, ExecutableElement> methodPair : getInterfaceMethodPairs()) {
+            checkMethod(methodPair.getValue());
+
+            if (hasArgs(methodPair.getValue())) {
+                executorBuilder.addType(generateArgsClass(methodPair, false));
+            }
+        }
+
+        if (hasFutureMethod()) {
+            generateFuture(executorBuilder);
+            generateDropArgs(executorBuilder, getInterfaceMethodPairs(), false);
+        }
+
+        return executorBuilder.build();
+    }
+
+    @Override
+    protected TypeSpec.Builder getInterfaceBuilder() {
+        return mExecutorBuilder;
+    }
+
+    @Override
+    protected TypeSpec.Builder buildHandler(String className, TypeElement interfaceElement) {
+        mExecutorBuilder = TypeSpec.classBuilder(className)
+                .addModifiers(Modifier.PUBLIC, Modifier.FINAL);
+
+        if (isActor()) {
+            return buildActor(interfaceElement);
+        }
+
+        if (isSharded()) {
+            return buildSharded(interfaceElement);
+        }
+
+        // Field: mReceiverWeakRef
+        mExecutorBuilder.addField(generateReceiverWeakReference());
+
+        // Field: mDetached
+        mExecutorBuilder.addField(boolean.class, "mDetached", Modifier.PRIVATE, Modifier.VOLATILE);
+
+        // Field: mExecutor
+        mExecutorBuilder.addField(Executor.class, "mExecutor", Modifier.PRIVATE, Modifier.FINAL);
+
+        if (isSerial()) {
+            generateSerial(mExecutorBuilder);
+        }
+
+        // Inner class: Task
+        mExecutorBuilder.addType(generateTaskClass());
+
+        // _dispatch
+        MethodSpec.Builder dispatchBuilder = MethodSpec.methodBuilder("_dispatch")
+                .addModifiers(Modifier.PRIVATE)
+                .addParameter(mTaskType, "task");
+
+        implement_handleMessageStatement(dispatchBuilder, interfaceElement, "task");
+
+        mExecutorBuilder.addMethod(dispatchBuilder.build());
+
+        // isDetached
+        mExecutorBuilder.addMethod(generate_isDetached());
+
+        // _detach
+        MethodSpec.Builder detachBuilder = MethodSpec.methodBuilder("_detach")
+                .addModifiers(Modifier.PRIVATE)
+                .addStatement("mDetached = true");
+
+        implement_detachStatement(detachBuilder);
+
+        mExecutorBuilder.addMethod(detachBuilder.build());
+
+        return mExecutorBuilder;
+    }
+
+    private TypeSpec.Builder buildActor(TypeElement interfaceElement) {
+        mExecutorBuilder.superclass(mActorType);
+
+        // Field: mReceiverWeakRef
+        mExecutorBuilder.addField(generateReceiverWeakReference());
+
+        // Field: mDetached
+        mExecutorBuilder.addField(boolean.class, "mDetached", Modifier.PRIVATE, Modifier.VOLATILE);
+
+        // onReceive
+        MethodSpec.Builder onReceiveBuilder = MethodSpec.methodBuilder("onReceive")
+                .addAnnotation(Override.class)
+                .addModifiers(Modifier.PROTECTED)
+                .addParameter(int.class, "what")
+                .addParameter(Object.class, "args");
+
+        implement_handleMessageStatement(onReceiveBuilder, interfaceElement, null);
+
+        mExecutorBuilder.addMethod(onReceiveBuilder.build());
+
+        // onDiscard: the pending calls when the MailboxThread is quit
+        if (hasFutureMethod()) {
+            mExecutorBuilder.addMethod(MethodSpec.methodBuilder("onDiscard")
+                    .addAnnotation(Override.class)
+                    .addModifiers(Modifier.PROTECTED)
+                    .addParameter(int.class, "what")
+                    .addParameter(Object.class, "args")
+                    .addStatement("_dropArgs(what, args)")
+                    .build());
+        }
+
+        // isDetached
+        mExecutorBuilder.addMethod(generate_isDetached());
+
+        // _detach
+        MethodSpec.Builder detachBuilder = MethodSpec.methodBuilder("_detach")
+                .addModifiers(Modifier.PRIVATE)
+                .addStatement("mDetached = true");
+
+        implement_detachStatement(detachBuilder);
+
+        mExecutorBuilder.addMethod(detachBuilder.build());
+
+        return mExecutorBuilder;
+    }
+
+    // Sharded:
+    // every shard is a Handler on its own HandlerThread, mShardDepth is the number of pending
+    // calls of every shard. _detach() sends MSG_QUIT after the pending calls, so they are
+    // discarded by the shard thread before it quits.
+    private TypeSpec.Builder buildSharded(TypeElement interfaceElement) {
+        // Field: mReceiverWeakRef
+        mExecutorBuilder.addField(generateReceiverWeakReference());
+
+        // Field: mDetached
+        mExecutorBuilder.addField(boolean.class, "mDetached", Modifier.PRIVATE, Modifier.VOLATILE);
+
+        mExecutorBuilder.addField(FieldSpec.builder(int.class, "MSG_QUIT", Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                .initializer("-1")
+                .build());
+
+        // Field: mThreads, mShards, mShardDepth
+        mExecutorBuilder.addField(ArrayTypeName.of(mHandlerThreadType), "mThreads", Modifier.PRIVATE, Modifier.FINAL);
+        mExecutorBuilder.addField(ArrayTypeName.of(mShardType), "mShards", Modifier.PRIVATE, Modifier.FINAL);
+        mExecutorBuilder.addField(AtomicIntegerArray.class, "mShardDepth", Modifier.PRIVATE, Modifier.FINAL);
+
+        // Inner class: Shard
+        mExecutorBuilder.addType(TypeSpec.classBuilder(mShardType.simpleName())
+                .addModifiers(Modifier.PRIVATE, Modifier.FINAL)
+                .superclass(ClassName.get("android.os", "Handler"))
+                .addField(int.class, "mIndex", Modifier.PRIVATE, Modifier.FINAL)
+                .addMethod(MethodSpec.constructorBuilder()
+                        .addParameter(ClassName.get("android.os", "Looper"), "looper")
+                        .addParameter(int.class, "index")
+                        .addStatement("super(looper)")
+                        .addStatement("mIndex = index")
+                        .build())
+                .addMethod(MethodSpec.methodBuilder("handleMessage")
+                        .addAnnotation(Override.class)
+                        .addModifiers(Modifier.PUBLIC)
+                        .addParameter(ClassName.get("android.os", "Message"), "msg")
+                        .beginControlFlow("if (msg.what == MSG_QUIT)")
+                        .addStatement("getLooper().quit()")
+                        .addStatement("return")
+                        .endControlFlow()
+                        .addStatement("mShardDepth.decrementAndGet(mIndex)")
+                        .beginControlFlow("if (mDetached)")
+                        .addCode(getDropArgsStatement("msg.what", "msg.obj"))
+                        .addStatement("return")
+                        .endControlFlow()
+                        .addStatement("_dispatch(msg.what, msg.obj)")
+                        .build())
+                .build());
+
+        // _dispatch
+        MethodSpec.Builder dispatchBuilder = MethodSpec.methodBuilder("_dispatch")
+                .addModifiers(Modifier.PRIVATE)
+                .addParameter(int.class, "what")
+                .addParameter(Object.class, "args");
+
+        implement_handleMessageStatement(dispatchBuilder, interfaceElement, null);
+
+        mExecutorBuilder.addMethod(dispatchBuilder.build());
+
+        // isDetached
+        mExecutorBuilder.addMethod(generate_isDetached());
+
+        // _detach
+        MethodSpec.Builder detachBuilder = MethodSpec.methodBuilder("_detach")
+                .addModifiers(Modifier.PRIVATE)
+                .addStatement("mDetached = true")
+                .beginControlFlow("for (int i = 0; i < mShards.length; i++)")
+                .addStatement("mShards[i].sendMessage(mShards[i].obtainMessage(MSG_QUIT))")
+                .endControlFlow();
+
+        implement_detachStatement(detachBuilder);
+
+        mExecutorBuilder.addMethod(detachBuilder.build());
+
+        mExecutorBuilder.addMethod(MethodSpec.methodBuilder("quit")
+                .addJavadoc("Quit all shard threads, the pending calls are discarded (the futures are cancelled),\n")
+                .addJavadoc("and all subsequent calls are ignored. Must be called when this instance is no longer\n")
+                .addJavadoc("used, the idle threads are not quit when the receiver is collected.\n")
+                .addModifiers(Modifier.PUBLIC)
+                .addStatement("_detach()")
+                .build());
+
+        mExecutorBuilder.addMethod(MethodSpec.methodBuilder("getShardCount")
+                .addModifiers(Modifier.PUBLIC)
+                .returns(int.class)
+                .addStatement("return mShards.length")
+                .build());
+
+        mExecutorBuilder.addMethod(MethodSpec.methodBuilder("getShardDepth")
+                .addJavadoc("Returns the number of pending calls of the given shard.\n")
+                .addModifiers(Modifier.PUBLIC)
+                .returns(int.class)
+                .addParameter(int.class, "shard")
+                .addStatement("return mShardDepth.get(shard)")
+                .build());
+
+        // spread the high bits, hashCode() of many keys differs only in the high bits
+        mExecutorBuilder.addMethod(MethodSpec.methodBuilder("_shardOf")
+                .addModifiers(Modifier.PRIVATE)
+                .returns(int.class)
+                .addParameter(int.class, "hash")
+                .addStatement("hash ^= (hash >>> 16)")
+                .addStatement("return (hash & 0x7fffffff) % mShards.length")
+                .build());
+
+        return mExecutorBuilder;
+    }
+
+    // _sendMessage(int what, Object args), or _sendMessage(int shard, int what, Object args)
+    @Override
+    protected MethodSpec generate_sendMessage() {
+        MethodSpec.Builder builder = MethodSpec.methodBuilder("_sendMessage")
+                .addModifiers(Modifier.PRIVATE);
+
+        if (isSharded()) {
+            return builder.addParameter(int.class, "shard")
+                    .addParameter(int.class, "what")
+                    .addParameter(Object.class, "args")
+                    .addStatement("mShardDepth.incrementAndGet(shard)")
+                    .beginControlFlow("if (!mShards[shard].sendMessage(mShards[shard].obtainMessage(what, args)))")
+                    .addStatement("mShardDepth.decrementAndGet(shard)")
+                    .addCode(getDropArgsStatement("what", "args"))
+                    .endControlFlow()
+                    .build();
+        }
+
+        builder.addParameter(int.class, "what")
+                .addParameter(Object.class, "args");
+
+        if (isActor()) {
+            if (hasFutureMethod()) {
+                builder.beginControlFlow("if (!send(what, args))")
+                        .addStatement("_dropArgs(what, args)")
+                        .endControlFlow();
+                return builder.build();
+            }
+
+            builder.addStatement("send(what, args)");
+            return builder.build();
+        }
+
+        builder.addStatement("$T task = new $T(what, args)", mTaskType, mTaskType);
+
+        implement_sendMessageStatement(builder, "task");
+
+        return builder.build();
+    }
+
+    @Override
+    public void implement_sendMessageStatement(MethodSpec.Builder builder, String argName) {
+        if (isSerial()) {
+            builder.addStatement("mTasks.offer($N)", argName)
+                    .beginControlFlow("if (mTaskCount.getAndIncrement() == 0)")
+                    .addStatement("mExecutor.execute(mDrainer)")
+                    .endControlFlow();
+            return;
+        }
+
+        builder.addStatement("mExecutor.execute($N)", argName);
+    }
+
+    @Override
+    protected void implementMethodStatement(MethodSpec.Builder builder, Pair<String, ExecutableElement> methodPair) {
+        ExecutableElement methodElement = methodPair.getValue();
+        List<? extends VariableElement> parameters = methodElement.getParameters();
+        boolean future = returnsFuture(methodElement);
+
+        if (future) {
+            addNewFutureStatement(builder, methodElement);
+        }
+
+        // the future of the call after detached is cancelled
+        builder.beginControlFlow("if (isDetached())");
+        if (future) {
+            builder.addStatement("future.cancel(false)")
+                    .addStatement("return future");
+        } else {
+            builder.addStatement("return");
+        }
+        builder.endControlFlow();
+
+        String shard = isSharded() ? getShardExpression(methodElement) + ", " : "";
+
+        if (!hasArgs(methodElement)) {
+            builder.addStatement("_sendMessage($L$N, null)", shard, methodPair.getKey());
+            return;
+        }
+
+        ClassName argsType = getArgsClassName(methodPair);
+
+        builder.addStatement("$T args = new $T()", argsType, argsType);
+        for (int i = 0; i < parameters.size(); i++) {
+            builder.addStatement("args.arg$L = $N", i, parameters.get(i).getSimpleName().toString());
+        }
+
+        if (future) {
+            builder.addStatement("args.future = future");
+        }
+
+        builder.addStatement("_sendMessage($L$N, args)", shard, methodPair.getKey());
+
+        if (future) {
+            builder.addStatement("return future");
+        }
+    }
+
+    // the same as hashCode() of the boxed key, the first shard if no @ShardKey
+    private String getShardExpression(ExecutableElement methodElement) {
+        VariableElement shardKey = getShardKey(methodElement);
+        if (shardKey == null) {
+            return "0";
+        }
+
+        String name = shardKey.getSimpleName().toString();
+        String hash;
+        switch (shardKey.asType().getKind()) {
+            case BYTE:
+            case SHORT:
+            case CHAR:
+            case INT:
+                hash = name;
+                break;
+            case LONG:
+                hash = "(int) (" + name + " ^ (" + name + " >>> 32))";
+                break;
+            case FLOAT:
+                hash = "Float.floatToIntBits(" + name + ")";
+                break;
+            case DOUBLE:
+                hash = "Double.valueOf(" + name + ").hashCode()";
+                break;
+            case BOOLEAN:
+                hash = name + " ? 1231 : 1237";
+                break;
+            default:
+                hash = name + " == null ? 0 : " + name + ".hashCode()";
+        }
+
+        return "_shardOf(" + hash + ")";
+    }
+
+    // paramName is the name of Task parameter, or null if the what and args are parameters
+    @Override
+    protected void implement_handleMessageStatement(MethodSpec.Builder builder, TypeElement interfaceElement, String paramName) {
+        String what = paramName == null ? "what" : paramName + ".what";
+        String args = paramName == null ? "args" : paramName + ".args";
+
+        builder.addStatement("$T receiver = ($T)mReceiverWeakRef.get()", interfaceElement, interfaceElement);
+
+        builder.beginControlFlow("if (receiver == null)")
+                .beginControlFlow("if (!mDetached)")
+                .addStatement("_detach()")
+                .endControlFlow()
+                .addCode(getDropArgsStatement(what, args))
+                .addStatement("return")
+                .endControlFlow();
+
+        builder.beginControlFlow("switch ($L)", what);
+
+        StringBuilder buff = new StringBuilder();
+        for (Pair<String, ExecutableElement> pair : getInterfaceMethodPairs()) {
+            buff.delete(0, buff.length());
+
+            builder.addCode("case $N:\n", pair.getKey());
+
+            List<? extends VariableElement> parameters = pair.getValue().getParameters();
+
+            if (!hasArgs(pair.getValue())) {
+                builder.addStatement("receiver.$N()", pair.getValue().getSimpleName());
+            } else {
+                ClassName argsType = getArgsClassName(pair);
+                String varArgs = getArgsVarName(argsType);
+
+                builder.addStatement("$T $N = ($T)$L", argsType, varArgs, argsType, args);
+
+                buff.append("receiver.")
+                        .append(pair.getValue().getSimpleName())
+                        .append("(");
+
+                extractParamList(parameters, varArgs, buff);
+
+                buff.append(")");
+
+                if (returnsFuture(pair.getValue())) {
+                    addFutureDispatchStatement(builder, buff.toString(), varArgs + ".future");
+                } else {
+                    builder.addStatement(buff.toString());
+                }
+            }
+
+            builder.addStatement("break");
+        }
+
+        builder.endControlFlow();
+    }
+
+    // the future of the discarded call is cancelled, nothing if no method returns future
+    private CodeBlock getDropArgsStatement(String what, String args) {
+        if (!hasFutureMethod()) {
+            return CodeBlock.of("");
+        }
+        return CodeBlock.builder().addStatement("_dropArgs($L, $L)", what, args).build();
+    }
+
+    // Constructor:
+    // 1. (Executor executor, Receiver receiver)
+    // 2. (MailboxThread mailboxThread, Receiver receiver) for actor target
+    // 3. (Receiver receiver) for sharded target
+    @Override
+    protected void generateHandlerConstructors(TypeSpec.Builder receiverBuilder, TypeElement interfaceElement) {
+        if (isSharded()) {
+            int shards = interfaceElement.getAnnotation(Handler.class).shards();
+
+            MethodSpec.Builder builder = MethodSpec.constructorBuilder()
+                    .addModifiers(Modifier.PUBLIC)
+                    .addParameter(TypeName.get(interfaceElement.asType()), "receiver")
+                    .addStatement("mReceiverWeakRef = new $T(receiver)", WeakReference.class);
+
+            if (shards > 0) {
+                builder.addStatement("int shardCount = $L", shards);
+            } else {
+                builder.addStatement("int shardCount = Runtime.getRuntime().availableProcessors()");
+            }
+
+            receiverBuilder.addMethod(builder.addStatement("mThreads = new $T[shardCount]", mHandlerThreadType)
+                    .addStatement("mShards = new $T[shardCount]", mShardType)
+                    .addStatement("mShardDepth = new $T(shardCount)", AtomicIntegerArray.class)
+                    .beginControlFlow("for (int i = 0; i < shardCount; i++)")
+                    .addStatement("mThreads[i] = new $T($S + i)", mHandlerThreadType, interfaceElement.getSimpleName() + "-shard-")
+                    .addStatement("mThreads[i].start()")
+                    .addStatement("mShards[i] = new $T(mThreads[i].getLooper(), i)", mShardType)
+                    .endControlFlow()
+                    .build());
+            return;
+        }
+
+        if (isActor()) {
+            receiverBuilder.addMethod(MethodSpec.constructorBuilder()
+                    .addModifiers(Modifier.PUBLIC)
+                    .addParameter(mMailboxThreadType, "mailboxThread")
+                    .addParameter(TypeName.get(interfaceElement.asType()), "receiver")
+                    .addStatement("super(mailboxThread)")
+                    .addStatement("mReceiverWeakRef = new $T(receiver)", WeakReference.class)
+                    .build());
+            return;
+        }
+
+        receiverBuilder.addMethod(MethodSpec.constructorBuilder()
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(Executor.class, "executor")
+                .addParameter(TypeName.get(interfaceElement.asType()), "receiver")
+                .addStatement("mExecutor = executor")
+                .addStatement("mReceiverWeakRef = new $T(receiver)", WeakReference.class)
+                .build());
+    }
+
+    private boolean isSerial() {
+        return mInterfaceElement.getAnnotation(Handler.class).target() == Handler.SERIAL_EXECUTOR;
+    }
+
+    private boolean isSharded() {
+        return mInterfaceElement.getAnnotation(Handler.class).target() == Handler.SHARDED;
+    }
+
+    private boolean isActor() {
+        return mInterfaceElement.getAnnotation(Handler.class).target() == Handler.ACTOR;
+    }
+
+    private TypeSpec generateTaskClass() {
+        return TypeSpec.classBuilder(mTaskType.simpleName())
+                .addModifiers(Modifier.PRIVATE, Modifier.FINAL)
+                .addSuperinterface(Runnable.class)
+                .addField(int.class, "what", Modifier.FINAL)
+                .addField(Object.class, "args", Modifier.FINAL)
+                .addMethod(MethodSpec.constructorBuilder()
+                        .addParameter(int.class, "what")
+                        .addParameter(Object.class, "args")
+                        .addStatement("this.what = what")
+                        .addStatement("this.args = args")
+                        .build())
+                .addMethod(MethodSpec.methodBuilder("run")
+                        .addAnnotation(Override.class)
+                        .addModifiers(Modifier.PUBLIC)
+                        .addStatement("_dispatch(this)")
+                        .build())
+                .build();
+    }
+
+    // SERIAL_EXECUTOR:
+    // mTaskCount is the number of queued tasks, the caller that increases it from 0 schedules
+    // mDrainer, so there is at most one mDrainer running, and the tasks run in the order of calls.
+    // mDrainer yields the Executor thread after DRAIN_BATCH_SIZE tasks by rescheduling itself, and
+    // also reschedules itself before the exception of receiver is thrown to Executor.
+    private void generateSerial(TypeSpec.Builder builder) {
+        ParameterizedTypeName queueType = ParameterizedTypeName.get(ClassName.get(ConcurrentLinkedQueue.class), mTaskType);
+
+        builder.addField(FieldSpec.builder(int.class, "DRAIN_BATCH_SIZE", Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                .initializer("$L", DRAIN_BATCH_SIZE)
+                .build());
+        builder.addField(FieldSpec.builder(queueType, "mTasks", Modifier.PRIVATE, Modifier.FINAL)
+                .initializer("new $T()", queueType)
+                .build());
+        builder.addField(FieldSpec.builder(AtomicInteger.class, "mTaskCount", Modifier.PRIVATE, Modifier.FINAL)
+                .initializer("new $T()", AtomicInteger.class)
+                .build());
+        builder.addField(FieldSpec.builder(Runnable.class, "mDrainer", Modifier.PRIVATE, Modifier.FINAL)
+                .initializer("$L", TypeSpec.anonymousClassBuilder("")
+                        .addSuperinterface(Runnable.class)
+                        .addMethod(MethodSpec.methodBuilder("run")
+                                .addAnnotation(Override.class)
+                                .addModifiers(Modifier.PUBLIC)
+                                .addStatement("_drain()")
+                                .build())
+                        .build())
+                .build());
+
+        builder.addMethod(MethodSpec.methodBuilder("_drain")
+                .addModifiers(Modifier.PRIVATE)
+                .beginControlFlow("for (int count = 1; ; count++)")
+                .addStatement("$T task = mTasks.poll()", mTaskType)
+                .addStatement("boolean completed = false")
+                .beginControlFlow("try")
+                .addStatement("task.run()")
+                .addStatement("completed = true")
+                .nextControlFlow("finally")
+                .beginControlFlow("if (!completed && mTaskCount.decrementAndGet() != 0)")
+                .addStatement("mExecutor.execute(mDrainer)")
+                .endControlFlow()
+                .endControlFlow()
+                .beginControlFlow("if (mTaskCount.decrementAndGet() == 0)")
+                .addStatement("return")
+                .endControlFlow()
+                .beginControlFlow("if (count >= DRAIN_BATCH_SIZE)")
+                .addStatement("mExecutor.execute(mDrainer)")
+                .addStatement("return")
+                .endControlFlow()
+                .endControlFlow()
+                .build());
+    }
+
+    private void checkInterface() {
+        Handler handler = mInterfaceElement.getAnnotation(Handler.class);
+
+        if (handler.async() || handler.directCall() || handler.fanOut() || handler.stats() || handler.trace()) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR,
+                    "async, directCall, fanOut, stats and trace are not supported by executor, actor and sharded target.",
+                    mInterfaceElement);
+        }
+
+        if (handler.shards() < 0) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, "shards must not be negative.", mInterfaceElement);
+        }
+
+        if (mInterfaceElement.getAnnotation(Bounded.class) != null) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, "@Bounded is not supported by executor, actor and sharded target.", mInterfaceElement);
+        }
+    }
+
+    // the dispatch options of Looper target
+    private void checkMethod(ExecutableElement methodElement) {
+        checkUnsupportedAnnotation(methodElement, Coalesce.class);
+        checkUnsupportedAnnotation(methodElement, Throttle.class);
+        checkUnsupportedAnnotation(methodElement, Debounce.class);
+        checkUnsupportedAnnotation(methodElement, Async.class);
+        checkUnsupportedAnnotation(methodElement, Batch.class);
+        checkUnsupportedAnnotation(methodElement, Priority.class);
+        checkUnsupportedAnnotation(methodElement, Bounded.class);
+        checkUnsupportedAnnotation(methodElement, Unordered.class);
+
+        if (!isSharded()) {
+            checkShardKeyUnsupported(methodElement);
+            return;
+        }
+
+        int count = 0;
+        for (VariableElement param : methodElement.getParameters()) {
+            if (param.getAnnotation(ShardKey.class) == null) {
+                continue;
+            }
+
+            count++;
+            if (param.asType().getKind() == TypeKind.ARRAY) {
+                mMessager.printMessage(Diagnostic.Kind.ERROR, "@ShardKey can not be array.", param);
+            }
+        }
+
+        if (count > 1) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, "at most one parameter can be annotated with @ShardKey.", methodElement);
+        }
+    }
+
+    private void checkUnsupportedAnnotation(ExecutableElement methodElement, Class<? extends Annotation> annotationType) {
+        if (methodElement.getAnnotation(annotationType) != null) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR,
+                    "@" + annotationType.getSimpleName() + " is not supported by executor, actor and sharded target.",
+                    methodElement);
+        }
+    }
+}
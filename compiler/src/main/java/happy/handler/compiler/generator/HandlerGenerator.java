@@ -23,24 +23,131 @@
  */
 package happy.handler.compiler.generator;
 
+import com.squareup.javapoet.ArrayTypeName;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.FieldSpec;
 import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.TypeName;
+import com.squareup.javapoet.TypeSpec;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
 
+import javax.annotation.processing.Messager;
 import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.Element;
 import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
 import javax.lang.model.element.TypeElement;
 import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
 
+import happy.handler.Async;
+import happy.handler.Batch;
+import happy.handler.Bounded;
+import happy.handler.Coalesce;
+import happy.handler.Debounce;
+import happy.handler.Handler;
+import happy.handler.Priority;
+import happy.handler.Throttle;
+import happy.handler.Unordered;
 import javafx.util.Pair;
 
 /**
  * Generate Handler Source File
+ * <p>
+ * The arguments of a method are carried by a static nested class (for example: Method1Args) that
+ * generated for every method which has parameters. The instances of these classes are pooled
+ * and recycled after dispatch, so a call does not allocate in steady state.
  */
 public class HandlerGenerator extends AbstractGenerator {
+    private Elements mElements;
+    private Types mTypes;
+    private Messager mMessager;
+
+    private TypeElement mInterfaceElement;
+
+    private ClassName mMessageType = ClassName.get("android.os", "Message");    // android.os.Message
+    private ClassName mBuildType = ClassName.get("android.os", "Build");              // android.os.Build
+    private ClassName mSystemClockType = ClassName.get("android.os", "SystemClock"); // android.os.SystemClock
+    private ClassName mListType = ClassName.get("java.util", "List");           // java.util.List
+    private ClassName mArrayListType = ClassName.get("java.util", "ArrayList"); // java.util.ArrayList
+    private ClassName mArrayDequeType = ClassName.get("java.util", "ArrayDeque"); // java.util.ArrayDeque
+    private ClassName mLooperType = ClassName.get("android.os", "Looper");      // android.os.Looper
+
     public HandlerGenerator(ProcessingEnvironment processingEnv) {
         super(processingEnv);
+
+        mElements = processingEnv.getElementUtils();
+        mTypes = processingEnv.getTypeUtils();
+        mMessager = processingEnv.getMessager();
+    }
+
+    @Override
+    public TypeSpec generate(String className, TypeElement interfaceElement) {
+        mInterfaceElement = interfaceElement;
+
+        TypeSpec.Builder handlerBuilder = super.generate(className, interfaceElement).toBuilder();
+
+        // Inner class: MethodNArgs
+        for (Pair<String, ExecutableElement> methodPair : getInterfaceMethodPairs()) {
+            if (hasArgs(methodPair.getValue()) && !isBatch(methodPair.getValue())) {
+                handlerBuilder.addType(generateArgsClass(methodPair, true));
+            }
+        }
+
+        if (hasFutureMethod()) {
+            generateFuture(handlerBuilder);
+        }
+
+        if (hasDroppableArgs()) {
+            generateDropArgs(handlerBuilder, getDroppableMethodPairs(), true);
+        }
+
+        if (hasCoalesceMethod()) {
+            generateCoalesce(handlerBuilder);
+        }
+
+        if (hasBatchMethod()) {
+            generateBatch(handlerBuilder);
+        }
+
+        if (hasPriorityMethod()) {
+            generatePriority(handlerBuilder);
+        }
+
+        if (hasAsyncMethod()) {
+            generateAsync(handlerBuilder);
+        }
+
+        if (hasBoundedMethod()) {
+            generateBounded(handlerBuilder);
+        }
+
+        if (isPendingCounted()) {
+            generatePendingCount(handlerBuilder);
+        }
+
+        if (isDirectCallEnabled()) {
+            generateDirectCall(handlerBuilder);
+        }
+
+        if (hasUnorderedMethod()) {
+            generateUnordered(handlerBuilder);
+        }
+
+        return handlerBuilder.build();
     }
 
     @Override
@@ -48,82 +155,1697 @@ public class HandlerGenerator extends AbstractGenerator {
         builder.addStatement("sendMessage($N)", argName);
     }
 
+    // the future of the pending call is cancelled by handleMessage() after detached, the fan-out
+    // Handler has no future method, and its pending messages are removed
+    @Override
+    protected boolean isDiscardedOnDispatch() {
+        return hasFutureMethod();
+    }
+
+    // the methods whose args is passed in Message.obj, mBoundedQueues or mCoalesceArgs
+    private List<Pair<String, ExecutableElement>> getDroppableMethodPairs() {
+        List<Pair<String, ExecutableElement>> methodPairs = new ArrayList<>();
+        for (Pair<String, ExecutableElement> methodPair : getInterfaceMethodPairs()) {
+            ExecutableElement methodElement = methodPair.getValue();
+            if (hasArgs(methodElement) && !isBatch(methodElement) && !isUnordered(methodElement)) {
+                methodPairs.add(methodPair);
+            }
+        }
+
+        return methodPairs;
+    }
+
+    private boolean hasDroppableArgs() {
+        return !getDroppableMethodPairs().isEmpty();
+    }
+
+    @Override
+    protected boolean isStatsEnabled() {
+        return mInterfaceElement.getAnnotation(Handler.class).stats();
+    }
+
+    @Override
+    protected boolean isTraceEnabled() {
+        return mInterfaceElement.getAnnotation(Handler.class).trace();
+    }
+
+    @Override
+    protected void implement_statsCountStatement(MethodSpec.Builder builder) {
+        builder.addStatement("int pending = getPendingCount(methodId)")
+                .addStatement("long dropped = 0");
+
+        if (hasCoalesceMethod()) {
+            builder.addStatement("dropped += getDroppedCount(methodId)");
+        }
+
+        if (hasBoundedMethod()) {
+            builder.addStatement("dropped += getOverflowCount(methodId)");
+        }
+    }
+
+    @Override
+    protected void checkMethodReturnType(ExecutableElement element) {
+        // @Bounded(overflow = Bounded.RETURN_FALSE) method can return boolean
+        if (element.getReturnType().getKind() == TypeKind.BOOLEAN && getOverflow(element) == Bounded.RETURN_FALSE) {
+            return;
+        }
+
+        if (returnsFuture(element) && isBatch(element)) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, "@Batch method must return void.", element);
+            return;
+        }
+
+        if (returnsFuture(element) && isFanOut()) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, "fanOut can not be used with the method that returns CompletableFuture.", element);
+            return;
+        }
+
+        super.checkMethodReturnType(element);
+    }
+
     @Override
     protected void implementMethodStatement(MethodSpec.Builder builder, Pair<String, ExecutableElement> methodPair) {
         ExecutableElement methodElement = methodPair.getValue();
         List<? extends VariableElement> parameters = methodElement.getParameters();
+        String methodId = methodPair.getKey();
+
+        checkShardKeyUnsupported(methodElement);
+
+        if (returnsFuture(methodElement)) {
+            addNewFutureStatement(builder, methodElement);
+        }
+
+        builder.beginControlFlow("if (isDetached())");
+        addReturnStatement(builder, methodElement, false);
+        builder.endControlFlow();
+
+        if (isStatsEnabled()) {
+            builder.addStatement("_recordCall($N)", methodId);
+        }
+
+        if (isUnordered(methodElement)) {
+            implementUnorderedMethodStatement(builder, methodPair);
+            return;
+        }
+
+        if (isBatch(methodElement)) {
+            implementBatchMethodStatement(builder, methodPair);
+            return;
+        }
+
+        if (isDirectCall(methodElement)) {
+            implementDirectCallStatement(builder, methodPair);
+        }
+
+        Bounded bounded = getBounded(methodElement);
+        int overflow = getOverflow(methodElement);
+
+        if (bounded != null && overflow != Bounded.DROP_OLDEST) {
+            if (overflow == Bounded.BLOCK) {
+                builder.beginControlFlow("if (!_acquirePending($N, $L, $LL))", methodId, bounded.value(), bounded.timeout());
+            } else {
+                builder.beginControlFlow("if (!_tryAcquirePending($N, $L))", methodId, bounded.value());
+            }
+
+            builder.addStatement("mOverflowCount.incrementAndGet($N)", methodId);
+            addReturnStatement(builder, methodElement, false);
+            builder.endControlFlow();
+        }
+
+        ClassName argsType = null;
+        if (hasArgs(methodElement)) {
+            argsType = getArgsClassName(methodPair);
+
+            builder.addStatement("$T args = $T.obtain()", argsType, argsType);
+            for (int i = 0; i < parameters.size(); i++) {
+                builder.addStatement("args.arg$L = $N", i, parameters.get(i).getSimpleName().toString());
+            }
+
+            if (returnsFuture(methodElement)) {
+                builder.addStatement("args.future = future");
+            }
+        }
+
+        // the call is queued, and the oldest call is dropped instead
+        if (overflow == Bounded.DROP_OLDEST) {
+            builder.addStatement("$T dropped = ($T)_offerOldest($N, args, $L)", argsType, argsType, methodId, bounded.value())
+                    .beginControlFlow("if (dropped != null)");
+
+            if (returnsFuture(methodElement)) {
+                builder.addStatement("dropped.future.cancel(false)");
+            }
+
+            builder.addStatement("dropped.recycle()")
+                    .addStatement("mOverflowCount.incrementAndGet($N)", methodId);
+            addReturnStatement(builder, methodElement, true);
+            builder.endControlFlow();
+        }
 
         builder.addStatement("android.os.Message message = android.os.Message.obtain()");
-        builder.addStatement("message.what = $N", methodPair.getKey());
+        builder.addStatement("message.what = $N", methodId);
 
-        if (parameters.size() == 0) {
-            builder.addStatement("_sendMessage(message)");
+        if (isAsync(methodElement)) {
+            builder.addStatement("_setAsynchronous(message)");
+        }
+
+        // the args of DROP_OLDEST method is queued by _offerOldest(), and the args of coalesce
+        // method is kept by _sendCoalesceMessage()
+        if (argsType != null && overflow != Bounded.DROP_OLDEST && !isCoalesce(methodElement)) {
+            builder.addStatement("message.obj = args");
+        }
+
+        if (isCoalesce(methodElement)) {
+            checkCoalesceMethod(methodElement);
+
+            Throttle throttle = methodElement.getAnnotation(Throttle.class);
+            Debounce debounce = methodElement.getAnnotation(Debounce.class);
+
+            if (hasCoalesceArgs()) {
+                builder.addStatement("_sendCoalesceMessage(message, $L, $LL, $LL)",
+                        argsType != null ? "args" : "null",
+                        throttle == null ? 0 : throttle.value(),
+                        debounce == null ? 0 : debounce.value());
+            } else {
+                builder.addStatement("_sendCoalesceMessage(message, $LL, $LL)",
+                        throttle == null ? 0 : throttle.value(),
+                        debounce == null ? 0 : debounce.value());
+            }
+
+            if (returnTypeNotVoid(methodElement)) {
+                addReturnStatement(builder, methodElement, true);
+            }
             return;
         }
 
-        builder.addStatement("$T args = new $T()", List.class, ArrayList.class);
-        for (VariableElement param : parameters) {
-            builder.addStatement("args.add($N)", param.getSimpleName().toString());
+        // the pending call of @Bounded method is counted by _tryAcquirePending(), _acquirePending()
+        // or _offerOldest()
+        if (isPendingCounted() && bounded == null) {
+            builder.addStatement("_incrementPending($N)", methodId);
+        }
+
+        if (hasPriorityMethod()) {
+            builder.addStatement("_sendLaneMessage(message, $T.$L)", Priority.class, getLaneName(getLane(methodElement)));
+        } else {
+            builder.addStatement("_sendMessage(message)");
+        }
+
+        if (returnTypeNotVoid(methodElement)) {
+            addReturnStatement(builder, methodElement, true);
+        }
+    }
+
+    // "return" or "return true/false" if the method returns boolean, or "return future" if the
+    // method returns CompletableFuture, the future of rejected call is cancelled
+    private void addReturnStatement(MethodSpec.Builder builder, ExecutableElement methodElement, boolean value) {
+        if (returnsFuture(methodElement)) {
+            if (!value) {
+                builder.addStatement("future.cancel(false)");
+            }
+            builder.addStatement("return future");
+        } else if (returnTypeNotVoid(methodElement)) {
+            builder.addStatement("return $L", value);
+        } else {
+            builder.addStatement("return");
+        }
+    }
+
+    @Override
+    protected void implement_detachStatement(MethodSpec.Builder builder) {
+        if (hasCoalesceArgs()) {
+            builder.addStatement("Object[] coalesceArgs")
+                    .beginControlFlow("synchronized (mCoalesceLock)")
+                    .addStatement("$T.fill(mCoalesceSeq, 0)", Arrays.class)
+                    .addStatement("coalesceArgs = mCoalesceArgs.clone()")
+                    .addStatement("$T.fill(mCoalesceArgs, null)", Arrays.class)
+                    .endControlFlow()
+                    .beginControlFlow("for (int i = 0; i < coalesceArgs.length; i++)")
+                    .addStatement("_dropArgs(i, coalesceArgs[i])")
+                    .endControlFlow();
+        } else if (hasCoalesceMethod()) {
+            builder.beginControlFlow("synchronized (mCoalesceLock)")
+                    .addStatement("$T.fill(mCoalesceSeq, 0)", Arrays.class)
+                    .endControlFlow();
+        }
+
+        if (hasBatchMethod()) {
+            builder.beginControlFlow("synchronized (mBatchLock)")
+                    .addStatement("$T.fill(mBatches, null)", Arrays.class)
+                    .endControlFlow();
+        }
+
+        if (hasPriorityMethod()) {
+            builder.beginControlFlow("for (int i = 0; i < mLaneDepth.length(); i++)")
+                    .addStatement("mLaneDepth.set(i, 0)")
+                    .endControlFlow();
+        }
+
+        if (isPendingCounted()) {
+            builder.addStatement("mPendingCount.set(0)")
+                    .beginControlFlow("for (int i = 0; i < mMethodPendingCount.length(); i++)")
+                    .addStatement("mMethodPendingCount.set(i, 0)")
+                    .endControlFlow();
         }
 
-        builder.addStatement("message.obj = args")
-                .addStatement("_sendMessage(message)");
+        // wake up the blocked callers after the pending counts are reset
+        if (hasOverflow(Bounded.BLOCK) || hasOverflow(Bounded.DROP_OLDEST)) {
+            if (hasOverflow(Bounded.DROP_OLDEST)) {
+                builder.addStatement("$T[] boundedQueues", mArrayDequeType);
+            }
+
+            builder.beginControlFlow("synchronized (mBoundedLock)");
+
+            if (hasOverflow(Bounded.DROP_OLDEST)) {
+                builder.addStatement("boundedQueues = mBoundedQueues.clone()")
+                        .addStatement("$T.fill(mBoundedQueues, null)", Arrays.class);
+            }
+
+            if (hasOverflow(Bounded.BLOCK)) {
+                builder.addStatement("mBoundedLock.notifyAll()");
+            }
+
+            builder.endControlFlow();
+
+            // the queued args are dropped out of the lock, the futures may run the callbacks
+            if (hasOverflow(Bounded.DROP_OLDEST)) {
+                builder.beginControlFlow("for (int i = 0; i < boundedQueues.length; i++)")
+                        .beginControlFlow("if (boundedQueues[i] == null)")
+                        .addStatement("continue")
+                        .endControlFlow()
+                        .beginControlFlow("for (Object args : boundedQueues[i])")
+                        .addStatement("_dropArgs(i, args)")
+                        .endControlFlow()
+                        .endControlFlow();
+            }
+        }
     }
 
+    // the message is discarded if there is no receiver, the lane depth is reset by _detach(), so it
+    // is only decreased for the dispatched message
     @Override
     protected void implement_handleMessageStatement(MethodSpec.Builder builder, TypeElement interfaceElement, String paramName) {
-        builder.addStatement("$T receiver = ($T)mReceiverWeakRef.get()", interfaceElement, interfaceElement);
+        if (isFanOut()) {
+            builder.addStatement("$T[] receivers = mReceivers", WeakReference.class)
+                    .beginControlFlow("if (receivers.length == 0)")
+                    .addStatement("_pruneReceivers()");
+        } else {
+            builder.addStatement("$T receiver = ($T)mReceiverWeakRef.get()", interfaceElement, interfaceElement);
 
-        builder.beginControlFlow("if (receiver == null)")
-                .addStatement("return")
+            builder.beginControlFlow("if (receiver == null)")
+                    .beginControlFlow("if (!mDetached)")
+                    .addStatement("_detach()")
+                    .endControlFlow();
+        }
+
+        if (hasDroppableArgs()) {
+            builder.addStatement("_dropArgs($N.what, $N.obj)", paramName, paramName);
+        }
+
+        builder.addStatement("return")
                 .endControlFlow();
 
-        builder.addStatement("java.util.List args = (java.util.ArrayList)$N.obj", paramName)
-                .beginControlFlow("switch ($N.what)", paramName);
+        if (isFanOut()) {
+            builder.addStatement("boolean dead = false");
+        }
+
+        if (hasPriorityMethod()) {
+            builder.beginControlFlow("if (METHOD_LANES[$N.what] >= 0)", paramName)
+                    .addStatement("mLaneDepth.decrementAndGet(METHOD_LANES[$N.what])", paramName)
+                    .endControlFlow();
+        }
+
+        if (isDirectCallEnabled()) {
+            builder.addStatement("mDispatching = true")
+                    .beginControlFlow("try");
+        }
+
+        builder.beginControlFlow("switch ($N.what)", paramName);
 
         StringBuilder buff = new StringBuilder();
         for (Pair<String, ExecutableElement> pair : getInterfaceMethodPairs()) {
             buff.delete(0, buff.length());
 
+            // dispatched by _dispatchUnordered()
+            if (isUnordered(pair.getValue())) {
+                continue;
+            }
+
             builder.addCode("case $N:\n", pair.getKey());
 
+            if (isBatch(pair.getValue())) {
+                implementBatchCaseStatement(builder, pair, paramName);
+                builder.addStatement("break");
+                continue;
+            }
+
             List<? extends VariableElement> parameters = pair.getValue().getParameters();
+            int overflow = getOverflow(pair.getValue());
+
+            if (isPendingCounted() && !isCoalesce(pair.getValue())) {
+                if (overflow == Bounded.BLOCK) {
+                    builder.addStatement("_releasePending($N.what)", paramName);
+                } else if (overflow != Bounded.DROP_OLDEST) {
+                    builder.addStatement("_decrementPending($N.what)", paramName);
+                }
+            }
 
-            if (parameters.size() < 1) {
-                builder.addStatement("receiver.$N()", pair.getValue().getSimpleName())
-                        .addStatement("$N.recycle()", paramName);
+            if (!hasArgs(pair.getValue())) {
+                if (isCoalesce(pair.getValue())) {
+                    builder.beginControlFlow("if (!_takeCoalesceMessage($N))", paramName)
+                            .addStatement("break")
+                            .endControlFlow();
+                }
+
+                addDispatchStartStatement(builder, pair.getKey());
+                addReceiverCallStatement(builder, pair.getValue().getSimpleName() + "()");
+                addDispatchEndStatement(builder, pair.getKey(), paramName);
             } else {
-                buff.append("receiver.")
-                        .append(pair.getValue().getSimpleName())
+                ClassName argsType = getArgsClassName(pair);
+                String varArgs = getArgsVarName(argsType);
+
+                // the outdated coalesce message has no args, _takeCoalesceMessage() passes the
+                // args of the latest call in Message.obj
+                if (isCoalesce(pair.getValue())) {
+                    builder.beginControlFlow("if (!_takeCoalesceMessage($N))", paramName)
+                            .addStatement("break")
+                            .endControlFlow();
+                }
+
+                if (overflow == Bounded.DROP_OLDEST) {
+                    builder.addStatement("$T $N = ($T)_pollOldest($N.what)", argsType, varArgs, argsType, paramName)
+                            .beginControlFlow("if ($N == null)", varArgs)
+                            .addStatement("break")
+                            .endControlFlow();
+                } else {
+                    builder.addStatement("$T $N = ($T)$N.obj", argsType, varArgs, argsType, paramName);
+                }
+
+                buff.append(pair.getValue().getSimpleName())
                         .append("(");
 
-                extractParamList(parameters, buff);
+                extractParamList(parameters, varArgs, buff);
 
                 buff.append(")");
 
-                builder.addStatement(buff.toString())
-                        .addStatement("$N.recycle()", paramName);
+                addDispatchStartStatement(builder, pair.getKey());
+                if (returnsFuture(pair.getValue())) {
+                    addFutureDispatchStatement(builder, "receiver." + buff, varArgs + ".future");
+                } else {
+                    addReceiverCallStatement(builder, buff.toString());
+                }
+                addDispatchEndStatement(builder, pair.getKey(), paramName);
+                builder.addStatement("$N.recycle()", varArgs);
             }
 
             builder.addStatement("break");
         }
 
         builder.endControlFlow();
+
+        if (isDirectCallEnabled()) {
+            builder.nextControlFlow("finally")
+                    .addStatement("mDispatching = false")
+                    .endControlFlow();
+        }
+
+        if (isFanOut()) {
+            builder.beginControlFlow("if (dead)")
+                    .addStatement("_pruneReceivers()")
+                    .endControlFlow();
+        }
     }
 
-    private void extractParamList(List<? extends VariableElement> parameters, StringBuilder buff) {
-        for (int i = 0; i < parameters.size(); i++) {
-            buff.append("(");
+    // "receiver.call", or call every live receiver if fan-out, the "receivers" and "dead" are local
+    // variables
+    private void addReceiverCallStatement(MethodSpec.Builder builder, String call) {
+        if (!isFanOut()) {
+            builder.addStatement("receiver.$L", call);
+            return;
+        }
+
+        TypeName receiverType = TypeName.get(mInterfaceElement.asType());
 
-            buff.append(parameters.get(i).asType().toString());
+        builder.beginControlFlow("for ($T ref : receivers)", WeakReference.class)
+                .addStatement("$T receiver = ($T)ref.get()", receiverType, receiverType)
+                .beginControlFlow("if (receiver == null)")
+                .addStatement("dead = true")
+                .addStatement("continue")
+                .endControlFlow()
+                .addStatement("receiver.$L", call)
+                .endControlFlow();
+    }
 
-            buff.append(")args.get(")
-                    .append(i)
-                    .append(")");
+    // @Coalesce, @Throttle and @Debounce
+    private boolean isCoalesce(ExecutableElement methodElement) {
+        return methodElement.getAnnotation(Coalesce.class) != null ||
+                methodElement.getAnnotation(Throttle.class) != null ||
+                methodElement.getAnnotation(Debounce.class) != null;
+    }
 
-            if (i < parameters.size() - 1) {
-                buff.append(",");
+    private boolean hasCoalesceMethod() {
+        for (Pair<String, ExecutableElement> methodPair : getInterfaceMethodPairs()) {
+            if (isCoalesce(methodPair.getValue())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean hasCoalesceArgs() {
+        for (Pair<String, ExecutableElement> methodPair : getInterfaceMethodPairs()) {
+            if (isCoalesce(methodPair.getValue()) && hasArgs(methodPair.getValue())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void checkCoalesceMethod(ExecutableElement methodElement) {
+        Throttle throttle = methodElement.getAnnotation(Throttle.class);
+        Debounce debounce = methodElement.getAnnotation(Debounce.class);
+
+        int count = 0;
+        count += methodElement.getAnnotation(Coalesce.class) == null ? 0 : 1;
+        count += throttle == null ? 0 : 1;
+        count += debounce == null ? 0 : 1;
+
+        if (count > 1) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, "only one of @Coalesce, @Throttle and @Debounce can be used.", methodElement);
+        }
+
+        if ((throttle != null && throttle.value() <= 0) || (debounce != null && debounce.value() <= 0)) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, "the interval must be greater than 0.", methodElement);
+        }
+    }
+
+    // @Coalesce, @Throttle and @Debounce:
+    // mCoalesceSeq[methodId] is the sequence number(message.arg1) of the pending message, 0 means no
+    // pending message. A new call removes the pending message, and the message that already
+    // dequeued by Looper is discarded by _takeCoalesceMessage(), because of its sequence number
+    // is outdated. The args of the pending call is kept in mCoalesceArgs[methodId] instead of the
+    // message, so the replaced args is dropped(the future is cancelled) and recycled at once.
+    // 1. @Coalesce: the new message is sent immediately.
+    // 2. @Throttle: the new message keeps the delivery time of the pending message, if there is no
+    //    pending message, it is delivered at least "throttle" ms after the last delivery.
+    // 3. @Debounce: the new message is delayed "debounce" ms.
+    private void generateCoalesce(TypeSpec.Builder builder) {
+        builder.addField(FieldSpec.builder(Object.class, "mCoalesceLock", Modifier.PRIVATE, Modifier.FINAL)
+                .initializer("new $T()", Object.class)
+                .build());
+        builder.addField(FieldSpec.builder(int[].class, "mCoalesceSeq", Modifier.PRIVATE, Modifier.FINAL)
+                .initializer("new int[LAST_METHOD_ID + 1]")
+                .build());
+        builder.addField(FieldSpec.builder(long[].class, "mCoalesceTime", Modifier.PRIVATE, Modifier.FINAL)
+                .initializer("new long[LAST_METHOD_ID + 1]")
+                .build());
+        builder.addField(FieldSpec.builder(long[].class, "mLastDeliveryTime", Modifier.PRIVATE, Modifier.FINAL)
+                .initializer("new long[LAST_METHOD_ID + 1]")
+                .build());
+        builder.addField(FieldSpec.builder(long[].class, "mDroppedCount", Modifier.PRIVATE, Modifier.FINAL)
+                .initializer("new long[LAST_METHOD_ID + 1]")
+                .build());
+        builder.addField(int.class, "mLastCoalesceSeq", Modifier.PRIVATE);
+
+        boolean coalesceArgs = hasCoalesceArgs();
+        if (coalesceArgs) {
+            builder.addField(FieldSpec.builder(Object[].class, "mCoalesceArgs", Modifier.PRIVATE, Modifier.FINAL)
+                    .initializer("new Object[LAST_METHOD_ID + 1]")
+                    .build());
+        }
+
+        MethodSpec.Builder sendBuilder = MethodSpec.methodBuilder("_sendCoalesceMessage")
+                .addModifiers(Modifier.PRIVATE)
+                .addParameter(mMessageType, "message");
+
+        if (coalesceArgs) {
+            sendBuilder.addParameter(Object.class, "args");
+        }
+
+        sendBuilder.addParameter(long.class, "throttle")
+                .addParameter(long.class, "debounce")
+                .addStatement("long uptimeMillis = $T.uptimeMillis()", mSystemClockType);
+
+        // the args of the call that races with _detach() is dropped here, _detach() drops the args
+        // kept before it
+        if (coalesceArgs) {
+            sendBuilder.addStatement("boolean detached")
+                    .addStatement("Object dropped")
+                    .beginControlFlow("synchronized (mCoalesceLock)")
+                    .addStatement("detached = mDetached")
+                    .beginControlFlow("if (detached)")
+                    .addStatement("dropped = args")
+                    .nextControlFlow("else")
+                    .addStatement("dropped = mCoalesceArgs[message.what]")
+                    .addStatement("mCoalesceArgs[message.what] = args");
+        } else {
+            sendBuilder.beginControlFlow("synchronized (mCoalesceLock)");
+        }
+
+        sendBuilder.addStatement("boolean pending = mCoalesceSeq[message.what] != 0")
+                .beginControlFlow("if (pending)")
+                .addStatement("removeMessages(message.what)")
+                .addStatement("mDroppedCount[message.what]++");
+
+        if (isPendingCounted()) {
+            sendBuilder.nextControlFlow("else")
+                    .addStatement("_incrementPending(message.what)");
+        }
+
+        sendBuilder.endControlFlow()
+                .beginControlFlow("if (throttle > 0)")
+                .addStatement("uptimeMillis = pending ? mCoalesceTime[message.what] : " +
+                        "Math.max(uptimeMillis, mLastDeliveryTime[message.what] + throttle)")
+                .nextControlFlow("else")
+                .addStatement("uptimeMillis += debounce")
+                .endControlFlow()
+                .addStatement("mLastCoalesceSeq = (mLastCoalesceSeq == Integer.MAX_VALUE) ? 1 : mLastCoalesceSeq + 1")
+                .addStatement("message.arg1 = mLastCoalesceSeq")
+                .addStatement("mCoalesceSeq[message.what] = mLastCoalesceSeq")
+                .addStatement("mCoalesceTime[message.what] = uptimeMillis");
+
+        if (coalesceArgs) {
+            sendBuilder.endControlFlow()
+                    .endControlFlow()
+                    .addComment("the future of the replaced call may run the callbacks, so it is cancelled out of the lock")
+                    .addStatement("_dropArgs(message.what, dropped)")
+                    .beginControlFlow("if (detached)")
+                    .addStatement("message.recycle()")
+                    .addStatement("return")
+                    .endControlFlow();
+        } else {
+            sendBuilder.endControlFlow();
+        }
+
+        builder.addMethod(sendBuilder.beginControlFlow("if (throttle > 0 || debounce > 0)")
+                .addStatement("sendMessageAtTime(message, uptimeMillis)")
+                .nextControlFlow("else")
+                .addStatement("_sendMessage(message)")
+                .endControlFlow()
+                .build());
+
+        MethodSpec.Builder takeBuilder = MethodSpec.methodBuilder("_takeCoalesceMessage")
+                .addModifiers(Modifier.PRIVATE)
+                .returns(boolean.class)
+                .addParameter(mMessageType, "msg")
+                .beginControlFlow("synchronized (mCoalesceLock)")
+                .beginControlFlow("if (mCoalesceSeq[msg.what] != msg.arg1)")
+                .addStatement("return false")
+                .endControlFlow()
+                .addStatement("mCoalesceSeq[msg.what] = 0")
+                .addStatement("mLastDeliveryTime[msg.what] = $T.uptimeMillis()", mSystemClockType);
+
+        if (hasCoalesceArgs()) {
+            takeBuilder.addStatement("msg.obj = mCoalesceArgs[msg.what]")
+                    .addStatement("mCoalesceArgs[msg.what] = null");
+        }
+
+        if (isPendingCounted()) {
+            takeBuilder.addStatement("_decrementPending(msg.what)");
+        }
+
+        builder.addMethod(takeBuilder.addStatement("return true")
+                .endControlFlow()
+                .build());
+
+        builder.addMethod(MethodSpec.methodBuilder("getDroppedCount")
+                .addJavadoc("Returns the number of calls of the given {@code @Coalesce}, {@code @Throttle} or {@code @Debounce} method that replaced by a newer call.\n")
+                .addModifiers(Modifier.PUBLIC)
+                .returns(long.class)
+                .addParameter(int.class, "methodId")
+                .beginControlFlow("synchronized (mCoalesceLock)")
+                .addStatement("return mDroppedCount[methodId]")
+                .endControlFlow()
+                .build());
+    }
+
+    private boolean isBatch(ExecutableElement methodElement) {
+        return methodElement.getAnnotation(Batch.class) != null;
+    }
+
+    private boolean hasBatchMethod() {
+        for (Pair<String, ExecutableElement> methodPair : getInterfaceMethodPairs()) {
+            if (isBatch(methodPair.getValue())) {
+                return true;
             }
         }
+
+        return false;
+    }
+
+    // @Batch:
+    // mBatches[methodId] is the batch that being gathered. The first call of a batch schedules a
+    // window message(obj is mBatchWindowToken), and the full batch is sent as message.obj directly.
+    private void generateBatch(TypeSpec.Builder builder) {
+        builder.addField(FieldSpec.builder(Object.class, "mBatchLock", Modifier.PRIVATE, Modifier.FINAL)
+                .initializer("new $T()", Object.class)
+                .build());
+        builder.addField(FieldSpec.builder(Object.class, "mBatchWindowToken", Modifier.PRIVATE, Modifier.FINAL)
+                .initializer("new $T()", Object.class)
+                .build());
+        builder.addField(FieldSpec.builder(ArrayTypeName.of(mArrayListType), "mBatches", Modifier.PRIVATE, Modifier.FINAL)
+                .initializer("new $T[LAST_METHOD_ID + 1]", mArrayListType)
+                .build());
+
+        MethodSpec.Builder addToBatchBuilder = MethodSpec.methodBuilder("_addToBatch")
+                .addModifiers(Modifier.PRIVATE)
+                .addParameter(int.class, "what")
+                .addParameter(Object.class, "item")
+                .addParameter(long.class, "window")
+                .addParameter(int.class, "maxSize");
+
+        if (hasAsyncMethod()) {
+            addToBatchBuilder.addParameter(boolean.class, "async");
+        }
+
+        addToBatchBuilder.beginControlFlow("synchronized (mBatchLock)")
+                .addStatement("$T batch = mBatches[what]", mArrayListType)
+                .beginControlFlow("if (batch == null)")
+                .addStatement("batch = new $T()", mArrayListType)
+                .addStatement("mBatches[what] = batch");
+        if (isPendingCounted()) {
+            addToBatchBuilder.addStatement("_incrementPending(what)");
+        }
+        addToBatchBuilder
+                .addStatement("$T message = obtainMessage(what, mBatchWindowToken)", mMessageType);
+        addSetAsynchronousStatement(addToBatchBuilder);
+        addToBatchBuilder.addStatement("sendMessageDelayed(message, window)")
+                .endControlFlow()
+                .addStatement("batch.add(item)")
+                .beginControlFlow("if (batch.size() >= maxSize)")
+                .addStatement("removeMessages(what, mBatchWindowToken)")
+                .addStatement("mBatches[what] = null")
+                .addStatement("$T message = obtainMessage(what, batch)", mMessageType);
+        addSetAsynchronousStatement(addToBatchBuilder);
+        addToBatchBuilder.addStatement("_sendMessage(message)")
+                .endControlFlow()
+                .endControlFlow();
+
+        builder.addMethod(addToBatchBuilder.build());
+
+        MethodSpec.Builder takeBatchBuilder = MethodSpec.methodBuilder("_takeBatch")
+                .addModifiers(Modifier.PRIVATE)
+                .returns(mListType)
+                .addParameter(mMessageType, "msg")
+                .addStatement("$T batch", mListType)
+                .beginControlFlow("if (msg.obj != mBatchWindowToken)")
+                .addStatement("batch = ($T)msg.obj", mListType)
+                .nextControlFlow("else")
+                .beginControlFlow("synchronized (mBatchLock)")
+                .addStatement("batch = mBatches[msg.what]")
+                .addStatement("mBatches[msg.what] = null")
+                .endControlFlow()
+                .endControlFlow();
+
+        if (isPendingCounted()) {
+            takeBatchBuilder.beginControlFlow("if (batch != null)")
+                    .addStatement("_decrementPending(msg.what)")
+                    .endControlFlow();
+        }
+
+        builder.addMethod(takeBatchBuilder.addStatement("return batch").build());
+    }
+
+    private void implementBatchMethodStatement(MethodSpec.Builder builder, Pair<String, ExecutableElement> methodPair) {
+        ExecutableElement methodElement = methodPair.getValue();
+        Batch batch = methodElement.getAnnotation(Batch.class);
+
+        if (!checkBatchMethod(methodElement)) {
+            return;
+        }
+
+        String paramName = methodElement.getParameters().get(0).getSimpleName().toString();
+        long window = Math.max(batch.window(), 0);
+        int maxSize = Math.max(batch.maxSize(), 1);
+
+        if (hasAsyncMethod()) {
+            builder.addStatement("_addToBatch($N, $N, $LL, $L, $L)",
+                    methodPair.getKey(), paramName, window, maxSize, isAsync(methodElement));
+            return;
+        }
+
+        builder.addStatement("_addToBatch($N, $N, $LL, $L)", methodPair.getKey(), paramName, window, maxSize);
+    }
+
+    // "async" is a local variable or parameter
+    private void addSetAsynchronousStatement(MethodSpec.Builder builder) {
+        if (hasAsyncMethod()) {
+            builder.beginControlFlow("if (async)")
+                    .addStatement("_setAsynchronous(message)")
+                    .endControlFlow();
+        }
+    }
+
+    private void implementBatchCaseStatement(MethodSpec.Builder builder, Pair<String, ExecutableElement> methodPair, String paramName) {
+        ExecutableElement companion = findBatchCompanion(methodPair.getValue());
+
+        if (companion == null) {
+            return;
+        }
+
+        // METHOD_N -> methodNBatch
+        String methodId = methodPair.getKey();
+        String varBatch = "method" + methodId.substring(methodId.indexOf('_') + 1) + "Batch";
+
+        builder.addStatement("$T $N = _takeBatch($N)", mListType, varBatch, paramName)
+                .beginControlFlow("if ($N != null)", varBatch);
+
+        addDispatchStartStatement(builder, methodId);
+        addReceiverCallStatement(builder, companion.getSimpleName() + "((" +
+                TypeName.get(companion.getParameters().get(0).asType()) + ")" + varBatch + ")");
+        addDispatchEndStatement(builder, methodId, paramName);
+
+        builder.endControlFlow();
+    }
+
+    private boolean checkBatchMethod(ExecutableElement methodElement) {
+        if (methodElement.getParameters().size() != 1) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, "@Batch method must have exactly one parameter.", methodElement);
+            return false;
+        }
+
+        if (isCoalesce(methodElement)) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, "@Batch can not be used with @Coalesce, @Throttle or @Debounce.", methodElement);
+            return false;
+        }
+
+        if (findBatchCompanion(methodElement) == null) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR,
+                    "companion method not found: void " +
+                            methodElement.getAnnotation(Batch.class).value() +
+                            "(" + getBatchListType(methodElement) + ")",
+                    methodElement);
+            return false;
+        }
+
+        return true;
+    }
+
+    // List<ParamType>, primitive type will be boxed
+    private TypeMirror getBatchListType(ExecutableElement methodElement) {
+        TypeMirror itemType = methodElement.getParameters().get(0).asType();
+        if (itemType.getKind().isPrimitive()) {
+            itemType = mTypes.boxedClass((PrimitiveType) itemType).asType();
+        }
+
+        return mTypes.getDeclaredType(mElements.getTypeElement("java.util.List"), itemType);
+    }
+
+    // return null if not found
+    private ExecutableElement findBatchCompanion(ExecutableElement methodElement) {
+        if (methodElement.getParameters().size() != 1) {
+            return null;
+        }
+
+        String companionName = methodElement.getAnnotation(Batch.class).value();
+        TypeMirror listType = getBatchListType(methodElement);
+
+        for (Pair<String, ExecutableElement> pair : getInterfaceMethodPairs()) {
+            ExecutableElement companion = pair.getValue();
+
+            if (!companion.getSimpleName().contentEquals(companionName) ||
+                    companion.getParameters().size() != 1 ||
+                    isBatch(companion)) {
+                continue;
+            }
+
+            if (mTypes.isAssignable(listType, companion.getParameters().get(0).asType())) {
+                return companion;
+            }
+        }
+
+        return null;
+    }
+
+    private boolean isLaneCounted(ExecutableElement methodElement) {
+        return !(isCoalesce(methodElement) || isBatch(methodElement));
+    }
+
+    private int getLane(ExecutableElement methodElement) {
+        Priority priority = methodElement.getAnnotation(Priority.class);
+        return priority == null ? Priority.NORMAL : priority.value();
+    }
+
+    private String getLaneName(int lane) {
+        switch (lane) {
+            case Priority.HIGH:
+                return "HIGH";
+            case Priority.URGENT:
+                return "URGENT";
+            default:
+                return "NORMAL";
+        }
+    }
+
+    private boolean hasPriorityMethod() {
+        for (Pair<String, ExecutableElement> methodPair : getInterfaceMethodPairs()) {
+            if (methodPair.getValue().getAnnotation(Priority.class) != null) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void checkPriorityMethod(ExecutableElement methodElement) {
+        Priority priority = methodElement.getAnnotation(Priority.class);
+        if (priority == null) {
+            return;
+        }
+
+        if (priority.value() < Priority.NORMAL || priority.value() > Priority.URGENT) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, "illegal priority: " + priority.value(), methodElement);
+        }
+
+        if (!isLaneCounted(methodElement)) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, "@Priority can not be used with @Coalesce, @Throttle, @Debounce or @Batch.", methodElement);
+        }
+    }
+
+    // @Priority:
+    // 1. URGENT: sendMessageAtFrontOfQueue(), the "when" of message is 0.
+    // 2. HIGH: sendMessageAtTime(message, 1), MessageQueue is sorted by "when", and the message is
+    //    inserted after the messages that have the same "when", so the HIGH messages are dispatched
+    //    in order, after the URGENT messages and ahead of the NORMAL messages.
+    // 3. NORMAL: sendMessage()
+    // mLaneDepth counts the pending messages of each lane, @Coalesce(@Throttle, @Debounce) and @Batch
+    // methods are not counted.
+    private void generatePriority(TypeSpec.Builder builder) {
+        for (Pair<String, ExecutableElement> methodPair : getInterfaceMethodPairs()) {
+            checkPriorityMethod(methodPair.getValue());
+        }
+
+        StringBuilder lanes = new StringBuilder("-1");
+        for (Pair<String, ExecutableElement> methodPair : getInterfaceMethodPairs()) {
+            ExecutableElement methodElement = methodPair.getValue();
+            lanes.append(", ")
+                    .append(isLaneCounted(methodElement) ? getLane(methodElement) : -1);
+        }
+
+        builder.addField(FieldSpec.builder(long.class, "HIGH_LANE_UPTIME", Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                .initializer("$LL", HIGH_LANE_UPTIME)
+                .build());
+        builder.addField(FieldSpec.builder(int[].class, "METHOD_LANES", Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                .addJavadoc("Lane of each method, -1 means not counted.\n")
+                .initializer("{$L}", lanes.toString())
+                .build());
+        builder.addField(FieldSpec.builder(AtomicIntegerArray.class, "mLaneDepth", Modifier.PRIVATE, Modifier.FINAL)
+                .initializer("new $T($L)", AtomicIntegerArray.class, Priority.URGENT + 1)
+                .build());
+
+        MethodSpec.Builder sendLaneBuilder = MethodSpec.methodBuilder("_sendLaneMessage")
+                .addModifiers(Modifier.PRIVATE)
+                .addParameter(mMessageType, "message")
+                .addParameter(int.class, "lane")
+                .addStatement("mLaneDepth.incrementAndGet(lane)")
+                .beginControlFlow("if (lane == $T.URGENT)", Priority.class);
+
+        builder.addMethod(sendLaneBuilder.addStatement("sendMessageAtFrontOfQueue(message)")
+                .addStatement("return")
+                .endControlFlow()
+                .beginControlFlow("if (lane == $T.HIGH)", Priority.class)
+                .addStatement("sendMessageAtTime(message, HIGH_LANE_UPTIME)")
+                .addStatement("return")
+                .endControlFlow()
+                .addStatement("_sendMessage(message)")
+                .build());
+
+        builder.addMethod(MethodSpec.methodBuilder("getLaneDepth")
+                .addJavadoc("Returns the number of pending calls in the given lane.\n")
+                .addJavadoc("\n")
+                .addJavadoc("@param lane {@link $T#NORMAL}, {@link $T#HIGH} or {@link $T#URGENT}\n",
+                        Priority.class, Priority.class, Priority.class)
+                .addModifiers(Modifier.PUBLIC)
+                .returns(int.class)
+                .addParameter(int.class, "lane")
+                .addStatement("return mLaneDepth.get(lane)")
+                .build());
+    }
+
+    private boolean isAsync(ExecutableElement methodElement) {
+        return mInterfaceElement.getAnnotation(Handler.class).async() ||
+                methodElement.getAnnotation(Async.class) != null;
+    }
+
+    private boolean hasAsyncMethod() {
+        for (Pair<String, ExecutableElement> methodPair : getInterfaceMethodPairs()) {
+            if (isAsync(methodPair.getValue())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // Message.setAsynchronous() is available since API level 22, on lower API level the message
+    // is still synchronous.
+    private void generateAsync(TypeSpec.Builder builder) {
+        builder.addMethod(MethodSpec.methodBuilder("_setAsynchronous")
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                .addParameter(mMessageType, "message")
+                .beginControlFlow("if ($T.VERSION.SDK_INT >= $T.VERSION_CODES.LOLLIPOP_MR1)", mBuildType, mBuildType)
+                .addStatement("message.setAsynchronous(true)")
+                .endControlFlow()
+                .build());
+    }
+
+    // the number of pending calls of all methods:
+    // 1. normal methods: +1 when the message is sent, -1 when the message is dispatched.
+    // 2. @Coalesce(@Throttle, @Debounce) methods: +1 when there is no pending message, -1 when the
+    //    message is taken by _takeCoalesceMessage().
+    // 3. @Batch methods: +1 when a new batch is created, -1 when a batch is taken by _takeBatch().
+    // 4. @Bounded methods: +1 when the capacity is acquired(DROP_OLDEST: the args is queued), -1
+    //    when the message is dispatched.
+    private boolean isPendingCounted() {
+        return isDirectCallEnabled() || hasCoalesceMethod() || hasBoundedMethod() || isStatsEnabled();
+    }
+
+    private void generatePendingCount(TypeSpec.Builder builder) {
+        builder.addField(FieldSpec.builder(AtomicInteger.class, "mPendingCount", Modifier.PRIVATE, Modifier.FINAL)
+                .initializer("new $T()", AtomicInteger.class)
+                .build());
+        builder.addField(FieldSpec.builder(AtomicIntegerArray.class, "mMethodPendingCount", Modifier.PRIVATE, Modifier.FINAL)
+                .initializer("new $T(LAST_METHOD_ID + 1)", AtomicIntegerArray.class)
+                .build());
+
+        builder.addMethod(MethodSpec.methodBuilder("_incrementPending")
+                .addModifiers(Modifier.PRIVATE)
+                .addParameter(int.class, "what")
+                .addStatement("mMethodPendingCount.incrementAndGet(what)")
+                .addStatement("mPendingCount.incrementAndGet()")
+                .build());
+
+        builder.addMethod(MethodSpec.methodBuilder("_decrementPending")
+                .addModifiers(Modifier.PRIVATE)
+                .addParameter(int.class, "what")
+                .addStatement("mMethodPendingCount.decrementAndGet(what)")
+                .addStatement("mPendingCount.decrementAndGet()")
+                .build());
+
+        builder.addMethod(MethodSpec.methodBuilder("getPendingCount")
+                .addJavadoc("Returns the number of pending calls of the given method.\n")
+                .addModifiers(Modifier.PUBLIC)
+                .returns(int.class)
+                .addParameter(int.class, "methodId")
+                .addStatement("return mMethodPendingCount.get(methodId)")
+                .build());
+    }
+
+    // @Bounded on method, or on interface as default. @Coalesce(@Throttle, @Debounce) and @Batch
+    // methods are not bounded. Return null if not bounded.
+    private Bounded getBounded(ExecutableElement methodElement) {
+        if (isCoalesce(methodElement) || isBatch(methodElement)) {
+            return null;
+        }
+
+        Bounded bounded = methodElement.getAnnotation(Bounded.class);
+        if (bounded != null) {
+            return bounded;
+        }
+
+        return mInterfaceElement.getAnnotation(Bounded.class);
+    }
+
+    // Return -1 if not bounded.
+    // 1. RETURN_FALSE: fallback to DROP_NEWEST if the method returns void.
+    // 2. DROP_OLDEST: fallback to DROP_NEWEST if the method has no parameter, the calls are same.
+    private int getOverflow(ExecutableElement methodElement) {
+        Bounded bounded = getBounded(methodElement);
+        if (bounded == null) {
+            return -1;
+        }
+
+        int overflow = bounded.overflow();
+
+        if (overflow == Bounded.RETURN_FALSE && !returnTypeNotVoid(methodElement)) {
+            return Bounded.DROP_NEWEST;
+        }
+
+        if (overflow == Bounded.DROP_OLDEST && methodElement.getParameters().isEmpty()) {
+            return Bounded.DROP_NEWEST;
+        }
+
+        return overflow;
+    }
+
+    private boolean hasBoundedMethod() {
+        for (Pair<String, ExecutableElement> methodPair : getInterfaceMethodPairs()) {
+            if (getBounded(methodPair.getValue()) != null) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean hasOverflow(int overflow) {
+        for (Pair<String, ExecutableElement> methodPair : getInterfaceMethodPairs()) {
+            if (getOverflow(methodPair.getValue()) == overflow) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void checkBoundedMethod(ExecutableElement methodElement) {
+        Bounded bounded = methodElement.getAnnotation(Bounded.class);
+        if (bounded == null) {
+            return;
+        }
+
+        if (isCoalesce(methodElement) || isBatch(methodElement)) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, "@Bounded can not be used with @Coalesce, @Throttle, @Debounce or @Batch.", methodElement);
+            return;
+        }
+
+        checkBounded(bounded, methodElement);
+
+        if (bounded.overflow() == Bounded.RETURN_FALSE && methodElement.getReturnType().getKind() != TypeKind.BOOLEAN) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, "the method of @Bounded(overflow = Bounded.RETURN_FALSE) must return boolean.", methodElement);
+        }
+    }
+
+    private void checkBounded(Bounded bounded, Element element) {
+        if (bounded.value() <= 0) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, "the capacity must be greater than 0.", element);
+        }
+
+        if (bounded.overflow() < Bounded.DROP_NEWEST || bounded.overflow() > Bounded.RETURN_FALSE) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, "illegal overflow policy: " + bounded.overflow(), element);
+        }
+
+        if (bounded.timeout() < 0) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, "the timeout must not be negative.", element);
+        }
+    }
+
+    // @Bounded:
+    // mMethodPendingCount[methodId] is the number of pending calls, _tryAcquirePending() increases
+    // it by CAS only if it is less than the capacity, so it never exceeds the capacity.
+    // 1. DROP_NEWEST, RETURN_FALSE: the new call is dropped if _tryAcquirePending() fails.
+    // 2. BLOCK: wait on mBoundedLock, _releasePending() decreases the pending count and notifies
+    //    the waiting callers under mBoundedLock, so the notification is never missed.
+    // 3. DROP_OLDEST: the args is queued in mBoundedQueues[methodId], every message takes the
+    //    oldest args, so the oldest args can be replaced without removing the message.
+    // mOverflowCount[methodId] is the number of dropped calls.
+    private void generateBounded(TypeSpec.Builder builder) {
+        Bounded defaultBounded = mInterfaceElement.getAnnotation(Bounded.class);
+        if (defaultBounded != null) {
+            checkBounded(defaultBounded, mInterfaceElement);
+        }
+
+        for (Pair<String, ExecutableElement> methodPair : getInterfaceMethodPairs()) {
+            checkBoundedMethod(methodPair.getValue());
+        }
+
+        builder.addField(FieldSpec.builder(AtomicLongArray.class, "mOverflowCount", Modifier.PRIVATE, Modifier.FINAL)
+                .initializer("new $T(LAST_METHOD_ID + 1)", AtomicLongArray.class)
+                .build());
+
+        builder.addMethod(MethodSpec.methodBuilder("_tryAcquirePending")
+                .addModifiers(Modifier.PRIVATE)
+                .returns(boolean.class)
+                .addParameter(int.class, "what")
+                .addParameter(int.class, "capacity")
+                .beginControlFlow("for (;;)")
+                .addStatement("int count = mMethodPendingCount.get(what)")
+                .beginControlFlow("if (count >= capacity)")
+                .addStatement("return false")
+                .endControlFlow()
+                .beginControlFlow("if (mMethodPendingCount.compareAndSet(what, count, count + 1))")
+                .addStatement("mPendingCount.incrementAndGet()")
+                .addStatement("return true")
+                .endControlFlow()
+                .endControlFlow()
+                .build());
+
+        if (hasOverflow(Bounded.BLOCK) || hasOverflow(Bounded.DROP_OLDEST)) {
+            builder.addField(FieldSpec.builder(Object.class, "mBoundedLock", Modifier.PRIVATE, Modifier.FINAL)
+                    .initializer("new $T()", Object.class)
+                    .build());
+        }
+
+        if (hasOverflow(Bounded.BLOCK)) {
+            generateBoundedBlock(builder);
+        }
+
+        if (hasOverflow(Bounded.DROP_OLDEST)) {
+            generateBoundedDropOldest(builder);
+        }
+
+        builder.addMethod(MethodSpec.methodBuilder("getOverflowCount")
+                .addJavadoc("Returns the number of calls of the given {@code @Bounded} method that dropped by overflow.\n")
+                .addModifiers(Modifier.PUBLIC)
+                .returns(long.class)
+                .addParameter(int.class, "methodId")
+                .addStatement("return mOverflowCount.get(methodId)")
+                .build());
+    }
+
+    // the caller on the thread of Looper is never blocked, otherwise the Looper is deadlocked
+    private void generateBoundedBlock(TypeSpec.Builder builder) {
+        builder.addMethod(MethodSpec.methodBuilder("_acquirePending")
+                .addModifiers(Modifier.PRIVATE)
+                .returns(boolean.class)
+                .addParameter(int.class, "what")
+                .addParameter(int.class, "capacity")
+                .addParameter(long.class, "timeout")
+                .beginControlFlow("if (_tryAcquirePending(what, capacity))")
+                .addStatement("return true")
+                .endControlFlow()
+                .beginControlFlow("if ($T.myLooper() == getLooper())", mLooperType)
+                .addStatement("return false")
+                .endControlFlow()
+                .addStatement("long deadline = $T.uptimeMillis() + timeout", mSystemClockType)
+                .beginControlFlow("synchronized (mBoundedLock)")
+                .beginControlFlow("while (!_tryAcquirePending(what, capacity))")
+                .addStatement("long wait = 0")
+                .beginControlFlow("if (timeout > 0)")
+                .addStatement("wait = deadline - $T.uptimeMillis()", mSystemClockType)
+                .beginControlFlow("if (wait <= 0)")
+                .addStatement("return false")
+                .endControlFlow()
+                .endControlFlow()
+                .beginControlFlow("try")
+                .addStatement("mBoundedLock.wait(wait)")
+                .nextControlFlow("catch ($T e)", InterruptedException.class)
+                .addStatement("$T.currentThread().interrupt()", Thread.class)
+                .addStatement("return false")
+                .endControlFlow()
+                .beginControlFlow("if (mDetached)")
+                .addStatement("return false")
+                .endControlFlow()
+                .endControlFlow()
+                .endControlFlow()
+                .addStatement("return true")
+                .build());
+
+        builder.addMethod(MethodSpec.methodBuilder("_releasePending")
+                .addModifiers(Modifier.PRIVATE)
+                .addParameter(int.class, "what")
+                .beginControlFlow("synchronized (mBoundedLock)")
+                .addStatement("_decrementPending(what)")
+                .addStatement("mBoundedLock.notifyAll()")
+                .endControlFlow()
+                .build());
+    }
+
+    private void generateBoundedDropOldest(TypeSpec.Builder builder) {
+        builder.addField(FieldSpec.builder(ArrayTypeName.of(mArrayDequeType), "mBoundedQueues", Modifier.PRIVATE, Modifier.FINAL)
+                .initializer("new $T[LAST_METHOD_ID + 1]", mArrayDequeType)
+                .build());
+
+        // return the dropped args, or null if the args is queued and the message need to be sent
+        builder.addMethod(MethodSpec.methodBuilder("_offerOldest")
+                .addModifiers(Modifier.PRIVATE)
+                .returns(Object.class)
+                .addParameter(int.class, "what")
+                .addParameter(Object.class, "args")
+                .addParameter(int.class, "capacity")
+                .beginControlFlow("synchronized (mBoundedLock)")
+                .addStatement("$T queue = mBoundedQueues[what]", mArrayDequeType)
+                .beginControlFlow("if (queue == null)")
+                .addStatement("queue = new $T()", mArrayDequeType)
+                .addStatement("mBoundedQueues[what] = queue")
+                .endControlFlow()
+                .addStatement("queue.addLast(args)")
+                .beginControlFlow("if (queue.size() > capacity)")
+                .addStatement("return queue.pollFirst()")
+                .endControlFlow()
+                .addStatement("_incrementPending(what)")
+                .addStatement("return null")
+                .endControlFlow()
+                .build());
+
+        builder.addMethod(MethodSpec.methodBuilder("_pollOldest")
+                .addModifiers(Modifier.PRIVATE)
+                .returns(Object.class)
+                .addParameter(int.class, "what")
+                .beginControlFlow("synchronized (mBoundedLock)")
+                .addStatement("$T queue = mBoundedQueues[what]", mArrayDequeType)
+                .addStatement("Object args = (queue == null) ? null : queue.pollFirst()")
+                .beginControlFlow("if (args != null)")
+                .addStatement("_decrementPending(what)")
+                .endControlFlow()
+                .addStatement("return args")
+                .endControlFlow()
+                .build());
+    }
+
+    private boolean isDirectCallEnabled() {
+        return mInterfaceElement.getAnnotation(Handler.class).directCall();
+    }
+
+    private boolean isDirectCall(ExecutableElement methodElement) {
+        return isDirectCallEnabled() && !isCoalesce(methodElement) && !isBatch(methodElement) && !isUnordered(methodElement);
+    }
+
+    // @Handler(directCall = true):
+    // If a method is called on the thread of Looper, and there is no pending call, and not in
+    // the middle of dispatching, the receiver is called directly. The calls made by receiver
+    // during dispatching are still sent as message, so the receiver is never re-entered.
+    private void generateDirectCall(TypeSpec.Builder builder) {
+        builder.addField(boolean.class, "mDispatching", Modifier.PRIVATE);
+
+        builder.addMethod(MethodSpec.methodBuilder("_isDirectCallAllowed")
+                .addModifiers(Modifier.PRIVATE)
+                .returns(boolean.class)
+                .addStatement("return $T.myLooper() == getLooper() && !mDispatching && mPendingCount.get() == 0",
+                        mLooperType)
+                .build());
+    }
+
+    private void implementDirectCallStatement(MethodSpec.Builder builder, Pair<String, ExecutableElement> methodPair) {
+        ExecutableElement methodElement = methodPair.getValue();
+        TypeName receiverType = TypeName.get(mInterfaceElement.asType());
+
+        StringBuilder params = new StringBuilder();
+        List<? extends VariableElement> parameters = methodElement.getParameters();
+        for (int i = 0; i < parameters.size(); i++) {
+            params.append(parameters.get(i).getSimpleName());
+
+            if (i < parameters.size() - 1) {
+                params.append(", ");
+            }
+        }
+
+        if (isFanOut()) {
+            implementFanOutDirectCallStatement(builder, methodPair, params.toString());
+            return;
+        }
+
+        builder.beginControlFlow("if (_isDirectCallAllowed())")
+                .addStatement("$T receiver = ($T)mReceiverWeakRef.get()", receiverType, receiverType)
+                .beginControlFlow("if (receiver != null)")
+                .addStatement("mDispatching = true")
+                .beginControlFlow("try");
+
+        // the latency of direct call is 0
+        if (isStatsEnabled()) {
+            builder.addStatement("long directCallStart = System.nanoTime()");
+        }
+
+        String call = "receiver." + methodElement.getSimpleName() + "(" + params + ")";
+        if (returnsFuture(methodElement)) {
+            addFutureDispatchStatement(builder, call, "future");
+        } else {
+            builder.addStatement(call);
+        }
+
+        if (isStatsEnabled()) {
+            builder.addStatement("_recordDispatch($N, 0, directCallStart)", methodPair.getKey());
+        }
+
+        builder.nextControlFlow("finally")
+                .addStatement("mDispatching = false")
+                .endControlFlow();
+
+        // the receiver is collected
+        if (returnsFuture(methodElement)) {
+            builder.nextControlFlow("else")
+                    .addStatement("future.cancel(false)");
+        }
+
+        builder.endControlFlow();
+
+        addReturnStatement(builder, methodElement, true);
+        builder.endControlFlow();
+    }
+
+    private void implementFanOutDirectCallStatement(MethodSpec.Builder builder, Pair<String, ExecutableElement> methodPair, String params) {
+        ExecutableElement methodElement = methodPair.getValue();
+
+        builder.beginControlFlow("if (_isDirectCallAllowed())")
+                .addStatement("$T[] receivers = mReceivers", WeakReference.class)
+                .addStatement("boolean dead = false")
+                .addStatement("mDispatching = true")
+                .beginControlFlow("try");
+
+        if (isStatsEnabled()) {
+            builder.addStatement("long directCallStart = System.nanoTime()");
+        }
+
+        addReceiverCallStatement(builder, methodElement.getSimpleName() + "(" + params + ")");
+
+        if (isStatsEnabled()) {
+            builder.addStatement("_recordDispatch($N, 0, directCallStart)", methodPair.getKey());
+        }
+
+        builder.nextControlFlow("finally")
+                .addStatement("mDispatching = false")
+                .endControlFlow()
+                .beginControlFlow("if (dead)")
+                .addStatement("_pruneReceivers()")
+                .endControlFlow();
+
+        addReturnStatement(builder, methodElement, true);
+        builder.endControlFlow();
+    }
+
+    private boolean isFanOut() {
+        return mInterfaceElement.getAnnotation(Handler.class).fanOut();
+    }
+
+    @Override
+    protected void generateReceiverFields(TypeSpec.Builder builder) {
+        if (!isFanOut()) {
+            super.generateReceiverFields(builder);
+            return;
+        }
+
+        generateFanOut(builder);
+    }
+
+    // Constructor of fan-out:
+    // 1. (Looper looper)
+    // 2. (Looper looper, Receiver receiver)
+    // 3. (Receiver receiver)
+    @Override
+    protected void generateHandlerConstructors(TypeSpec.Builder receiverBuilder, TypeElement interfaceElement) {
+        if (!isFanOut()) {
+            super.generateHandlerConstructors(receiverBuilder, interfaceElement);
+            return;
+        }
+
+        TypeName receiverType = TypeName.get(interfaceElement.asType());
+
+        receiverBuilder.addMethod(MethodSpec.constructorBuilder()
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(mLooperType, "looper")
+                .addStatement("super(looper)")
+                .addStatement("mReceivers = new $T[0]", WeakReference.class)
+                .addStatement("mDetached = true")
+                .build());
+
+        receiverBuilder.addMethod(MethodSpec.constructorBuilder()
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(mLooperType, "looper")
+                .addParameter(receiverType, "receiver")
+                .addStatement("this(looper)")
+                .addStatement("addReceiver(receiver)")
+                .build());
+
+        receiverBuilder.addMethod(MethodSpec.constructorBuilder()
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(receiverType, "receiver")
+                .addStatement("this($T.getMainLooper(), receiver)", mLooperType)
+                .build());
+    }
+
+    @Override
+    protected MethodSpec generate_isDetached() {
+        if (!isFanOut()) {
+            return super.generate_isDetached();
+        }
+
+        return MethodSpec.methodBuilder("isDetached")
+                .addJavadoc("Returns true if there is no receiver. The collected receivers are pruned lazily on\n")
+                .addJavadoc("dispatch. Once detached, all pending messages are removed, and all subsequent calls are\n")
+                .addJavadoc("ignored until a receiver is added.\n")
+                .addModifiers(Modifier.PUBLIC)
+                .returns(boolean.class)
+                .addStatement("return mDetached")
+                .build();
+    }
+
+    // Fan-out:
+    // mReceivers is copy-on-write, the dispatch reads it without lock. The collected receivers are
+    // found on dispatch, and pruned after dispatch. The Handler is detached when the last receiver
+    // is removed or pruned, and attached again by addReceiver().
+    private void generateFanOut(TypeSpec.Builder builder) {
+        TypeName receiverType = TypeName.get(mInterfaceElement.asType());
+        ArrayTypeName receiversType = ArrayTypeName.of(WeakReference.class);
+
+        builder.addField(receiversType, "mReceivers", Modifier.PRIVATE, Modifier.VOLATILE);
+        builder.addField(FieldSpec.builder(Object.class, "mReceiversLock", Modifier.PRIVATE, Modifier.FINAL)
+                .initializer("new $T()", Object.class)
+                .build());
+
+        builder.addMethod(MethodSpec.methodBuilder("addReceiver")
+                .addJavadoc("Add a receiver, nothing if the receiver is already added.\n")
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(receiverType, "receiver")
+                .beginControlFlow("if (receiver == null)")
+                .addStatement("throw new NullPointerException($S)", "receiver is null.")
+                .endControlFlow()
+                .beginControlFlow("synchronized (mReceiversLock)")
+                .addStatement("$T receivers = mReceivers", receiversType)
+                .beginControlFlow("for ($T ref : receivers)", WeakReference.class)
+                .beginControlFlow("if (ref.get() == receiver)")
+                .addStatement("return")
+                .endControlFlow()
+                .endControlFlow()
+                .addStatement("$T newReceivers = $T.copyOf(receivers, receivers.length + 1)", receiversType, Arrays.class)
+                .addStatement("newReceivers[receivers.length] = new $T(receiver)", WeakReference.class)
+                .addStatement("mReceivers = newReceivers")
+                .addStatement("mDetached = false")
+                .endControlFlow()
+                .build());
+
+        builder.addMethod(MethodSpec.methodBuilder("removeReceiver")
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(receiverType, "receiver")
+                .addStatement("_removeReceiver(receiver)")
+                .build());
+
+        builder.addMethod(MethodSpec.methodBuilder("_pruneReceivers")
+                .addModifiers(Modifier.PRIVATE)
+                .addStatement("_removeReceiver(null)")
+                .build());
+
+        // remove the given receiver and the collected receivers
+        builder.addMethod(MethodSpec.methodBuilder("_removeReceiver")
+                .addModifiers(Modifier.PRIVATE)
+                .addParameter(Object.class, "receiver")
+                .beginControlFlow("synchronized (mReceiversLock)")
+                .addStatement("$T receivers = mReceivers", receiversType)
+                .addStatement("$T newReceivers = new $T[receivers.length]", receiversType, WeakReference.class)
+                .addStatement("int count = 0")
+                .beginControlFlow("for ($T ref : receivers)", WeakReference.class)
+                .addStatement("Object r = ref.get()")
+                .beginControlFlow("if (r != null && r != receiver)")
+                .addStatement("newReceivers[count++] = ref")
+                .endControlFlow()
+                .endControlFlow()
+                .beginControlFlow("if (count > 0 && count == receivers.length)")
+                .addStatement("return")
+                .endControlFlow()
+                .addStatement("mReceivers = $T.copyOf(newReceivers, count)", Arrays.class)
+                .beginControlFlow("if (count == 0)")
+                .addStatement("_detach()")
+                .endControlFlow()
+                .endControlFlow()
+                .build());
+    }
+
+    // @Unordered
+    private boolean isUnordered(ExecutableElement methodElement) {
+        return methodElement.getAnnotation(Unordered.class) != null;
+    }
+
+    private boolean hasUnorderedMethod() {
+        for (Pair<String, ExecutableElement> methodPair : getInterfaceMethodPairs()) {
+            if (isUnordered(methodPair.getValue())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void checkUnorderedMethod(ExecutableElement methodElement) {
+        if (isCoalesce(methodElement) ||
+                methodElement.getAnnotation(Batch.class) != null ||
+                methodElement.getAnnotation(Priority.class) != null ||
+                methodElement.getAnnotation(Async.class) != null ||
+                methodElement.getAnnotation(Bounded.class) != null) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, "@Unordered can not be used with the other dispatch options.", methodElement);
+        }
+    }
+
+    private void implementUnorderedMethodStatement(MethodSpec.Builder builder, Pair<String, ExecutableElement> methodPair) {
+        ExecutableElement methodElement = methodPair.getValue();
+        List<? extends VariableElement> parameters = methodElement.getParameters();
+
+        checkUnorderedMethod(methodElement);
+
+        String args = "null";
+        if (hasArgs(methodElement)) {
+            ClassName argsType = getArgsClassName(methodPair);
+            args = "args";
+
+            builder.addStatement("$T args = $T.obtain()", argsType, argsType);
+            for (int i = 0; i < parameters.size(); i++) {
+                builder.addStatement("args.arg$L = $N", i, parameters.get(i).getSimpleName().toString());
+            }
+
+            if (returnsFuture(methodElement)) {
+                builder.addStatement("args.future = future");
+            }
+        }
+
+        builder.addStatement("mUnorderedExecutor.execute(new UnorderedTask($N, $L))", methodPair.getKey(), args);
+
+        if (returnTypeNotVoid(methodElement)) {
+            addReturnStatement(builder, methodElement, true);
+        }
+    }
+
+    // @Unordered:
+    // the calls are submitted to mUnorderedExecutor as UnorderedTask, and dispatched by
+    // _dispatchUnordered() on the threads of pool. UnorderedTask.time is the time of call, for the
+    // latency of statistics. The unordered calls are not pending calls, so they do not prevent
+    // the direct call.
+    private void generateUnordered(TypeSpec.Builder builder) {
+        ClassName taskType = ClassName.get("", "UnorderedTask");
+        ClassName asyncTaskType = ClassName.get("android.os", "AsyncTask");
+        ClassName forkJoinPoolType = ClassName.get("java.util.concurrent", "ForkJoinPool");
+        TypeName receiverType = TypeName.get(mInterfaceElement.asType());
+
+        builder.addField(FieldSpec.builder(Executor.class, "mUnorderedExecutor", Modifier.PRIVATE, Modifier.VOLATILE)
+                .initializer("_defaultUnorderedExecutor()")
+                .build());
+
+        builder.addMethod(MethodSpec.methodBuilder("_defaultUnorderedExecutor")
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                .returns(Executor.class)
+                .beginControlFlow("if ($T.VERSION.SDK_INT >= $T.VERSION_CODES.N)", mBuildType, mBuildType)
+                .addStatement("return $T.commonPool()", forkJoinPoolType)
+                .endControlFlow()
+                .addStatement("return $T.THREAD_POOL_EXECUTOR", asyncTaskType)
+                .build());
+
+        builder.addMethod(MethodSpec.methodBuilder("setUnorderedExecutor")
+                .addJavadoc("Set the Executor of {@code @Unordered} methods. The default is\n")
+                .addJavadoc("{@code ForkJoinPool.commonPool()} on API level 24 and higher, otherwise\n")
+                .addJavadoc("{@code AsyncTask.THREAD_POOL_EXECUTOR}.\n")
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(Executor.class, "executor")
+                .beginControlFlow("if (executor == null)")
+                .addStatement("throw new NullPointerException($S)", "executor is null.")
+                .endControlFlow()
+                .addStatement("mUnorderedExecutor = executor")
+                .build());
+
+        MethodSpec.Builder constructorBuilder = MethodSpec.constructorBuilder()
+                .addParameter(int.class, "what")
+                .addParameter(Object.class, "args")
+                .addStatement("this.what = what")
+                .addStatement("this.args = args");
+
+        TypeSpec.Builder taskBuilder = TypeSpec.classBuilder(taskType.simpleName())
+                .addModifiers(Modifier.PRIVATE, Modifier.FINAL)
+                .addSuperinterface(Runnable.class)
+                .addField(int.class, "what", Modifier.FINAL)
+                .addField(Object.class, "args", Modifier.FINAL);
+
+        if (isStatsEnabled()) {
+            taskBuilder.addField(long.class, "time", Modifier.FINAL);
+            constructorBuilder.addStatement("this.time = $T.uptimeMillis()", mSystemClockType);
+        }
+
+        builder.addType(taskBuilder.addMethod(constructorBuilder.build())
+                .addMethod(MethodSpec.methodBuilder("run")
+                        .addAnnotation(Override.class)
+                        .addModifiers(Modifier.PUBLIC)
+                        .addStatement("_dispatchUnordered(this)")
+                        .build())
+                .build());
+
+        MethodSpec.Builder dispatchBuilder = MethodSpec.methodBuilder("_dispatchUnordered")
+                .addModifiers(Modifier.PRIVATE)
+                .addParameter(taskType, "task");
+
+        if (isTraceEnabled()) {
+            dispatchBuilder.addStatement("_beginDispatchTrace(task.what)")
+                    .beginControlFlow("try");
+        }
+
+        if (isFanOut()) {
+            dispatchBuilder.addStatement("$T[] receivers = mReceivers", WeakReference.class)
+                    .beginControlFlow("if (receivers.length == 0)")
+                    .addStatement("_pruneReceivers()")
+                    .addStatement("return")
+                    .endControlFlow()
+                    .addStatement("boolean dead = false");
+        } else {
+            dispatchBuilder.addStatement("$T receiver = ($T)mReceiverWeakRef.get()", receiverType, receiverType)
+                    .beginControlFlow("if (receiver == null)");
+
+            // the future of call is cancelled if the receiver is collected
+            for (Pair<String, ExecutableElement> pair : getInterfaceMethodPairs()) {
+                if (isUnordered(pair.getValue()) && returnsFuture(pair.getValue())) {
+                    dispatchBuilder.beginControlFlow("if (task.what == $N)", pair.getKey())
+                            .addStatement("(($T)task.args).future.cancel(false)", getArgsClassName(pair))
+                            .endControlFlow();
+                }
+            }
+
+            dispatchBuilder.addStatement("_detach()")
+                    .addStatement("return")
+                    .endControlFlow();
+        }
+
+        dispatchBuilder.beginControlFlow("switch (task.what)");
+
+        for (Pair<String, ExecutableElement> pair : getInterfaceMethodPairs()) {
+            ExecutableElement methodElement = pair.getValue();
+            if (!isUnordered(methodElement)) {
+                continue;
+            }
+
+            dispatchBuilder.addCode("case $N:\n", pair.getKey());
+
+            StringBuilder call = new StringBuilder(methodElement.getSimpleName())
+                    .append("(");
+
+            String varArgs = null;
+            if (hasArgs(methodElement)) {
+                ClassName argsType = getArgsClassName(pair);
+                varArgs = getArgsVarName(argsType);
+
+                dispatchBuilder.addStatement("$T $N = ($T)task.args", argsType, varArgs, argsType);
+                extractParamList(methodElement.getParameters(), varArgs, call);
+            }
+
+            call.append(")");
+
+            addDispatchStartStatement(dispatchBuilder, pair.getKey());
+            if (returnsFuture(methodElement)) {
+                addFutureDispatchStatement(dispatchBuilder, "receiver." + call, varArgs + ".future");
+            } else {
+                addReceiverCallStatement(dispatchBuilder, call.toString());
+            }
+
+            if (isStatsEnabled()) {
+                dispatchBuilder.addStatement("_recordDispatch($N, $T.uptimeMillis() - task.time, method$LStart)",
+                        pair.getKey(),
+                        mSystemClockType,
+                        pair.getKey().substring(pair.getKey().indexOf('_') + 1));
+            }
+
+            if (varArgs != null) {
+                dispatchBuilder.addStatement("$N.recycle()", varArgs);
+            }
+
+            dispatchBuilder.addStatement("break");
+        }
+
+        dispatchBuilder.endControlFlow();
+
+        if (isFanOut()) {
+            dispatchBuilder.beginControlFlow("if (dead)")
+                    .addStatement("_pruneReceivers()")
+                    .endControlFlow();
+        }
+
+        if (isTraceEnabled()) {
+            dispatchBuilder.nextControlFlow("finally")
+                    .addStatement("_endTrace()")
+                    .endControlFlow();
+        }
+
+        builder.addMethod(dispatchBuilder.build());
     }
 }
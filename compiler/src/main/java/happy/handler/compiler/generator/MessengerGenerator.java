@@ -24,29 +24,58 @@
 package happy.handler.compiler.generator;
 
 import com.squareup.javapoet.AnnotationSpec;
+import com.squareup.javapoet.ArrayTypeName;
 import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.CodeBlock;
 import com.squareup.javapoet.FieldSpec;
 import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.ParameterizedTypeName;
 import com.squareup.javapoet.TypeName;
 import com.squareup.javapoet.TypeSpec;
-
+import com.squareup.javapoet.TypeVariableName;
+import com.squareup.javapoet.WildcardTypeName;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import javax.annotation.processing.Messager;
 import javax.annotation.processing.ProcessingEnvironment;
 import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
 import javax.lang.model.element.ExecutableElement;
 import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
 import javax.lang.model.element.TypeElement;
 import javax.lang.model.element.VariableElement;
 import javax.lang.model.type.ArrayType;
 import javax.lang.model.type.DeclaredType;
 import javax.lang.model.type.TypeKind;
 import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
 import javax.lang.model.util.Elements;
 import javax.lang.model.util.Types;
 import javax.tools.Diagnostic;
 
+import happy.handler.Async;
+import happy.handler.Batch;
+import happy.handler.Bounded;
+import happy.handler.Coalesce;
+import happy.handler.Debounce;
+import happy.handler.Messenger;
+import happy.handler.MethodStats;
+import happy.handler.Priority;
+import happy.handler.Throttle;
+import happy.handler.Unordered;
 import javafx.util.Pair;
 
 /**
@@ -54,7 +83,7 @@ import javafx.util.Pair;
  * 1. byte, short, int, long, float, double, char, boolean
  * 2. String
  * 3. CharSequence
- * 4. IBinder (API level 18)
+ * 4. IBinder
  * 5. Parcelable
  * 6. Serializable
  * <p>
@@ -69,15 +98,29 @@ import javafx.util.Pair;
  * 2. List<String>
  * 3. List<CharSequence>
  * 4. List<? extends Parcelable>
+ * 5. List<Long>, List<Double>, List<Float> (the elements can not be null)
+ * <p>
+ * Supported Map Type:
+ * 1. Map<K, V>, K is a boxed primitive type or String, V is a boxed primitive type, String or
+ * Parcelable (the keys and values can be null)
  * <p>
  * Other Supported Type:
  * 1. SparseArray<? extends Parcelable>
  * 2. android.util.Size (API level 21)
  * 3. android.util.SizeF (API level 21)
  * <p>
- * Note: Unsupported Map.
+ * Supported Return Type:
+ * 1. void
+ * 2. CompletableFuture<T>, T is Void, String, CharSequence, Parcelable or Serializable (include
+ * the boxed primitive types)
  */
 public class MessengerGenerator extends AbstractGenerator {
+    // the keys of payload in Message.data, the flat payload is kept as Parcelable in process, and
+    // replaced by the marshalled payload (the short key) when it is sent to another process
+    private static final String PAYLOAD_KEY = "payload";
+    private static final String PAYLOAD_FLAT_KEY = "f";
+    private static final String PAYLOAD_BYTES_KEY = "p";
+
     private String mMessengerFieldName = "mMessenger";
     private TypeSpec.Builder mMessengerBuilder;
 
@@ -85,9 +128,27 @@ public class MessengerGenerator extends AbstractGenerator {
     private Types mTypes;
     private Messager mMessager;
 
+    private TypeElement mInterfaceElement;
+
     private ClassName mBundleType = ClassName.get("android.os", "Bundle");      // android.os.Bundle
     private ClassName mMessageType = ClassName.get("android.os", "Message");    // android.os.Message
-    private ClassName mArrayListType = ClassName.get("java.util", "ArrayList"); // java.util.ArrayList
+    private ClassName mReplyHandlerType = ClassName.get("", "ReplyHandler");
+    private ClassName mSharedMemoryType = ClassName.get("android.os", "SharedMemory");
+    private ClassName mSharedRegionType = ClassName.get("happy.handler.runtime", "SharedRegion");
+    private ClassName mSharedArraysType = ClassName.get("happy.handler.runtime", "SharedArrays");
+    private ClassName mSharedMemoryRegionType = ClassName.get("", "SharedMemoryRegion");
+
+    // true if any array argument may be transferred in SharedMemory
+    private boolean mSharedArrayUsed;
+
+    // the name of the codec of Serializable type, "" if the type is written by Java serialization
+    private Map<String, String> mSerializableCodecs = new HashMap<>();
+
+    // true if any String or byte[] argument may be compressed
+    private boolean mCompressionUsed;
+
+    // true if any payload may be marshalled into byte[]
+    private boolean mPayloadMarshalled;
 
     public MessengerGenerator(ProcessingEnvironment processingEnv) {
         super(processingEnv);
@@ -99,22 +160,55 @@ public class MessengerGenerator extends AbstractGenerator {
 
     @Override
     public void implement_sendMessageStatement(MethodSpec.Builder builder, String argName) {
-        builder.beginControlFlow("try")
-                .addStatement("$N.send($N)", mMessengerFieldName, argName)
-                .nextControlFlow("catch (android.os.RemoteException e)")
-                .addStatement("e.printStackTrace()")
-                .endControlFlow();
+        builder.addStatement("_send($N)", argName);
     }
 
     @Override
     public TypeSpec generate(String className, TypeElement interfaceElement) {
+        mInterfaceElement = interfaceElement;
+        mSharedArrayUsed = false;
+        mSerializableCodecs.clear();
+        mCompressionUsed = false;
+        mPayloadMarshalled = false;
         initMessengerBuilder(className);
 
+        if (interfaceElement.getAnnotation(Bounded.class) != null) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, "@Bounded is only supported by @Handler.", interfaceElement);
+        }
+
         // Inner class: Handler
         TypeSpec.Builder handlerBuilder = super.generate("Handler", interfaceElement).toBuilder();
         handlerBuilder.modifiers.remove(Modifier.PUBLIC);
         handlerBuilder.addModifiers(Modifier.PRIVATE, Modifier.STATIC);
 
+        if (hasFutureMethod()) {
+            generateReply(handlerBuilder);
+        }
+
+        if (mSharedArrayUsed) {
+            if (mElements.getTypeElement(mSharedArraysType.toString()) == null) {
+                mMessager.printMessage(Diagnostic.Kind.ERROR,
+                        "sharedMemoryThreshold requires the runtime module (happy.handler.runtime).", interfaceElement);
+            }
+            generateSharedMemory();
+        }
+
+        if (mCompressionUsed) {
+            generateCompression();
+        }
+
+        if (hasPayload() || isBatchEnabled()) {
+            generate_getPayload(handlerBuilder);
+        }
+
+        if (isBatchEnabled()) {
+            generateBatch(handlerBuilder);
+        }
+
+        if (mPayloadMarshalled) {
+            generate_marshall();
+        }
+
         mMessengerBuilder.addType(handlerBuilder.build());
 
         // Constructor
@@ -123,15 +217,40 @@ public class MessengerGenerator extends AbstractGenerator {
         // Field: mMessenger
         generateMessengerField();
 
+        // Connection: attach(IBinder), isConnected(), ...
+        generateConnection();
+
         // Method: getBinder():IBinder
         generate_getBinder();
 
         // Method: getMessenger():Messenger
         generate_getMessenger();
 
+        if (isStatsEnabled()) {
+            generateStats();
+        }
+
         return mMessengerBuilder.build();
     }
 
+    @Override
+    protected boolean isStatsEnabled() {
+        return mInterfaceElement.getAnnotation(Messenger.class).stats();
+    }
+
+    @Override
+    protected boolean isTraceEnabled() {
+        return mInterfaceElement.getAnnotation(Messenger.class).trace();
+    }
+
+    // the calls are counted on the receiving side, the "what" of remote message is untrusted
+    @Override
+    protected void implement_sendMessageAtTimeStatement(MethodSpec.Builder builder, String paramName) {
+        builder.beginControlFlow("if ($N.what > 0 && $N.what <= LAST_METHOD_ID)", paramName, paramName)
+                .addStatement("_recordCall($N.what)", paramName)
+                .endControlFlow();
+    }
+
     @Override
     protected void implementMethodStatement(MethodSpec.Builder builder, Pair<String, ExecutableElement> methodPair) {
         ExecutableElement methodElement = methodPair.getValue();
@@ -141,42 +260,109 @@ public class MessengerGenerator extends AbstractGenerator {
             return;
         }
 
+        if (returnsFuture(methodElement) && isReplyTypeIllegal(methodElement)) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, "unsupported reply type: " + methodElement.getReturnType(), methodElement);
+            return;
+        }
+
+        checkHandlerOnlyAnnotation(methodElement);
+
         String varMessage = "message";
 
-        builder.addStatement("$T $N = $T.obtain()", mMessageType, varMessage, mMessageType)
-                .addStatement("$N.what = $N", varMessage, methodPair.getKey());
+        if (returnsFuture(methodElement)) {
+            addNewFutureStatement(builder, methodElement);
+        }
 
-        String varData = "data";
+        if (hasSizeParam(methodElement)) {
+            builder.addAnnotation(AnnotationSpec.builder(ClassName.get("androidx.annotation", "RequiresApi"))
+                    .addMember("value", "android.os.Build.VERSION_CODES.LOLLIPOP")
+                    .build());
+        }
 
         List<? extends VariableElement> parameters = methodElement.getParameters();
         if (parameters.size() > 0) {
-            builder.addStatement("$T $N = new $T()", mBundleType, varData, mBundleType);
+            generatePayload(methodPair);
+
+            StringBuilder args = new StringBuilder();
+            for (VariableElement param : parameters) {
+                if (args.length() > 0) {
+                    args.append(", ");
+                }
+                args.append(param.getSimpleName());
+            }
+
+            ClassName payloadType = getPayloadClassName(methodPair.getKey());
+            builder.addStatement("$T payload = new $T($L)", payloadType, payloadType, args);
         }
 
-        for (VariableElement param : parameters) {
-            putDataIntoBundle(builder, param, varData);
+        // the call is buffered, the future call is not buffered, but flushes the buffered calls
+        // first to keep the order
+        if (isBatchEnabled()) {
+            if (!returnsFuture(methodElement)) {
+                builder.addStatement("_enqueue($N, $L)", methodPair.getKey(), parameters.size() > 0 ? "payload" : "null");
+                return;
+            }
+
+            builder.addStatement("flush()");
         }
 
+        builder.addStatement("$T $N = $T.obtain()", mMessageType, varMessage, mMessageType)
+                .addStatement("$N.what = $N", varMessage, methodPair.getKey());
+
+        String varData = "data";
+
         if (parameters.size() > 0) {
+            builder.addStatement("$T $N = new $T()", mBundleType, varData, mBundleType);
+            addPutPayloadStatement(builder, varData, "payload", isPayloadFlat(methodElement));
             builder.addStatement("$N.setData($N)", varMessage, varData);
         }
 
-        builder.addStatement("_sendMessage($N)", varMessage);
+        if (!returnsFuture(methodElement)) {
+            builder.addStatement("_sendMessage($N)", varMessage);
+            return;
+        }
+
+        // the message may be recycled after sent, so the callId is kept
+        builder.addStatement("$T replyHandler = _getReplyHandler()", mReplyHandlerType)
+                .addStatement("int callId = replyHandler.register(future, REPLY_TIMEOUT)")
+                .addStatement("$N.arg1 = callId", varMessage)
+                .addStatement("$N.replyTo = replyHandler.mMessenger", varMessage)
+                .beginControlFlow("if (!_send($N))", varMessage)
+                .addStatement("replyHandler.fail(callId, new android.os.DeadObjectException())")
+                .endControlFlow();
+
+        builder.addStatement("return future");
+    }
+
+    // the flat payload is marshalled into byte[] by _send() if the target is in another process,
+    // so the class name of payload is not written
+    private void addPutPayloadStatement(MethodSpec.Builder builder, String varData, String varPayload, boolean flat) {
+        if (flat) {
+            mPayloadMarshalled = true;
+            builder.addStatement("$N.putParcelable($S, $N)", varData, PAYLOAD_FLAT_KEY, varPayload);
+        } else {
+            builder.addStatement("$N.putParcelable($S, $N)", varData, PAYLOAD_KEY, varPayload);
+        }
     }
 
     @Override
     protected void implement_handleMessageStatement(MethodSpec.Builder builder, TypeElement interfaceElement, String paramName) {
+        if (isBatchEnabled()) {
+            builder.beginControlFlow("if ($N.what == MSG_BATCH)", paramName)
+                    .addStatement("_dispatchBatch($N)", paramName)
+                    .addStatement("return")
+                    .endControlFlow();
+        }
+
         String varReceiver = "receiver";
         builder.addStatement("$T $N = ($T)mReceiverWeakRef.get()", interfaceElement, varReceiver, interfaceElement);
 
         builder.beginControlFlow("if ($N == null)", varReceiver)
+                .addStatement("_detach()")
                 .addStatement("return")
                 .endControlFlow();
 
-        String varData = "data";
-        builder.addStatement("$T $N = $N.getData()", mBundleType, varData, paramName)
-                .addStatement("$N.setClassLoader(Thread.currentThread().getContextClassLoader())", varData)
-                .beginControlFlow("switch ($N.what)", paramName);
+        builder.beginControlFlow("switch ($N.what)", paramName);
 
         for (Pair<String, ExecutableElement> methodPair : getInterfaceMethodPairs()) {
             builder.addCode("case $N:\n", methodPair.getKey());
@@ -184,420 +370,591 @@ public class MessengerGenerator extends AbstractGenerator {
             String paramPrefix = methodPair.getKey();
             ExecutableElement methodElement = methodPair.getValue();
 
-            extractParams(builder, methodElement, varData, paramPrefix);
+            extractParams(builder, methodPair, paramName);
 
-            builder.addStatement("$N.$N($N)", varReceiver, methodElement.getSimpleName(), getParamList(paramPrefix, methodElement))
-                    .addStatement("break");
+            addDispatchStartStatement(builder, methodPair.getKey());
+            if (returnsFuture(methodElement)) {
+                addReplyStatement(builder, methodPair, varReceiver, paramName);
+            } else {
+                builder.addStatement("$N.$N($N)", varReceiver, methodElement.getSimpleName(), getParamList(paramPrefix, methodElement));
+            }
+            addDispatchEndStatement(builder, methodPair.getKey(), paramName);
+            builder.addStatement("break");
         }
 
         builder.endControlFlow();
     }
 
-    private void extractParams(MethodSpec.Builder builder, ExecutableElement methodElement, String bundleName, String paramPrefix) {
-        List<? extends VariableElement> params = methodElement.getParameters();
+    // the exception of receiver is replied as error
+    private void addReplyStatement(MethodSpec.Builder builder, Pair<String, ExecutableElement> methodPair, String varReceiver, String paramName) {
+        String methodId = methodPair.getKey();
+        ExecutableElement methodElement = methodPair.getValue();
+        String varResult = methodId + "_result";
 
-        for (VariableElement param : params) {
-            extractParam(builder, param, bundleName, paramPrefix);
-        }
+        builder.addStatement("$T $N", ParameterizedTypeName.get(COMPLETABLE_FUTURE, WildcardTypeName.subtypeOf(Object.class)), varResult)
+                .beginControlFlow("try")
+                .addStatement("$N = $N.$N($N)", varResult, varReceiver, methodElement.getSimpleName(), getParamList(methodId, methodElement))
+                .nextControlFlow("catch (Throwable e)")
+                .addStatement("$N = _failedFuture(e)", varResult)
+                .endControlFlow()
+                .addStatement("_reply($N.replyTo, $N.arg1, $N)", paramName, paramName, varResult);
     }
 
-    private void extractParam(MethodSpec.Builder builder, VariableElement param, String bundleName, String paramPrefix) {
-        if (isPrimitive(param)) {
-            extractPrimitive(builder, param, bundleName, paramPrefix);
-            return;
-        }
+    // the arguments are read from the payload, the payload is null if the message is sent by an
+    // incompatible caller
+    private void extractParams(MethodSpec.Builder builder, Pair<String, ExecutableElement> methodPair, String paramName) {
+        String methodId = methodPair.getKey();
+        List<? extends VariableElement> params = methodPair.getValue().getParameters();
 
-        if (isArray(param)) {
-            extractArray(builder, param, bundleName, paramPrefix);
+        if (params.isEmpty()) {
             return;
         }
 
-        Element paramType = mTypes.asElement(param.asType());
+        ClassName payloadType = getPayloadClassName(methodId);
+        String varPayload = methodId + "_payload";
 
-        if (isSparseArray(paramType)) {
-            extractSparseParcelableArray(builder, param, bundleName, paramPrefix);
-            return;
-        }
+        builder.addStatement("$T $N = _getPayload($N, $T.class, $T.CREATOR)", payloadType, varPayload, paramName, payloadType, payloadType)
+                .beginControlFlow("if ($N == null)", varPayload)
+                .addStatement("break")
+                .endControlFlow();
 
-        if (isList(paramType)) {
-            extractList(builder, param, bundleName, paramPrefix);
-            return;
-        }
+        for (int i = 0; i < params.size(); i++) {
+            TypeMirror paramType = params.get(i).asType();
+            String varParam = methodId + "_" + params.get(i).getSimpleName();
 
-        if (isString(paramType)) {
-            extractString(builder, param, bundleName, paramPrefix);
-            return;
+            if (mTypes.isSameType(paramType, mTypes.erasure(paramType))) {
+                builder.addStatement("$T $N = $N.arg$L", paramType, varParam, varPayload, i);
+            } else {
+                builder.addStatement("$T $N = ($T)$N.arg$L", paramType, varParam, paramType, varPayload, i);
+            }
         }
+    }
 
-        if (isCharSequence(paramType)) {
-            extractCharSequence(builder, param, bundleName, paramPrefix);
-            return;
-        }
+    private String getParamList(String prefix, ExecutableElement method) {
+        StringBuilder buf = new StringBuilder();
 
-        if (isIBinder(paramType)) {
-            extractIBinder(builder, param, bundleName, paramPrefix);
-            return;
-        }
+        List<? extends VariableElement> params = method.getParameters();
+        for (int i = 0; i < params.size(); i++) {
+            buf.append(prefix)
+                    .append("_")
+                    .append(params.get(i).getSimpleName());
 
-        if (isParcelable(paramType)) {
-            extractParcelable(builder, param, bundleName, paramPrefix);
-            return;
+            if (i < params.size() - 1) {
+                buf.append(",");
+            }
         }
 
-        if (isSerializable(paramType)) {
-            extractSerializable(builder, param, bundleName, paramPrefix);
-            return;
-        }
+        return buf.toString();
+    }
 
-        if (isSize(paramType)) {
-            extractSize(builder, param, bundleName, paramPrefix);
-            return;
-        }
+    @Override
+    protected TypeSpec.Builder getInterfaceBuilder() {
+        return mMessengerBuilder;
+    }
 
-        if (isSizeF(paramType)) {
-            extractSizeF(builder, param, bundleName, paramPrefix);
-        }
+    private void initMessengerBuilder(String className) {
+        mMessengerBuilder = TypeSpec.classBuilder(className)
+                .addModifiers(Modifier.PUBLIC, Modifier.FINAL);
     }
 
-    private void extractArray(MethodSpec.Builder builder, VariableElement param, String bundleName, String paramPrefix) {
-        ArrayType arrayType = (ArrayType) param.asType();
-        TypeMirror componentType = arrayType.getComponentType();
+    private void generateMessengerField() {
+        mMessengerBuilder.addField(FieldSpec.builder(
+                ClassName.get("android.os", "Messenger"),
+                mMessengerFieldName,
+                Modifier.PRIVATE,
+                Modifier.VOLATILE
+        ).build());
+    }
 
-        if (componentType.getKind().isPrimitive()) {
-            extractPrimitiveArray(builder, param, bundleName, paramPrefix);
-            return;
-        }
+    // Connection:
+    // 1. the client links a DeathWatcher to the target, the connection is lost when the target is
+    //    dead or failed to send.
+    // 2. the calls are buffered in mDisconnectedCalls while disconnected, the calls beyond
+    //    reconnectBufferSize are lost (counted by mLostCallCount).
+    // 3. attach(IBinder) sends the buffered calls in order to the new target. The Messenger with
+    //    receiver is always connected.
+    // 4. the channel (message.arg2) routes the calls of the proxy created by MessengerHub, it is 0
+    //    if connected to the Messenger directly.
+    private void generateConnection() {
+        ClassName binderType = ClassName.get("android.os", "IBinder");
+        ClassName messengerType = ClassName.get("android.os", "Messenger");
+        ClassName watcherType = ClassName.get("", "DeathWatcher");
+        ParameterizedTypeName dequeType = ParameterizedTypeName.get(ClassName.get("java.util", "ArrayDeque"), mMessageType);
+
+        mMessengerBuilder.addField(FieldSpec.builder(int.class, "RECONNECT_BUFFER_SIZE", Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                .initializer("$L", mInterfaceElement.getAnnotation(Messenger.class).reconnectBufferSize())
+                .build());
 
-        Element componentTypeElement = mTypes.asElement(componentType);
+        mMessengerBuilder.addField(FieldSpec.builder(Object.class, "mConnectionLock", Modifier.PRIVATE, Modifier.FINAL)
+                .initializer("new Object()")
+                .build());
 
-        if (isString(componentTypeElement)) {
-            extractStringArray(builder, param, bundleName, paramPrefix);
-            return;
-        }
+        mMessengerBuilder.addField(FieldSpec.builder(dequeType, "mDisconnectedCalls", Modifier.PRIVATE, Modifier.FINAL)
+                .initializer("new $T<>()", ClassName.get("java.util", "ArrayDeque"))
+                .build());
 
-        if (isCharSequence(componentTypeElement)) {
-            extractCharSequenceArray(builder, param, bundleName, paramPrefix);
-            return;
-        }
+        mMessengerBuilder.addField(boolean.class, "mConnected", Modifier.PRIVATE, Modifier.VOLATILE);
+        mMessengerBuilder.addField(long.class, "mLostCallCount", Modifier.PRIVATE);
+        mMessengerBuilder.addField(watcherType, "mDeathWatcher", Modifier.PRIVATE);
+        mMessengerBuilder.addField(int.class, "mChannel", Modifier.PRIVATE);
+
+        mMessengerBuilder.addType(TypeSpec.classBuilder(watcherType.simpleName())
+                .addModifiers(Modifier.PRIVATE, Modifier.FINAL)
+                .addSuperinterface(binderType.nestedClass("DeathRecipient"))
+                .addField(binderType, "mTarget", Modifier.FINAL)
+                .addMethod(MethodSpec.constructorBuilder()
+                        .addParameter(binderType, "target")
+                        .addStatement("mTarget = target")
+                        .build())
+                .addMethod(MethodSpec.methodBuilder("binderDied")
+                        .addAnnotation(Override.class)
+                        .addModifiers(Modifier.PUBLIC)
+                        .beginControlFlow("synchronized (mConnectionLock)")
+                        .beginControlFlow("if (mDeathWatcher == this)")
+                        .addStatement("mConnected = false")
+                        .endControlFlow()
+                        .endControlFlow()
+                        .build())
+                .build());
 
-        if (isParcelable(componentTypeElement)) {
-            extractParcelableArray(builder, param, bundleName, paramPrefix);
+        MethodSpec.Builder attachBuilder = MethodSpec.methodBuilder("attach")
+                .addJavadoc("Connect to the new target, for example, the IBinder of the restarted service. The\n")
+                .addJavadoc("calls buffered while disconnected are sent to it in order.\n")
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(binderType, "target")
+                .beginControlFlow("synchronized (mConnectionLock)")
+                .beginControlFlow("if (mDeathWatcher != null)")
+                .beginControlFlow("try")
+                .addStatement("mDeathWatcher.mTarget.unlinkToDeath(mDeathWatcher, 0)")
+                .nextControlFlow("catch ($T e)", ClassName.get("java.util", "NoSuchElementException"))
+                .addComment("the old target is dead")
+                .endControlFlow()
+                .endControlFlow()
+                .addStatement("$N = new $T(target)", mMessengerFieldName, messengerType)
+                .addStatement("mDeathWatcher = new $T(target)", watcherType)
+                .beginControlFlow("try")
+                .addStatement("target.linkToDeath(mDeathWatcher, 0)")
+                .nextControlFlow("catch (android.os.RemoteException e)")
+                .addComment("the new target is already dead")
+                .addStatement("mConnected = false")
+                .addStatement("return")
+                .endControlFlow()
+                .addStatement("mConnected = true")
+                .beginControlFlow("while (!mDisconnectedCalls.isEmpty())")
+                .addStatement("$T message = mDisconnectedCalls.peekFirst()", mMessageType);
+
+        // the caller of the future call that timed out while buffered was told it failed, so the
+        // call is dropped instead of being run by the service
+        if (hasFutureMethod()) {
+            attachBuilder.beginControlFlow("if (message.replyTo != null && !_getReplyHandler().isPending(message.arg1))")
+                    .addStatement("mDisconnectedCalls.pollFirst()")
+                    .addStatement("message.recycle()")
+                    .addStatement("continue")
+                    .endControlFlow();
         }
-    }
 
-    private void extractPrimitiveArray(MethodSpec.Builder builder, VariableElement param, String bundleName, String paramPrefix) {
-        ArrayType arrayType = (ArrayType) param.asType();
-        TypeMirror componentType = arrayType.getComponentType();
+        mMessengerBuilder.addMethod(attachBuilder.beginControlFlow("try")
+                .addCode(getMarshallPayloadStatement())
+                .addStatement("$N.send(message)", mMessengerFieldName)
+                .nextControlFlow("catch (android.os.RemoteException e)")
+                .addStatement("mConnected = false")
+                .addStatement("return")
+                .endControlFlow()
+                .addStatement("mDisconnectedCalls.pollFirst()")
+                .endControlFlow()
+                .endControlFlow()
+                .build());
 
-        String paramName = param.getSimpleName().toString();
-        String componentTypeName = componentType.toString().toLowerCase();
+        mMessengerBuilder.addMethod(MethodSpec.methodBuilder("_send")
+                .addJavadoc("Returns false if the call is lost.\n")
+                .addModifiers(Modifier.PRIVATE)
+                .returns(boolean.class)
+                .addParameter(mMessageType, "message")
+                .addStatement("message.arg2 = mChannel")
+                .beginControlFlow("synchronized (mConnectionLock)")
+                .beginControlFlow("if (mConnected)")
+                .beginControlFlow("try")
+                .addCode(getMarshallPayloadStatement())
+                .addStatement("$N.send(message)", mMessengerFieldName)
+                .addStatement("return true")
+                .nextControlFlow("catch (android.os.RemoteException e)")
+                .addComment("the message is not delivered, buffer it until attached")
+                .addStatement("mConnected = false")
+                .endControlFlow()
+                .endControlFlow()
+                .beginControlFlow("if (mDisconnectedCalls.size() >= RECONNECT_BUFFER_SIZE)")
+                .addStatement("mLostCallCount++")
+                .addStatement("message.recycle()")
+                .addStatement("return false")
+                .endControlFlow()
+                .addStatement("mDisconnectedCalls.addLast(message)")
+                .addStatement("return true")
+                .endControlFlow()
+                .build());
 
-        componentTypeName = componentTypeName.substring(0, 1).toUpperCase() + componentTypeName.substring(1);
+        mMessengerBuilder.addMethod(MethodSpec.methodBuilder("isConnected")
+                .addJavadoc("Returns false if the target is dead, until {@link #attach(IBinder)} is called.\n")
+                .addModifiers(Modifier.PUBLIC)
+                .returns(boolean.class)
+                .addStatement("return mConnected")
+                .build());
 
-        builder.addStatement("$T $N_$N = $N.get$NArray($S)",
-                arrayType,
-                paramPrefix,
-                paramName,
-                bundleName,
-                componentTypeName,
-                paramName);
-    }
+        mMessengerBuilder.addMethod(MethodSpec.methodBuilder("getBufferedCallCount")
+                .addJavadoc("Returns the number of calls buffered while disconnected.\n")
+                .addModifiers(Modifier.PUBLIC)
+                .returns(int.class)
+                .beginControlFlow("synchronized (mConnectionLock)")
+                .addStatement("return mDisconnectedCalls.size()")
+                .endControlFlow()
+                .build());
 
-    private void extractStringArray(MethodSpec.Builder builder, VariableElement param, String bundleName, String paramPrefix) {
-        ArrayType arrayType = (ArrayType) param.asType();
-        String paramName = param.getSimpleName().toString();
+        mMessengerBuilder.addMethod(MethodSpec.methodBuilder("getLostCallCount")
+                .addJavadoc("Returns the number of calls dropped because the buffer was full while disconnected.\n")
+                .addModifiers(Modifier.PUBLIC)
+                .returns(long.class)
+                .beginControlFlow("synchronized (mConnectionLock)")
+                .addStatement("return mLostCallCount")
+                .endControlFlow()
+                .build());
+    }
 
-        builder.addStatement("$T $N_$N = $N.getStringArray($S)",
-                arrayType,
-                paramPrefix,
-                paramName,
-                bundleName,
-                paramName);
+    private void generate_getBinder() {
+        mMessengerBuilder.addMethod(MethodSpec.methodBuilder("getBinder")
+                .addModifiers(Modifier.PUBLIC)
+                .returns(ClassName.get("android.os", "IBinder"))
+                .addStatement("return $N.getBinder()", mMessengerFieldName)
+                .build());
     }
 
-    private void extractCharSequenceArray(MethodSpec.Builder builder, VariableElement param, String bundleName, String paramPrefix) {
-        ArrayType arrayType = (ArrayType) param.asType();
-        String paramName = param.getSimpleName().toString();
+    // the statistics are recorded by the Handler, so only available if this is created with receiver
+    private void generateStats() {
+        mMessengerBuilder.addField(ClassName.get("", "Handler"), "mHandler", Modifier.PRIVATE);
+
+        mMessengerBuilder.addMethod(MethodSpec.methodBuilder("getStats")
+                .addJavadoc("Returns the snapshot of dispatch statistics of the given method, or null if this\n")
+                .addJavadoc("Messenger is not created with receiver.\n")
+                .addModifiers(Modifier.PUBLIC)
+                .returns(MethodStats.class)
+                .addParameter(int.class, "methodId")
+                .beginControlFlow("if (mHandler == null)")
+                .addStatement("return null")
+                .endControlFlow()
+                .addStatement("return mHandler.getStats(methodId)")
+                .build());
 
-        builder.addStatement("$T $N_$N = ($T)$N.getCharSequenceArray($S)",
-                arrayType,
-                paramPrefix,
-                paramName,
-                arrayType,
-                bundleName,
-                paramName);
+        mMessengerBuilder.addMethod(MethodSpec.methodBuilder("dump")
+                .addJavadoc("Print the dispatch statistics of all methods, nothing if this Messenger is not\n")
+                .addJavadoc("created with receiver.\n")
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(PrintWriter.class, "writer")
+                .beginControlFlow("if (mHandler != null)")
+                .addStatement("mHandler.dump(writer)")
+                .endControlFlow()
+                .build());
     }
 
-    private void extractParcelableArray(MethodSpec.Builder builder, VariableElement param, String bundleName, String paramPrefix) {
-        ArrayType arrayType = (ArrayType) param.asType();
-        String paramName = param.getSimpleName().toString();
+    // Reply:
+    // 1. the caller registers the future to ReplyHandler, and sends the callId(message.arg1) with
+    //    the Messenger of ReplyHandler(message.replyTo).
+    // 2. the receiving Handler replies the result or error with the callId when the future of
+    //    receiver is completed.
+    // 3. ReplyHandler completes the future by callId on the main thread, or completes it with
+    //    TimeoutException if no reply in REPLY_TIMEOUT milliseconds.
+    private void generateReply(TypeSpec.Builder handlerBuilder) {
+        ClassName looperType = ClassName.get("android.os", "Looper");
+        ClassName sparseArrayType = ClassName.get("android.util", "SparseArray");
+        ClassName messengerType = ClassName.get("android.os", "Messenger");
+        ParameterizedTypeName anyFutureType = ParameterizedTypeName.get(COMPLETABLE_FUTURE, WildcardTypeName.subtypeOf(Object.class));
+
+        // Receiving side
+        handlerBuilder.addMethod(MethodSpec.methodBuilder("_failedFuture")
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                .returns(anyFutureType)
+                .addParameter(Throwable.class, "error")
+                .addStatement("$T<Object> future = new $T<>()", COMPLETABLE_FUTURE, COMPLETABLE_FUTURE)
+                .addStatement("future.completeExceptionally(error)")
+                .addStatement("return future")
+                .build());
 
-        builder.addStatement("$T $N_$N = ($T)$N.getParcelableArray($S)",
-                arrayType,
-                paramPrefix,
-                paramName,
-                arrayType,
-                bundleName,
-                paramName);
-    }
+        handlerBuilder.addMethod(MethodSpec.methodBuilder("_putResult")
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                .addParameter(mBundleType, "data")
+                .addParameter(Object.class, "value")
+                .beginControlFlow("if (value instanceof String)")
+                .addStatement("data.putString(\"result\", (String) value)")
+                .nextControlFlow("else if (value instanceof android.os.Parcelable)")
+                .addStatement("data.putParcelable(\"result\", (android.os.Parcelable) value)")
+                .nextControlFlow("else if (value instanceof CharSequence)")
+                .addStatement("data.putCharSequence(\"result\", (CharSequence) value)")
+                .nextControlFlow("else if (value instanceof java.io.Serializable)")
+                .addStatement("data.putSerializable(\"result\", (java.io.Serializable) value)")
+                .endControlFlow()
+                .build());
 
-    private void extractSparseParcelableArray(MethodSpec.Builder builder, VariableElement param, String bundleName, String paramPrefix) {
-        TypeMirror paramType = param.asType();
-        String paramName = param.getSimpleName().toString();
+        handlerBuilder.addMethod(MethodSpec.methodBuilder("_reply")
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                .addParameter(messengerType, "replyTo", Modifier.FINAL)
+                .addParameter(int.class, "callId", Modifier.FINAL)
+                .addParameter(anyFutureType, "result")
+                .beginControlFlow("if (replyTo == null)")
+                .addStatement("return")
+                .endControlFlow()
+                .beginControlFlow("if (result == null)")
+                .addStatement("result = $T.completedFuture(null)", COMPLETABLE_FUTURE)
+                .endControlFlow()
+                .addStatement("result.whenComplete($L)", TypeSpec.anonymousClassBuilder("")
+                        .addSuperinterface(ParameterizedTypeName.get(ClassName.get("java.util.function", "BiConsumer"),
+                                ClassName.get(Object.class), ClassName.get(Throwable.class)))
+                        .addMethod(MethodSpec.methodBuilder("accept")
+                                .addAnnotation(Override.class)
+                                .addModifiers(Modifier.PUBLIC)
+                                .addParameter(Object.class, "value")
+                                .addParameter(Throwable.class, "error")
+                                .addStatement("$T reply = $T.obtain()", mMessageType, mMessageType)
+                                .addStatement("reply.what = $T.MSG_REPLY", mReplyHandlerType)
+                                .addStatement("reply.arg1 = callId")
+                                .addStatement("$T data = new $T()", mBundleType, mBundleType)
+                                .beginControlFlow("if (error != null)")
+                                .addStatement("data.putString(\"error\", error.toString())")
+                                .nextControlFlow("else")
+                                .addStatement("_putResult(data, value)")
+                                .endControlFlow()
+                                .addStatement("reply.setData(data)")
+                                .beginControlFlow("try")
+                                .addStatement("replyTo.send(reply)")
+                                .nextControlFlow("catch (android.os.RemoteException e)")
+                                .addComment("the caller is dead")
+                                .endControlFlow()
+                                .build())
+                        .build())
+                .build());
 
-        builder.addStatement("$T $N_$N = $N.getSparseParcelableArray($S)",
-                paramType,
-                paramPrefix,
-                paramName,
-                bundleName,
-                paramName);
-    }
+        // Calling side
+        mMessengerBuilder.addField(FieldSpec.builder(long.class, "REPLY_TIMEOUT", Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                .initializer("$LL", mInterfaceElement.getAnnotation(Messenger.class).replyTimeout())
+                .build());
 
-    // 1. List<Integer>
-    // 2. List<String>
-    // 3. List<CharSequence>
-    // 4. List<? extends Parcelable>
-    private void extractList(MethodSpec.Builder builder, VariableElement param, String bundleName, String paramPrefix) {
-        DeclaredType declaredType = (DeclaredType) param.asType();
+        mMessengerBuilder.addField(mReplyHandlerType, "mReplyHandler", Modifier.PRIVATE);
 
-        List<? extends TypeMirror> typeArguments = declaredType.getTypeArguments();
-        if (typeArguments.size() < 1) {
-            mMessager.printMessage(Diagnostic.Kind.ERROR, "The type argument of List is unknown.");
-        }
+        mMessengerBuilder.addMethod(MethodSpec.methodBuilder("_getReplyHandler")
+                .addModifiers(Modifier.PRIVATE, Modifier.SYNCHRONIZED)
+                .returns(mReplyHandlerType)
+                .beginControlFlow("if (mReplyHandler == null)")
+                .addStatement("mReplyHandler = new $T($T.getMainLooper())", mReplyHandlerType, looperType)
+                .endControlFlow()
+                .addStatement("return mReplyHandler")
+                .build());
 
-        Element element = mTypes.asElement(typeArguments.get(0));
+        TypeSpec.Builder replyHandlerBuilder = TypeSpec.classBuilder(mReplyHandlerType.simpleName())
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                .superclass(ClassName.get("android.os", "Handler"))
+                .addField(FieldSpec.builder(int.class, "MSG_REPLY", Modifier.STATIC, Modifier.FINAL)
+                        .initializer("1")
+                        .build())
+                .addField(FieldSpec.builder(int.class, "MSG_TIMEOUT", Modifier.STATIC, Modifier.FINAL)
+                        .initializer("2")
+                        .build())
+                .addField(FieldSpec.builder(sparseArrayType, "mCalls", Modifier.PRIVATE, Modifier.FINAL)
+                        .initializer("new $T()", sparseArrayType)
+                        .build())
+                .addField(int.class, "mNextCallId", Modifier.PRIVATE)
+                .addField(messengerType, "mMessenger", Modifier.FINAL);
+
+        replyHandlerBuilder.addMethod(MethodSpec.constructorBuilder()
+                .addParameter(looperType, "looper")
+                .addStatement("super(looper)")
+                .addStatement("mMessenger = new $T(this)", messengerType)
+                .build());
 
-        if (isInteger(element)) {
-            extractIntegerList(builder, param, bundleName, paramPrefix);
-            return;
-        }
+        replyHandlerBuilder.addMethod(MethodSpec.methodBuilder("register")
+                .returns(int.class)
+                .addParameter(COMPLETABLE_FUTURE, "future")
+                .addParameter(long.class, "timeout")
+                .addStatement("int callId")
+                .beginControlFlow("synchronized (mCalls)")
+                .addStatement("callId = ++mNextCallId")
+                .addStatement("mCalls.put(callId, future)")
+                .endControlFlow()
+                .beginControlFlow("if (timeout > 0)")
+                .addStatement("sendMessageDelayed(obtainMessage(MSG_TIMEOUT, callId, 0, future), timeout)")
+                .endControlFlow()
+                .addStatement("return callId")
+                .build());
 
-        if (isString(element)) {
-            extractStringList(builder, param, bundleName, paramPrefix);
-            return;
-        }
+        replyHandlerBuilder.addMethod(MethodSpec.methodBuilder("take")
+                .addModifiers(Modifier.PRIVATE)
+                .returns(COMPLETABLE_FUTURE)
+                .addParameter(int.class, "callId")
+                .beginControlFlow("synchronized (mCalls)")
+                .addStatement("$T future = ($T) mCalls.get(callId)", COMPLETABLE_FUTURE, COMPLETABLE_FUTURE)
+                .addStatement("mCalls.remove(callId)")
+                .addStatement("return future")
+                .endControlFlow()
+                .build());
 
-        if (isCharSequence(element)) {
-            extractCharSequenceList(builder, param, bundleName, paramPrefix);
-            return;
-        }
+        replyHandlerBuilder.addMethod(MethodSpec.methodBuilder("isPending")
+                .returns(boolean.class)
+                .addParameter(int.class, "callId")
+                .beginControlFlow("synchronized (mCalls)")
+                .addStatement("return mCalls.get(callId) != null")
+                .endControlFlow()
+                .build());
 
-        if (isParcelable(element)) {
-            extractParcelableList(builder, param, bundleName, paramPrefix);
-        }
-    }
+        replyHandlerBuilder.addMethod(MethodSpec.methodBuilder("fail")
+                .addParameter(int.class, "callId")
+                .addParameter(Throwable.class, "error")
+                .addStatement("$T future = take(callId)", COMPLETABLE_FUTURE)
+                .beginControlFlow("if (future != null)")
+                .addStatement("removeMessages(MSG_TIMEOUT, future)")
+                .addStatement("future.completeExceptionally(error)")
+                .endControlFlow()
+                .build());
 
-    private void extractIntegerList(MethodSpec.Builder builder, VariableElement param, String bundleName, String paramPrefix) {
-        TypeMirror paramType = param.asType();
-        String paramName = param.getSimpleName().toString();
+        replyHandlerBuilder.addMethod(MethodSpec.methodBuilder("handleMessage")
+                .addAnnotation(Override.class)
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(mMessageType, "msg")
+                .beginControlFlow("if (msg.what == MSG_TIMEOUT)")
+                .addStatement("fail(msg.arg1, new $T())", ClassName.get("java.util.concurrent", "TimeoutException"))
+                .addStatement("return")
+                .endControlFlow()
+                .beginControlFlow("if (msg.what != MSG_REPLY)")
+                .addStatement("return")
+                .endControlFlow()
+                .addComment("null if timeout")
+                .addStatement("$T future = take(msg.arg1)", COMPLETABLE_FUTURE)
+                .beginControlFlow("if (future == null)")
+                .addStatement("return")
+                .endControlFlow()
+                .addStatement("removeMessages(MSG_TIMEOUT, future)")
+                .addStatement("$T data = msg.getData()", mBundleType)
+                .addStatement("data.setClassLoader(Thread.currentThread().getContextClassLoader())")
+                .addStatement("String error = data.getString(\"error\")")
+                .beginControlFlow("if (error != null)")
+                .addStatement("future.completeExceptionally(new android.os.RemoteException(error))")
+                .nextControlFlow("else")
+                .addStatement("future.complete(data.get(\"result\"))")
+                .endControlFlow()
+                .build());
 
-        builder.addStatement("$T $N_$N = $N.getIntegerArrayList($S)",
-                paramType,
-                paramPrefix,
-                paramName,
-                bundleName,
-                paramName);
+        mMessengerBuilder.addType(replyHandlerBuilder.build());
     }
 
-    private void extractStringList(MethodSpec.Builder builder, VariableElement param, String bundleName, String paramPrefix) {
-        TypeMirror paramType = param.asType();
-        String paramName = param.getSimpleName().toString();
-
-        builder.addStatement("$T $N_$N = $N.getStringArrayList($S)",
-                paramType,
-                paramPrefix,
-                paramName,
-                bundleName,
-                paramName);
+    private void generate_getMessenger() {
+        mMessengerBuilder.addMethod(MethodSpec.methodBuilder("getMessenger")
+                .addModifiers(Modifier.PUBLIC)
+                .returns(ClassName.get("android.os", "Messenger"))
+                .addStatement("return $N", mMessengerFieldName)
+                .build());
     }
 
-    private void extractCharSequenceList(MethodSpec.Builder builder, VariableElement param, String bundleName, String paramPrefix) {
-        TypeMirror paramType = param.asType();
-        String paramName = param.getSimpleName().toString();
+    // Constructor:
+    // 1. (IBinder binder)
+    // 2. (Looper looper, Receiver receiver)
+    // 3. (Receiver receiver)
+    // 4. (IBinder binder, int channel)
+    private void generateConstructor(TypeElement interfaceElement) {
+        // 1. (IBinder binder)
+        MethodSpec factory1 = MethodSpec.constructorBuilder()
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(ClassName.get("android.os", "IBinder"), "target")
+                .addStatement("this(target, 0)")
+                .build();
 
-        builder.addStatement("$T $N_$N = $N.getCharSequenceArrayList($S)",
-                paramType,
-                paramPrefix,
-                paramName,
-                bundleName,
-                paramName);
-    }
+        // 4. (IBinder binder, int channel)
+        MethodSpec factory4 = MethodSpec.constructorBuilder()
+                .addJavadoc("Create the proxy of the given channel of MessengerHub, the channel is 0 if the target is\n")
+                .addJavadoc("not a MessengerHub.\n")
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(ClassName.get("android.os", "IBinder"), "target")
+                .addParameter(int.class, "channel")
+                .addStatement("mChannel = channel")
+                .addStatement("attach(target)")
+                .build();
 
-    private void extractParcelableList(MethodSpec.Builder builder, VariableElement param, String bundleName, String paramPrefix) {
-        TypeMirror paramType = param.asType();
-        String paramName = param.getSimpleName().toString();
+        // 2. (Looper looper, Receiver receiver)
+        MethodSpec.Builder factory2Builder = MethodSpec.constructorBuilder()
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(ClassName.get("android.os", "Looper"), "looper")
+                .addParameter(TypeName.get(interfaceElement.asType()), "receiver");
 
-        builder.addStatement("$T $N_$N = $N.getParcelableArrayList($S)",
-                paramType,
-                paramPrefix,
-                paramName,
-                bundleName,
-                paramName);
-    }
+        if (isStatsEnabled()) {
+            factory2Builder.addStatement("mHandler = new Handler(looper, receiver)")
+                    .addStatement("$N = new android.os.Messenger(mHandler)", mMessengerFieldName);
+        } else {
+            factory2Builder.addStatement("$N = new android.os.Messenger(new Handler(looper, receiver))", mMessengerFieldName);
+        }
 
-    private void extractPrimitive(MethodSpec.Builder builder, VariableElement param, String bundleName, String paramPrefix) {
-        TypeMirror typeMirror = param.asType();
-        String paramName = param.getSimpleName().toString();
+        MethodSpec factory2 = factory2Builder.addStatement("mConnected = true")
+                .build();
 
-        String paramTypeName = param.asType().toString().toLowerCase();
-        paramTypeName = paramTypeName.substring(0, 1).toUpperCase() + paramTypeName.substring(1);
+        // 3. (Receiver receiver)
+        MethodSpec factory3 = MethodSpec.constructorBuilder()
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(TypeName.get(interfaceElement.asType()), "receiver")
+                .addStatement("this(android.os.Looper.getMainLooper(), receiver)")
+                .build();
 
-        builder.addStatement("$T $N_$N = $N.get$N($S)", typeMirror, paramPrefix, paramName, bundleName, paramTypeName, paramName);
+        mMessengerBuilder.addMethod(factory1)
+                .addMethod(factory2)
+                .addMethod(factory3)
+                .addMethod(factory4);
     }
 
-    private void extractString(MethodSpec.Builder builder, VariableElement param, String bundleName, String paramPrefix) {
-        TypeMirror typeMirror = param.asType();
-        String paramName = param.getSimpleName().toString();
-        builder.addStatement("$T $N_$N = $N.getString($S)", typeMirror, paramPrefix, paramName, bundleName, paramName);
-    }
+    // the annotations that only supported by @Handler
+    private void checkHandlerOnlyAnnotation(ExecutableElement methodElement) {
+        if (methodElement.getAnnotation(Coalesce.class) != null) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, "@Coalesce is only supported by @Handler.", methodElement);
+        }
 
-    private void extractCharSequence(MethodSpec.Builder builder, VariableElement param, String bundleName, String paramPrefix) {
-        TypeMirror typeMirror = param.asType();
-        String paramName = param.getSimpleName().toString();
+        if (methodElement.getAnnotation(Throttle.class) != null) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, "@Throttle is only supported by @Handler.", methodElement);
+        }
 
-        builder.addStatement("$T $N_$N = ($T)$N.getCharSequence($S)",
-                typeMirror,
-                paramPrefix,
-                paramName,
-                typeMirror,
-                bundleName,
-                paramName);
-    }
+        if (methodElement.getAnnotation(Debounce.class) != null) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, "@Debounce is only supported by @Handler.", methodElement);
+        }
 
-    private void extractIBinder(MethodSpec.Builder builder, VariableElement param, String bundleName, String paramPrefix) {
-        TypeMirror typeMirror = param.asType();
-        String paramName = param.getSimpleName().toString();
+        if (methodElement.getAnnotation(Async.class) != null) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, "@Async is only supported by @Handler.", methodElement);
+        }
 
-        builder.addStatement("$T $N_$N = ($T)$N.getBinder($S)",
-                typeMirror,
-                paramPrefix,
-                paramName,
-                typeMirror,
-                bundleName,
-                paramName);
-    }
+        if (methodElement.getAnnotation(Batch.class) != null) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, "@Batch is only supported by @Handler.", methodElement);
+        }
 
-    private void extractParcelable(MethodSpec.Builder builder, VariableElement param, String bundleName, String paramPrefix) {
-        TypeMirror typeMirror = param.asType();
-        String paramName = param.getSimpleName().toString();
+        if (methodElement.getAnnotation(Priority.class) != null) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, "@Priority is only supported by @Handler.", methodElement);
+        }
 
-        builder.addStatement("$T $N_$N = ($T)$N.getParcelable($S)",
-                typeMirror,
-                paramPrefix,
-                paramName,
-                typeMirror,
-                bundleName,
-                paramName);
-    }
-
-    private void extractSerializable(MethodSpec.Builder builder, VariableElement param, String bundleName, String paramPrefix) {
-        TypeMirror typeMirror = param.asType();
-        String paramName = param.getSimpleName().toString();
-
-        builder.addStatement("$T $N_$N = ($T)$N.getSerializable($S)",
-                typeMirror,
-                paramPrefix,
-                paramName,
-                typeMirror,
-                bundleName,
-                paramName);
-    }
-
-    // android.util.Size
-    private void extractSize(MethodSpec.Builder builder, VariableElement param, String bundleName, String paramPrefix) {
-        TypeMirror typeMirror = param.asType();
-        String paramName = param.getSimpleName().toString();
-        builder.addStatement("$T $N_$N = $N.getSize($S)", typeMirror, paramPrefix, paramName, bundleName, paramName);
-    }
-
-    // android.util.SizeF
-    private void extractSizeF(MethodSpec.Builder builder, VariableElement param, String bundleName, String paramPrefix) {
-        TypeMirror typeMirror = param.asType();
-        String paramName = param.getSimpleName().toString();
-        builder.addStatement("$T $N_$N = $N.getSizeF($S)", typeMirror, paramPrefix, paramName, bundleName, paramName);
-    }
-
-    private String getParamList(String prefix, ExecutableElement method) {
-        StringBuilder buf = new StringBuilder();
-
-        List<? extends VariableElement> params = method.getParameters();
-        for (int i = 0; i < params.size(); i++) {
-            buf.append(prefix)
-                    .append("_")
-                    .append(params.get(i).getSimpleName());
-
-            if (i < params.size() - 1) {
-                buf.append(",");
-            }
+        if (methodElement.getAnnotation(Bounded.class) != null) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, "@Bounded is only supported by @Handler.", methodElement);
         }
 
-        return buf.toString();
-    }
-
-    @Override
-    protected TypeSpec.Builder getInterfaceBuilder() {
-        return mMessengerBuilder;
-    }
-
-    private void initMessengerBuilder(String className) {
-        mMessengerBuilder = TypeSpec.classBuilder(className)
-                .addModifiers(Modifier.PUBLIC, Modifier.FINAL);
-    }
-
-    private void generateMessengerField() {
-        mMessengerBuilder.addField(FieldSpec.builder(
-                ClassName.get("android.os", "Messenger"),
-                mMessengerFieldName,
-                Modifier.PRIVATE
-        ).build());
-    }
-
-    private void generate_getBinder() {
-        mMessengerBuilder.addMethod(MethodSpec.methodBuilder("getBinder")
-                .addModifiers(Modifier.PUBLIC)
-                .returns(ClassName.get("android.os", "IBinder"))
-                .addStatement("return $N.getBinder()", mMessengerFieldName)
-                .build());
-    }
+        if (methodElement.getAnnotation(Unordered.class) != null) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, "@Unordered is only supported by @Handler.", methodElement);
+        }
 
-    private void generate_getMessenger() {
-        mMessengerBuilder.addMethod(MethodSpec.methodBuilder("getMessenger")
-                .addModifiers(Modifier.PUBLIC)
-                .returns(ClassName.get("android.os", "Messenger"))
-                .addStatement("return $N", mMessengerFieldName)
-                .build());
+        checkShardKeyUnsupported(methodElement);
     }
 
-    // Constructor:
-    // 1. (IBinder binder)
-    // 2. (Looper looper, Receiver receiver)
-    // 3. (Receiver receiver)
-    private void generateConstructor(TypeElement interfaceElement) {
-        // 1. (IBinder binder)
-        MethodSpec factory1 = MethodSpec.constructorBuilder()
-                .addModifiers(Modifier.PUBLIC)
-                .addParameter(ClassName.get("android.os", "IBinder"), "target")
-                .addStatement("$N = new android.os.Messenger(target)", mMessengerFieldName)
-                .build();
-
-        // 2. (Looper looper, Receiver receiver)
-        MethodSpec factory2 = MethodSpec.constructorBuilder()
-                .addModifiers(Modifier.PUBLIC)
-                .addParameter(ClassName.get("android.os", "Looper"), "looper")
-                .addParameter(TypeName.get(interfaceElement.asType()), "receiver")
-                .addStatement("$N = new android.os.Messenger(new Handler(looper, receiver))", mMessengerFieldName)
-                .build();
+    // the T of CompletableFuture<T>: Void, String, CharSequence, Parcelable or Serializable
+    private boolean isReplyTypeIllegal(ExecutableElement methodElement) {
+        List<? extends TypeMirror> typeArguments = ((DeclaredType) methodElement.getReturnType()).getTypeArguments();
+        if (typeArguments.size() < 1 || typeArguments.get(0).getKind() == TypeKind.WILDCARD) {
+            return true;
+        }
 
-        // 3. (Receiver receiver)
-        MethodSpec factory3 = MethodSpec.constructorBuilder()
-                .addModifiers(Modifier.PUBLIC)
-                .addParameter(TypeName.get(interfaceElement.asType()), "receiver")
-                .addStatement("this(android.os.Looper.getMainLooper(), receiver)")
-                .build();
+        Element element = mTypes.asElement(typeArguments.get(0));
+        if (element == null) {
+            return true;
+        }
 
-        mMessengerBuilder.addMethod(factory1)
-                .addMethod(factory2)
-                .addMethod(factory3);
+        return !(isSubType(element, "java.lang.Void") ||
+                isString(element) ||
+                isCharSequence(element) ||
+                isParcelable(element) ||
+                isSerializable(element));
     }
 
     private boolean isParametersTypeIllegal(ExecutableElement methodElement) {
@@ -631,6 +988,10 @@ public class MessengerGenerator extends AbstractGenerator {
             return false;
         }
 
+        if (isFlatMap(param.asType())) {
+            return false;
+        }
+
         return !(isString(element) ||
                 isCharSequence(element) ||
                 isIBinder(element) ||
@@ -676,6 +1037,10 @@ public class MessengerGenerator extends AbstractGenerator {
     // 3. List<CharSequence>
     // 4. List<? extends Parcelable>
     private boolean isListTypeLegal(VariableElement param) {
+        if (isPrimitiveList(param.asType())) {
+            return true;
+        }
+
         DeclaredType declaredType = (DeclaredType) param.asType();
 
         List<? extends TypeMirror> typeArguments = declaredType.getTypeArguments();
@@ -690,6 +1055,69 @@ public class MessengerGenerator extends AbstractGenerator {
         return true;
     }
 
+    // List<Long>, List<Double>, List<Float>: written like the primitive array, no type tag and
+    // boxing on the wire
+    private boolean isPrimitiveList(TypeMirror type) {
+        if (!isDeclaredAs(type, "java.util.List")) {
+            return false;
+        }
+
+        TypeKind kind = getUnboxedKind(((DeclaredType) type).getTypeArguments().get(0));
+        return kind == TypeKind.LONG || kind == TypeKind.DOUBLE || kind == TypeKind.FLOAT;
+    }
+
+    // Map<K, V>: the size and the entries written one by one, no type tag on the wire
+    private boolean isFlatMap(TypeMirror type) {
+        if (!isDeclaredAs(type, "java.util.Map")) {
+            return false;
+        }
+
+        List<? extends TypeMirror> typeArguments = ((DeclaredType) type).getTypeArguments();
+        TypeMirror keyType = typeArguments.get(0);
+        TypeMirror valueType = typeArguments.get(1);
+
+        boolean keyLegal = getUnboxedKind(keyType) != null || isString(mTypes.asElement(keyType));
+        boolean valueLegal = getUnboxedKind(valueType) != null ||
+                isString(mTypes.asElement(valueType)) ||
+                isParcelable(mTypes.asElement(valueType));
+
+        return keyLegal && valueLegal;
+    }
+
+    // the type is exactly the given generic type, and its type arguments are declared types
+    private boolean isDeclaredAs(TypeMirror type, String typeQualifiedName) {
+        if (type.getKind() != TypeKind.DECLARED) {
+            return false;
+        }
+
+        TypeElement typeElement = mElements.getTypeElement(typeQualifiedName);
+        if (!mTypes.isSameType(mTypes.erasure(type), mTypes.erasure(typeElement.asType()))) {
+            return false;
+        }
+
+        List<? extends TypeMirror> typeArguments = ((DeclaredType) type).getTypeArguments();
+        if (typeArguments.isEmpty()) {
+            return false;
+        }
+
+        for (TypeMirror typeArgument : typeArguments) {
+            if (typeArgument.getKind() != TypeKind.DECLARED) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // the primitive kind of boxed type, null if not boxed
+    private TypeKind getUnboxedKind(TypeMirror type) {
+        try {
+            return mTypes.unboxedType(type).getKind();
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
     private boolean isArray(Element element) {
         return element.asType().getKind() == TypeKind.ARRAY;
     }
@@ -742,249 +1170,1540 @@ public class MessengerGenerator extends AbstractGenerator {
         TypeElement typeElement = mElements.getTypeElement(typeQualifiedName);
         return mTypes.isSubtype(element.asType(), typeElement.asType());
     }
+    private ClassName getPayloadClassName(String methodId) {
+        // METHOD_N -> MethodNPayload
+        return ClassName.get("", "Method" + methodId.substring(methodId.indexOf('_') + 1) + "Payload");
+    }
+
+    private boolean hasSizeParam(ExecutableElement methodElement) {
+        for (VariableElement param : methodElement.getParameters()) {
+            if (isPrimitive(param) || isArray(param)) {
+                continue;
+            }
+
+            Element element = mTypes.asElement(param.asType());
+            if (isSize(element) || isSizeF(element)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // Payload:
+    // the arguments are written to Parcel in the order of parameters and read back in the same
+    // order, so no key and type tag is marshalled for each argument, and the primitives are not
+    // boxed. The payload is the only entry of Message.data, because the Parcelable of app in
+    // Message.obj can not be unmarshalled by the ClassLoader of framework. It is marshalled into
+    // byte[] if it has no binder or file descriptor, so the class name is not written either.
+    private void generatePayload(Pair<String, ExecutableElement> methodPair) {
+        ExecutableElement methodElement = methodPair.getValue();
+        List<? extends VariableElement> params = methodElement.getParameters();
+
+        ClassName payloadType = getPayloadClassName(methodPair.getKey());
+        ClassName parcelType = ClassName.get("android.os", "Parcel");
+        ClassName parcelableType = ClassName.get("android.os", "Parcelable");
+        ClassName creatorType = parcelableType.nestedClass("Creator");
+
+        TypeSpec.Builder builder = TypeSpec.classBuilder(payloadType.simpleName())
+                .addJavadoc("Wire format of: $L\n", methodElement.toString())
+                .addModifiers(Modifier.PUBLIC, Modifier.STATIC, Modifier.FINAL)
+                .addSuperinterface(parcelableType);
+
+        if (hasSizeParam(methodElement)) {
+            builder.addAnnotation(AnnotationSpec.builder(ClassName.get("androidx.annotation", "RequiresApi"))
+                    .addMember("value", "android.os.Build.VERSION_CODES.LOLLIPOP")
+                    .build());
+        }
+
+        MethodSpec.Builder constructorBuilder = MethodSpec.constructorBuilder();
+
+        MethodSpec.Builder readBuilder = MethodSpec.constructorBuilder()
+                .addModifiers(Modifier.PRIVATE)
+                .addParameter(parcelType, "in");
+
+        MethodSpec.Builder writeBuilder = MethodSpec.methodBuilder("writeToParcel")
+                .addAnnotation(Override.class)
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(parcelType, "dest")
+                .addParameter(int.class, "flags");
+
+        for (int i = 0; i < params.size(); i++) {
+            VariableElement param = params.get(i);
+            TypeName fieldType = TypeName.get(mTypes.erasure(param.asType()));
+            String field = "arg" + i;
+
+            builder.addField(fieldType, field);
+
+            if (isSharedArray(param)) {
+                mSharedArrayUsed = true;
+            }
+
+            if (isCompressed(param)) {
+                mCompressionUsed = true;
+            }
+
+            constructorBuilder.addParameter(fieldType, field)
+                    .addStatement("this.$N = $N", field, field);
+
+            addWriteStatement(writeBuilder, param, field);
+            addReadStatement(readBuilder, param, field, payloadType);
+        }
+
+        builder.addMethod(constructorBuilder.build())
+                .addMethod(readBuilder.build())
+                .addMethod(MethodSpec.methodBuilder("describeContents")
+                        .addAnnotation(Override.class)
+                        .addModifiers(Modifier.PUBLIC)
+                        .returns(int.class)
+                        .addStatement("return 0")
+                        .build())
+                .addMethod(writeBuilder.build());
+
+        builder.addField(FieldSpec.builder(ParameterizedTypeName.get(creatorType, payloadType), "CREATOR",
+                Modifier.PUBLIC, Modifier.STATIC, Modifier.FINAL)
+                .initializer("$L", TypeSpec.anonymousClassBuilder("")
+                        .addSuperinterface(ParameterizedTypeName.get(creatorType, payloadType))
+                        .addMethod(MethodSpec.methodBuilder("createFromParcel")
+                                .addAnnotation(Override.class)
+                                .addModifiers(Modifier.PUBLIC)
+                                .returns(payloadType)
+                                .addParameter(parcelType, "in")
+                                .addStatement("return new $T(in)", payloadType)
+                                .build())
+                        .addMethod(MethodSpec.methodBuilder("newArray")
+                                .addAnnotation(Override.class)
+                                .addModifiers(Modifier.PUBLIC)
+                                .returns(ArrayTypeName.of(payloadType))
+                                .addParameter(int.class, "size")
+                                .addStatement("return new $T[size]", payloadType)
+                                .build())
+                        .build())
+                .build());
+
+        mMessengerBuilder.addType(builder.build());
+    }
+
+    // the name of Parcel method of primitive: Byte, Int, Long, Float, Double, Char, Boolean
+    private String getParcelTypeName(TypeKind kind) {
+        if (kind == TypeKind.SHORT) {
+            return "Int";
+        }
+
+        String name = kind.toString().toLowerCase();
+        return name.substring(0, 1).toUpperCase() + name.substring(1);
+    }
+
+    private void addWriteStatement(MethodSpec.Builder builder, VariableElement param, String field) {
+        TypeMirror paramType = param.asType();
 
-    private void putDataIntoBundle(MethodSpec.Builder builder, VariableElement param, String bundleName) {
         if (isPrimitive(param)) {
-            putPrimitive(builder, param, bundleName);
+            writePrimitive(builder, paramType.getKind(), field);
             return;
         }
 
         if (isArray(param)) {
-            putArray(builder, param, bundleName);
+            writeArray(builder, (ArrayType) paramType, field);
             return;
         }
 
-        Element paramType = mTypes.asElement(param.asType());
+        Element element = mTypes.asElement(paramType);
 
-        if (isSparseArray(paramType)) {
-            putSparseParcelableArray(builder, param, bundleName);
+        if (isSparseArray(element)) {
+            builder.addStatement("dest.writeSparseArray(($T) $N)", ClassName.get("android.util", "SparseArray"), field);
             return;
         }
 
-        if (isList(paramType)) {
-            putList(builder, param, bundleName);
+        if (isPrimitiveList(paramType)) {
+            writePrimitiveList(builder, (DeclaredType) paramType, field);
             return;
         }
 
-        if (isString(paramType)) {
-            putString(builder, param, bundleName);
+        if (isFlatMap(paramType)) {
+            writeFlatMap(builder, (DeclaredType) paramType, field);
             return;
         }
 
-        if (isCharSequence(paramType)) {
-            putCharSequence(builder, param, bundleName);
+        if (isList(element)) {
+            if (isString(mTypes.asElement(((DeclaredType) paramType).getTypeArguments().get(0)))) {
+                builder.addStatement("dest.writeStringList($N)", field);
+            } else {
+                builder.addStatement("dest.writeList($N)", field);
+            }
             return;
         }
 
-        if (isIBinder(paramType)) {
-            putBinder(builder, param, bundleName);
+        if (isString(element)) {
+            if (isCompressed(param)) {
+                builder.beginControlFlow("if (!_writeCompressed(dest, $N))", field)
+                        .addStatement("dest.writeInt(0)")
+                        .addStatement("dest.writeString($N)", field)
+                        .endControlFlow();
+                return;
+            }
+
+            builder.addStatement("dest.writeString($N)", field);
             return;
         }
 
-        if (isParcelable(paramType)) {
-            putParcelable(builder, param, bundleName);
+        if (isCharSequence(element)) {
+            builder.addStatement("$T.writeToParcel($N, dest, flags)", ClassName.get("android.text", "TextUtils"), field);
             return;
         }
 
-        if (isSerializable(paramType)) {
-            putSerializable(builder, param, bundleName);
+        if (isIBinder(element)) {
+            builder.addStatement("dest.writeStrongBinder($N)", field);
             return;
         }
 
-        if (isSize(paramType)) {
-            putSize(builder, param, bundleName);
+        if (isParcelable(element)) {
+            builder.addStatement("dest.writeParcelable($N, flags)", field);
             return;
         }
 
-        if (isSizeF(paramType)) {
-            putSizeF(builder, param, bundleName);
+        if (isSerializable(element)) {
+            String codec = getSerializableCodec(param.asType());
+            if (codec.isEmpty()) {
+                builder.addStatement("dest.writeSerializable($N)", field);
+            } else {
+                builder.addStatement("_write$L(dest, $N)", codec, field);
+            }
+            return;
+        }
+
+        // Size and SizeF: Parcel.writeSize() does not accept null
+        if (isSize(element) || isSizeF(element)) {
+            builder.addStatement("dest.writeInt($N != null ? 1 : 0)", field)
+                    .beginControlFlow("if ($N != null)", field)
+                    .addStatement("dest.write$L($N)", isSize(element) ? "Size" : "SizeF", field)
+                    .endControlFlow();
         }
     }
 
-    // byte, short, int, long, float, double, char, boolean
-    private void putPrimitive(MethodSpec.Builder builder, VariableElement param, String bundleName) {
-        String paramName = param.getSimpleName().toString();
-        String paramTypeName = param.asType().getKind().toString().toLowerCase();
+    private void addReadStatement(MethodSpec.Builder builder, VariableElement param, String field, ClassName payloadType) {
+        TypeMirror paramType = param.asType();
+        TypeName fieldType = TypeName.get(mTypes.erasure(paramType));
+
+        if (isPrimitive(param)) {
+            readPrimitive(builder, paramType.getKind(), field);
+            return;
+        }
+
+        if (isArray(param)) {
+            readArray(builder, (ArrayType) paramType, field, payloadType);
+            return;
+        }
+
+        Element element = mTypes.asElement(paramType);
+
+        if (isSparseArray(element)) {
+            builder.addStatement("$N = in.readSparseArray($T.class.getClassLoader())", field, payloadType);
+            return;
+        }
 
-        builder.addStatement("$N.put$N($S, $N)",
-                bundleName,
-                paramTypeName.substring(0, 1).toUpperCase() + paramTypeName.substring(1),
-                paramName,
-                paramName);
+        if (isPrimitiveList(paramType)) {
+            readPrimitiveList(builder, (DeclaredType) paramType, field);
+            return;
+        }
+
+        if (isFlatMap(paramType)) {
+            readFlatMap(builder, (DeclaredType) paramType, field, payloadType);
+            return;
+        }
+
+        if (isList(element)) {
+            if (isString(mTypes.asElement(((DeclaredType) paramType).getTypeArguments().get(0)))) {
+                builder.addStatement("$N = ($T) in.createStringArrayList()", field, fieldType);
+            } else {
+                builder.addStatement("$N = ($T) in.readArrayList($T.class.getClassLoader())", field, fieldType, payloadType);
+            }
+            return;
+        }
+
+        if (isString(element)) {
+            if (isCompressed(param)) {
+                builder.beginControlFlow("if (in.readInt() != 0)")
+                        .addStatement("$N = _readCompressedString(in)", field)
+                        .nextControlFlow("else")
+                        .addStatement("$N = in.readString()", field)
+                        .endControlFlow();
+                return;
+            }
+
+            builder.addStatement("$N = in.readString()", field);
+            return;
+        }
+
+        if (isCharSequence(element)) {
+            builder.addStatement("$N = ($T) $T.CHAR_SEQUENCE_CREATOR.createFromParcel(in)",
+                    field, fieldType, ClassName.get("android.text", "TextUtils"));
+            return;
+        }
+
+        if (isIBinder(element)) {
+            builder.addStatement("$N = ($T) in.readStrongBinder()", field, fieldType);
+            return;
+        }
+
+        if (isParcelable(element)) {
+            builder.addStatement("$N = ($T) in.readParcelable($T.class.getClassLoader())", field, fieldType, payloadType);
+            return;
+        }
+
+        if (isSerializable(element)) {
+            String codec = getSerializableCodec(paramType);
+            if (codec.isEmpty()) {
+                builder.addStatement("$N = ($T) in.readSerializable()", field, fieldType);
+            } else {
+                builder.addStatement("$N = _read$L(in)", field, codec);
+            }
+            return;
+        }
+
+        if (isSize(element) || isSizeF(element)) {
+            builder.beginControlFlow("if (in.readInt() != 0)")
+                    .addStatement("$N = in.read$L()", field, isSize(element) ? "Size" : "SizeF")
+                    .endControlFlow();
+        }
     }
 
-    // String
-    private void putString(MethodSpec.Builder builder, VariableElement param, String bundleName) {
-        String paramName = param.getSimpleName().toString();
-        builder.addStatement("$N.putString($S, $N)", bundleName, paramName, paramName);
+    // byte, short, int, long, float, double, char, boolean
+    private void writePrimitive(MethodSpec.Builder builder, TypeKind kind, String value) {
+        switch (kind) {
+            case SHORT:
+            case CHAR:
+                builder.addStatement("dest.writeInt($N)", value);
+                break;
+            case BOOLEAN:
+                builder.addStatement("dest.writeInt($N ? 1 : 0)", value);
+                break;
+            default:
+                builder.addStatement("dest.write$L($N)", getParcelTypeName(kind), value);
+                break;
+        }
     }
 
-    // CharSequence
-    private void putCharSequence(MethodSpec.Builder builder, VariableElement param, String bundleName) {
-        String paramName = param.getSimpleName().toString();
-        builder.addStatement("$N.putCharSequence($S, $N)", bundleName, paramName, paramName);
+    private void readPrimitive(MethodSpec.Builder builder, TypeKind kind, String field) {
+        builder.addStatement("$N = $L", field, getReadPrimitiveExpression(kind));
     }
 
-    // IBinder
-    private void putBinder(MethodSpec.Builder builder, VariableElement param, String bundleName) {
-        builder.addAnnotation(AnnotationSpec.builder(ClassName.get("androidx.annotation", "RequiresApi"))
-                .addMember("value", "android.os.Build.VERSION_CODES.JELLY_BEAN_MR2")
-                .build());
+    private String getReadPrimitiveExpression(TypeKind kind) {
+        switch (kind) {
+            case SHORT:
+                return "(short) in.readInt()";
+            case CHAR:
+                return "(char) in.readInt()";
+            case BOOLEAN:
+                return "in.readInt() != 0";
+            default:
+                return "in.read" + getParcelTypeName(kind) + "()";
+        }
+    }
+
+    // the size (-1 if null) and the unboxed elements, the same as the primitive array
+    private void writePrimitiveList(MethodSpec.Builder builder, DeclaredType listType, String field) {
+        TypeMirror elementType = listType.getTypeArguments().get(0);
+
+        builder.beginControlFlow("if ($N == null)", field)
+                .addStatement("dest.writeInt(-1)")
+                .nextControlFlow("else")
+                .addStatement("dest.writeInt($N.size())", field)
+                .beginControlFlow("for ($T value : ($T) $N)", elementType, listType, field);
+
+        writePrimitive(builder, getUnboxedKind(elementType), "value");
 
-        String paramName = param.getSimpleName().toString();
-        builder.addStatement("$N.putBinder($S, $N)", bundleName, paramName, paramName);
+        builder.endControlFlow()
+                .endControlFlow();
     }
 
-    // Parcelable
-    private void putParcelable(MethodSpec.Builder builder, VariableElement param, String bundleName) {
-        String paramName = param.getSimpleName().toString();
-        builder.addStatement("$N.putParcelable($S, $N)", bundleName, paramName, paramName);
+    // the size is untrusted, so the capacity is limited by the available data
+    private void readPrimitiveList(MethodSpec.Builder builder, DeclaredType listType, String field) {
+        TypeMirror elementType = listType.getTypeArguments().get(0);
+        ParameterizedTypeName arrayListType = ParameterizedTypeName.get(ClassName.get(ArrayList.class), TypeName.get(elementType));
+        String varSize = field + "Size";
+        String varList = field + "List";
+
+        builder.addStatement("int $N = in.readInt()", varSize)
+                .beginControlFlow("if ($N >= 0)", varSize)
+                .addStatement("$T $N = new $T(Math.min($N, in.dataAvail()))", arrayListType, varList, arrayListType, varSize)
+                .beginControlFlow("for (int i = 0; i < $N; i++)", varSize)
+                .addStatement("$N.add($L)", varList, getReadPrimitiveExpression(getUnboxedKind(elementType)))
+                .endControlFlow()
+                .addStatement("$N = $N", field, varList)
+                .endControlFlow();
     }
 
-    // Serializable
-    private void putSerializable(MethodSpec.Builder builder, VariableElement param, String bundleName) {
-        String paramName = param.getSimpleName().toString();
-        builder.addStatement("$N.putSerializable($S, $N)", bundleName, paramName, paramName);
+    // the size (-1 if null), then the key and value of each entry
+    private void writeFlatMap(MethodSpec.Builder builder, DeclaredType mapType, String field) {
+        TypeName keyType = TypeName.get(mapType.getTypeArguments().get(0));
+        TypeName valueType = TypeName.get(mapType.getTypeArguments().get(1));
+        ParameterizedTypeName entryType = ParameterizedTypeName.get(ClassName.get("java.util", "Map", "Entry"), keyType, valueType);
+
+        builder.beginControlFlow("if ($N == null)", field)
+                .addStatement("dest.writeInt(-1)")
+                .nextControlFlow("else")
+                .addStatement("dest.writeInt($N.size())", field)
+                .beginControlFlow("for ($T entry : (($T) $N).entrySet())", entryType, mapType, field)
+                .addStatement("$T key = entry.getKey()", keyType)
+                .addStatement("$T value = entry.getValue()", valueType);
+
+        writeMapElement(builder, mapType.getTypeArguments().get(0), "key");
+        writeMapElement(builder, mapType.getTypeArguments().get(1), "value");
+
+        builder.endControlFlow()
+                .endControlFlow();
     }
 
-    // android.util.Size
-    private void putSize(MethodSpec.Builder builder, VariableElement param, String bundleName) {
-        builder.addAnnotation(AnnotationSpec.builder(ClassName.get("androidx.annotation", "RequiresApi"))
-                .addMember("value", "android.os.Build.VERSION_CODES.LOLLIPOP")
-                .build());
+    // the boxed primitive key or value may be null, a flag is written first
+    private void writeMapElement(MethodSpec.Builder builder, TypeMirror type, String value) {
+        TypeKind kind = getUnboxedKind(type);
+
+        if (kind != null) {
+            builder.beginControlFlow("if ($N == null)", value)
+                    .addStatement("dest.writeInt(0)")
+                    .nextControlFlow("else")
+                    .addStatement("dest.writeInt(1)");
+            writePrimitive(builder, kind, value);
+            builder.endControlFlow();
+        } else if (isString(mTypes.asElement(type))) {
+            builder.addStatement("dest.writeString($N)", value);
+        } else {
+            builder.addStatement("dest.writeParcelable($N, flags)", value);
+        }
+    }
 
-        String paramName = param.getSimpleName().toString();
-        builder.addStatement("$N.putSize($S, $N)", bundleName, paramName, paramName);
+    // the key is read before the value, the capacity is limited by the available data
+    private void readFlatMap(MethodSpec.Builder builder, DeclaredType mapType, String field, ClassName payloadType) {
+        TypeMirror keyType = mapType.getTypeArguments().get(0);
+        TypeMirror valueType = mapType.getTypeArguments().get(1);
+        ParameterizedTypeName hashMapType = ParameterizedTypeName.get(ClassName.get(HashMap.class),
+                TypeName.get(keyType), TypeName.get(valueType));
+        String varSize = field + "Size";
+        String varMap = field + "Map";
+
+        builder.addStatement("int $N = in.readInt()", varSize)
+                .beginControlFlow("if ($N >= 0)", varSize)
+                .addStatement("$T $N = new $T(Math.min($N, in.dataAvail()))", hashMapType, varMap, hashMapType, varSize)
+                .beginControlFlow("for (int i = 0; i < $N; i++)", varSize)
+                .addStatement("$N.put($L, $L)", varMap,
+                        getReadMapElementExpression(keyType, payloadType),
+                        getReadMapElementExpression(valueType, payloadType))
+                .endControlFlow()
+                .addStatement("$N = $N", field, varMap)
+                .endControlFlow();
     }
 
-    // android.util.SizeF
-    private void putSizeF(MethodSpec.Builder builder, VariableElement param, String bundleName) {
-        builder.addAnnotation(AnnotationSpec.builder(ClassName.get("androidx.annotation", "RequiresApi"))
-                .addMember("value", "android.os.Build.VERSION_CODES.LOLLIPOP")
-                .build());
+    private CodeBlock getReadMapElementExpression(TypeMirror type, ClassName payloadType) {
+        TypeKind kind = getUnboxedKind(type);
+
+        if (kind != null) {
+            return CodeBlock.of("in.readInt() != 0 ? ($T) ($L) : null", TypeName.get(type), getReadPrimitiveExpression(kind));
+        }
+
+        if (isString(mTypes.asElement(type))) {
+            return CodeBlock.of("in.readString()");
+        }
 
-        String paramName = param.getSimpleName().toString();
-        builder.addStatement("$N.putSizeF($S, $N)", bundleName, paramName, paramName);
+        return CodeBlock.of("($T) in.readParcelable($T.class.getClassLoader())", TypeName.get(mTypes.erasure(type)), payloadType);
     }
 
     // 1. byte[], short[], int[], long[], float[], double[], char[], boolean[]
     // 2. String[]
     // 3. CharSequence[]
     // 4. Parcelable[]
-    private void putArray(MethodSpec.Builder builder, VariableElement param, String bundleName) {
-        ArrayType arrayType = (ArrayType) param.asType();
+    private void writeArray(MethodSpec.Builder builder, ArrayType arrayType, String field) {
+        if (isSharedArray(arrayType)) {
+            writeSharedArray(builder, arrayType, field);
+            return;
+        }
+
+        writeInlineArray(builder, arrayType, field);
+    }
+
+    private void writeInlineArray(MethodSpec.Builder builder, ArrayType arrayType, String field) {
         TypeMirror componentType = arrayType.getComponentType();
+        TypeKind kind = componentType.getKind();
 
-        if (componentType.getKind().isPrimitive()) {
-            putPrimitiveArray(builder, param, bundleName);
+        if (isCompressedArray(arrayType)) {
+            builder.beginControlFlow("if (!_writeCompressed(dest, $N))", field)
+                    .addStatement("dest.writeInt(0)")
+                    .addStatement("dest.writeByteArray($N)", field)
+                    .endControlFlow();
+            return;
+        }
+
+        if (kind.isPrimitive() && kind != TypeKind.SHORT) {
+            builder.addStatement("dest.write$LArray($N)", getParcelTypeName(kind), field);
             return;
         }
 
         Element componentTypeElement = mTypes.asElement(componentType);
 
-        if (isString(componentTypeElement)) {
-            putStringArray(builder, param, bundleName);
+        if (!kind.isPrimitive() && isString(componentTypeElement)) {
+            builder.addStatement("dest.writeStringArray($N)", field);
             return;
         }
 
-        if (isCharSequence(componentTypeElement)) {
-            putCharSequenceArray(builder, param, bundleName);
+        if (!kind.isPrimitive() && isParcelable(componentTypeElement)) {
+            builder.addStatement("dest.writeParcelableArray($N, flags)", field);
             return;
         }
 
-        if (isParcelable(componentTypeElement)) {
-            putParcelableArray(builder, param, bundleName);
+        // short[] and CharSequence[]: the length (-1 if null) and the elements
+        builder.beginControlFlow("if ($N == null)", field)
+                .addStatement("dest.writeInt(-1)")
+                .nextControlFlow("else")
+                .addStatement("dest.writeInt($N.length)", field)
+                .beginControlFlow("for ($T value : $N)", componentType, field);
+
+        if (kind == TypeKind.SHORT) {
+            builder.addStatement("dest.writeInt(value)");
+        } else {
+            builder.addStatement("$T.writeToParcel(value, dest, flags)", ClassName.get("android.text", "TextUtils"));
         }
+
+        builder.endControlFlow()
+                .endControlFlow();
     }
 
-    // byte[], short[], int[], long[], float[], double[], char[], boolean[]
-    private void putPrimitiveArray(MethodSpec.Builder builder, VariableElement param, String bundleName) {
-        ArrayType arrayType = (ArrayType) param.asType();
-        String paramName = param.getSimpleName().toString();
-        String paramTypeName = arrayType.getComponentType().getKind().toString().toLowerCase();
+    private void readArray(MethodSpec.Builder builder, ArrayType arrayType, String field, ClassName payloadType) {
+        if (isSharedArray(arrayType)) {
+            builder.beginControlFlow("if (in.readInt() != 0)")
+                    .addStatement("$N = ($T) _readSharedMemory(in, $T.class)", field, arrayType, arrayType.getComponentType())
+                    .nextControlFlow("else");
+            readInlineArray(builder, arrayType, field, payloadType);
+            builder.endControlFlow();
+            return;
+        }
 
-        builder.addStatement("$N.put$NArray($S, $N)",
-                bundleName,
-                paramTypeName.substring(0, 1).toUpperCase() + paramTypeName.substring(1),
-                paramName,
-                paramName);
+        readInlineArray(builder, arrayType, field, payloadType);
     }
 
-    // String[]
-    private void putStringArray(MethodSpec.Builder builder, VariableElement param, String bundleName) {
-        String paramName = param.getSimpleName().toString();
-        builder.addStatement("$N.putStringArray($S, $N)", bundleName, paramName, paramName);
+    private void readInlineArray(MethodSpec.Builder builder, ArrayType arrayType, String field, ClassName payloadType) {
+        TypeMirror componentType = arrayType.getComponentType();
+        TypeKind kind = componentType.getKind();
+
+        if (isCompressedArray(arrayType)) {
+            builder.beginControlFlow("if (in.readInt() != 0)")
+                    .addStatement("$N = _readCompressed(in)", field)
+                    .nextControlFlow("else")
+                    .addStatement("$N = in.createByteArray()", field)
+                    .endControlFlow();
+            return;
+        }
+
+        if (kind.isPrimitive() && kind != TypeKind.SHORT) {
+            builder.addStatement("$N = in.create$LArray()", field, getParcelTypeName(kind));
+            return;
+        }
+
+        TypeName componentTypeName = TypeName.get(mTypes.erasure(componentType));
+        Element componentTypeElement = mTypes.asElement(componentType);
+
+        if (!kind.isPrimitive() && isString(componentTypeElement)) {
+            builder.addStatement("$N = in.createStringArray()", field);
+            return;
+        }
+
+        // the array returned by readParcelableArray() is Parcelable[], copied to the array of
+        // component type
+        if (!kind.isPrimitive() && isParcelable(componentTypeElement)) {
+            String varArray = field + "Parcelables";
+            builder.addStatement("$T[] $N = in.readParcelableArray($T.class.getClassLoader())",
+                    ClassName.get("android.os", "Parcelable"), varArray, payloadType)
+                    .beginControlFlow("if ($N != null)", varArray)
+                    .addStatement("$N = $T.copyOf($N, $N.length, $T[].class)",
+                            field, ClassName.get("java.util", "Arrays"), varArray, varArray, componentTypeName)
+                    .endControlFlow();
+            return;
+        }
+
+        String varLength = field + "Length";
+        builder.addStatement("int $N = in.readInt()", varLength)
+                .beginControlFlow("if ($N >= 0)", varLength)
+                .addStatement("$N = new $T[$N]", field, componentTypeName, varLength)
+                .beginControlFlow("for (int i = 0; i < $N; i++)", varLength);
+
+        if (kind == TypeKind.SHORT) {
+            builder.addStatement("$N[i] = (short) in.readInt()", field);
+        } else {
+            builder.addStatement("$N[i] = ($T) $T.CHAR_SEQUENCE_CREATOR.createFromParcel(in)",
+                    field, componentTypeName, ClassName.get("android.text", "TextUtils"));
+        }
+
+        builder.endControlFlow()
+                .endControlFlow();
     }
 
-    // CharSequence[]
-    private void putCharSequenceArray(MethodSpec.Builder builder, VariableElement param, String bundleName) {
-        String paramName = param.getSimpleName().toString();
-        builder.addStatement("$N.putCharSequenceArray($S, $N)", bundleName, paramName, paramName);
+    private boolean isSharedArray(VariableElement param) {
+        return isArray(param) && isSharedArray((ArrayType) param.asType());
     }
 
-    // Parcelable[]
-    private void putParcelableArray(MethodSpec.Builder builder, VariableElement param, String bundleName) {
-        String paramName = param.getSimpleName().toString();
-        builder.addStatement("$N.putParcelableArray($S, $N)", bundleName, paramName, paramName);
+    // the primitive arrays except boolean[], if sharedMemoryThreshold is not 0
+    private boolean isSharedArray(ArrayType arrayType) {
+        TypeKind kind = arrayType.getComponentType().getKind();
+        return getSharedMemoryThreshold() > 0 && kind.isPrimitive() && kind != TypeKind.BOOLEAN;
     }
 
-    // SparseArray<? extends Parcelable>
-    private void putSparseParcelableArray(MethodSpec.Builder builder, VariableElement param, String bundleName) {
-        String paramName = param.getSimpleName().toString();
-        builder.addStatement("$N.putSparseParcelableArray($S, $N)", bundleName, paramName, paramName);
+    private int getSharedMemoryThreshold() {
+        return mInterfaceElement.getAnnotation(Messenger.class).sharedMemoryThreshold();
     }
 
-    // 1. List<Integer>
-    // 2. List<String>
-    // 3. List<CharSequence>
-    // 4. List<? extends Parcelable>
-    private void putList(MethodSpec.Builder builder, VariableElement param, String bundleName) {
-        DeclaredType declaredType = (DeclaredType) param.asType();
+    // the array is written to SharedMemory if it is large enough, otherwise (or if failed to create
+    // the SharedMemory) it is written to Parcel, a flag is written first. The SharedMemory is closed
+    // once written, the Parcel holds a duplicate of its descriptor, so nothing is leaked whenever
+    // the Message is sent (for example, by attach() after buffered while disconnected).
+    private void writeSharedArray(MethodSpec.Builder builder, ArrayType arrayType, String field) {
+        ClassName buildType = ClassName.get("android.os", "Build");
+        String varShared = field + "Shared";
 
-        List<? extends TypeMirror> typeArguments = declaredType.getTypeArguments();
-        if (typeArguments.size() < 1) {
-            mMessager.printMessage(Diagnostic.Kind.ERROR, "The type argument of List is unknown.");
+        builder.addStatement("$T $N = null", mSharedRegionType, varShared)
+                .beginControlFlow("if ($T.VERSION.SDK_INT >= $T.VERSION_CODES.O_MR1)", buildType, buildType)
+                .addStatement("$N = $T.write($N, SHARED_MEMORY_THRESHOLD, $T.FACTORY)",
+                        varShared, mSharedArraysType, field, mSharedMemoryRegionType)
+                .endControlFlow()
+                .beginControlFlow("if ($N != null)", varShared)
+                .addStatement("dest.writeInt(1)")
+                .beginControlFlow("try")
+                .addStatement("(($T) $N).mMemory.writeToParcel(dest, flags)", mSharedMemoryRegionType, varShared)
+                .nextControlFlow("finally")
+                .addStatement("$T.closeQuietly($N)", mSharedArraysType, varShared)
+                .endControlFlow()
+                .nextControlFlow("else")
+                .addStatement("dest.writeInt(0)");
+
+        writeInlineArray(builder, arrayType, field);
+
+        builder.endControlFlow();
+    }
+
+    // SharedMemory:
+    // 1. the sender copies the array to a new SharedMemory, which is read-only after written, and
+    //    only the file descriptor is written to Parcel, so the large array does not count against
+    //    the limit of binder transaction. The SharedMemory is closed after written to Parcel.
+    // 2. the receiver maps the SharedMemory read-only and copies it to the array of argument, then
+    //    unmaps and closes it.
+    // The copy is done by SharedArrays of runtime module, SharedMemoryRegion adapts SharedMemory to
+    // SharedRegion (FileChannelRegion is the stand-in on the JVM).
+    private void generateSharedMemory() {
+        ClassName buildType = ClassName.get("android.os", "Build");
+        ClassName byteBufferType = ClassName.get("java.nio", "ByteBuffer");
+        ClassName errnoExceptionType = ClassName.get("android.system", "ErrnoException");
+        ClassName parcelType = ClassName.get("android.os", "Parcel");
+        ClassName factoryType = mSharedRegionType.nestedClass("Factory");
+        // the callers check the API level, or only receive the SharedMemory from the sender on the
+        // same device
+        AnnotationSpec targetApi = AnnotationSpec.builder(ClassName.get("android.annotation", "TargetApi"))
+                .addMember("value", "$T.VERSION_CODES.O_MR1", buildType)
+                .build();
+
+        mMessengerBuilder.addField(FieldSpec.builder(int.class, "SHARED_MEMORY_THRESHOLD", Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                .initializer("$L", getSharedMemoryThreshold())
+                .build());
+
+        mMessengerBuilder.addType(TypeSpec.classBuilder(mSharedMemoryRegionType.simpleName())
+                .addAnnotation(targetApi)
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                .addSuperinterface(mSharedRegionType)
+                .addField(FieldSpec.builder(factoryType, "FACTORY", Modifier.STATIC, Modifier.FINAL)
+                        .initializer("$L", TypeSpec.anonymousClassBuilder("")
+                                .addSuperinterface(factoryType)
+                                .addMethod(MethodSpec.methodBuilder("create")
+                                        .addAnnotation(Override.class)
+                                        .addModifiers(Modifier.PUBLIC)
+                                        .returns(mSharedRegionType)
+                                        .addParameter(int.class, "size")
+                                        .addException(IOException.class)
+                                        .beginControlFlow("try")
+                                        .addStatement("return new $T($T.create(null, size))", mSharedMemoryRegionType, mSharedMemoryType)
+                                        .nextControlFlow("catch ($T e)", errnoExceptionType)
+                                        .addStatement("throw new $T(e)", IOException.class)
+                                        .endControlFlow()
+                                        .build())
+                                .build())
+                        .build())
+                .addField(mSharedMemoryType, "mMemory", Modifier.FINAL)
+                .addMethod(MethodSpec.constructorBuilder()
+                        .addParameter(mSharedMemoryType, "memory")
+                        .addStatement("mMemory = memory")
+                        .build())
+                .addMethod(MethodSpec.methodBuilder("getSize")
+                        .addAnnotation(Override.class)
+                        .addModifiers(Modifier.PUBLIC)
+                        .returns(int.class)
+                        .addStatement("return mMemory.getSize()")
+                        .build())
+                .addMethod(MethodSpec.methodBuilder("mapReadWrite")
+                        .addAnnotation(Override.class)
+                        .addModifiers(Modifier.PUBLIC)
+                        .returns(byteBufferType)
+                        .addException(IOException.class)
+                        .beginControlFlow("try")
+                        .addStatement("return mMemory.mapReadWrite()")
+                        .nextControlFlow("catch ($T e)", errnoExceptionType)
+                        .addStatement("throw new $T(e)", IOException.class)
+                        .endControlFlow()
+                        .build())
+                .addMethod(MethodSpec.methodBuilder("mapReadOnly")
+                        .addAnnotation(Override.class)
+                        .addModifiers(Modifier.PUBLIC)
+                        .returns(byteBufferType)
+                        .addException(IOException.class)
+                        .beginControlFlow("try")
+                        .addStatement("return mMemory.mapReadOnly()")
+                        .nextControlFlow("catch ($T e)", errnoExceptionType)
+                        .addStatement("throw new $T(e)", IOException.class)
+                        .endControlFlow()
+                        .build())
+                .addMethod(MethodSpec.methodBuilder("unmap")
+                        .addAnnotation(Override.class)
+                        .addModifiers(Modifier.PUBLIC)
+                        .addParameter(byteBufferType, "buffer")
+                        .addStatement("$T.unmap(buffer)", mSharedMemoryType)
+                        .build())
+                .addMethod(MethodSpec.methodBuilder("setReadOnly")
+                        .addAnnotation(Override.class)
+                        .addModifiers(Modifier.PUBLIC)
+                        .addException(IOException.class)
+                        .beginControlFlow("if (!mMemory.setProtect($T.PROT_READ))", ClassName.get("android.system", "OsConstants"))
+                        .addStatement("throw new $T($S)", IOException.class, "failed to set the SharedMemory read-only")
+                        .endControlFlow()
+                        .build())
+                .addMethod(MethodSpec.methodBuilder("close")
+                        .addAnnotation(Override.class)
+                        .addModifiers(Modifier.PUBLIC)
+                        .addStatement("mMemory.close()")
+                        .build())
+                .build());
+
+        mMessengerBuilder.addMethod(MethodSpec.methodBuilder("_readSharedMemory")
+                .addAnnotation(targetApi)
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                .returns(Object.class)
+                .addParameter(parcelType, "in")
+                .addParameter(ParameterizedTypeName.get(ClassName.get(Class.class), WildcardTypeName.subtypeOf(Object.class)), "componentType")
+                .addStatement("$T region = new $T($T.CREATOR.createFromParcel(in))", mSharedRegionType, mSharedMemoryRegionType, mSharedMemoryType)
+                .beginControlFlow("try")
+                .addStatement("return $T.read(region, componentType)", mSharedArraysType)
+                .nextControlFlow("catch ($T e)", IOException.class)
+                .addStatement("throw new $T(e)", ClassName.get("android.os", "BadParcelableException"))
+                .nextControlFlow("finally")
+                .addStatement("$T.closeQuietly(region)", mSharedArraysType)
+                .endControlFlow()
+                .build());
+    }
+
+    // String and byte[], if compressThreshold is not 0
+    private boolean isCompressed(VariableElement param) {
+        if (isPrimitive(param)) {
+            return false;
         }
 
-        Element element = mTypes.asElement(typeArguments.get(0));
+        if (isArray(param)) {
+            return isCompressedArray((ArrayType) param.asType());
+        }
 
-        if (isInteger(element)) {
-            putIntegerArrayList(builder, param, bundleName);
-            return;
+        return getCompressThreshold() > 0 && isString(mTypes.asElement(param.asType()));
+    }
+
+    private boolean isCompressedArray(ArrayType arrayType) {
+        return getCompressThreshold() > 0 && arrayType.getComponentType().getKind() == TypeKind.BYTE;
+    }
+
+    private int getCompressThreshold() {
+        return mInterfaceElement.getAnnotation(Messenger.class).compressThreshold();
+    }
+
+    // Compression:
+    // 1. the sender deflates the String (UTF-8) or byte[] argument of COMPRESS_THRESHOLD or more,
+    //    and writes it (after a flag and the original length) only if it gets smaller.
+    // 2. the receiver inflates the String into a reusable buffer, and the byte[] into the array of
+    //    argument directly.
+    // The payload may be written or read on any thread, so the Deflater, the Inflater and the
+    // buffers are shared under a lock. The shared buffers never grow beyond COMPRESS_BUFFER_SIZE,
+    // a larger argument uses a temporary buffer. The length read from the Parcel is untrusted, it
+    // is checked against COMPRESS_MAX_LENGTH and the maximum ratio of deflate before allocated.
+    private void generateCompression() {
+        ClassName parcelType = ClassName.get("android.os", "Parcel");
+        ClassName badParcelableExceptionType = ClassName.get("android.os", "BadParcelableException");
+
+        mMessengerBuilder.addField(FieldSpec.builder(int.class, "COMPRESS_THRESHOLD", Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                .initializer("$L", getCompressThreshold())
+                .build());
+
+        // StandardCharsets requires API level 19
+        mMessengerBuilder.addField(FieldSpec.builder(Charset.class, "UTF_8", Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                .initializer("$T.forName($S)", Charset.class, "UTF-8")
+                .build());
+
+        // no larger argument would fit in a binder transaction (1MB) uncompressed
+        mMessengerBuilder.addField(FieldSpec.builder(int.class, "COMPRESS_MAX_LENGTH", Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                .initializer("16 << 20")
+                .build());
+
+        // the maximum ratio of deflate is about 1032:1
+        mMessengerBuilder.addField(FieldSpec.builder(int.class, "COMPRESS_MAX_RATIO", Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                .initializer("1032")
+                .build());
+
+        mMessengerBuilder.addField(FieldSpec.builder(int.class, "COMPRESS_BUFFER_SIZE", Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                .initializer("64 << 10")
+                .build());
+
+        mMessengerBuilder.addField(FieldSpec.builder(Object.class, "COMPRESS_LOCK", Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                .initializer("new $T()", Object.class)
+                .build());
+
+        mMessengerBuilder.addField(Deflater.class, "sDeflater", Modifier.PRIVATE, Modifier.STATIC);
+        mMessengerBuilder.addField(Inflater.class, "sInflater", Modifier.PRIVATE, Modifier.STATIC);
+
+        mMessengerBuilder.addField(FieldSpec.builder(byte[].class, "sDeflateBuffer", Modifier.PRIVATE, Modifier.STATIC)
+                .initializer("new byte[0]")
+                .build());
+
+        mMessengerBuilder.addField(FieldSpec.builder(byte[].class, "sInflateBuffer", Modifier.PRIVATE, Modifier.STATIC)
+                .initializer("new byte[0]")
+                .build());
+
+        mMessengerBuilder.addField(FieldSpec.builder(AtomicLong.class, "sUncompressedBytes", Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                .initializer("new $T()", AtomicLong.class)
+                .build());
+
+        mMessengerBuilder.addField(FieldSpec.builder(AtomicLong.class, "sCompressedBytes", Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                .initializer("new $T()", AtomicLong.class)
+                .build());
+
+        mMessengerBuilder.addMethod(MethodSpec.methodBuilder("_writeCompressed")
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                .returns(boolean.class)
+                .addParameter(parcelType, "dest")
+                .addParameter(String.class, "value")
+                .beginControlFlow("if (value == null || value.length() < COMPRESS_THRESHOLD)")
+                .addStatement("return false")
+                .endControlFlow()
+                .addStatement("return _writeCompressed(dest, value.getBytes(UTF_8))")
+                .build());
+
+        // BEST_SPEED: the compression is on the path of every call
+        mMessengerBuilder.addMethod(MethodSpec.methodBuilder("_writeCompressed")
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                .returns(boolean.class)
+                .addParameter(parcelType, "dest")
+                .addParameter(byte[].class, "data")
+                .beginControlFlow("if (data == null || data.length < COMPRESS_THRESHOLD || data.length > COMPRESS_MAX_LENGTH)")
+                .addStatement("return false")
+                .endControlFlow()
+                .beginControlFlow("synchronized (COMPRESS_LOCK)")
+                .beginControlFlow("if (sDeflater == null)")
+                .addStatement("sDeflater = new $T($T.BEST_SPEED)", Deflater.class, Deflater.class)
+                .endControlFlow()
+                .addStatement("sDeflateBuffer = _buffer(sDeflateBuffer, data.length)")
+                .addStatement("byte[] buffer = data.length > COMPRESS_BUFFER_SIZE ? new byte[data.length] : sDeflateBuffer")
+                .addStatement("sDeflater.setInput(data)")
+                .addStatement("sDeflater.finish()")
+                .addStatement("int size = 0")
+                .beginControlFlow("while (!sDeflater.finished() && size < data.length)")
+                .addStatement("size += sDeflater.deflate(buffer, size, data.length - size)")
+                .endControlFlow()
+                .addStatement("boolean smaller = sDeflater.finished() && size < data.length")
+                .addStatement("sDeflater.reset()")
+                .beginControlFlow("if (!smaller)")
+                .addStatement("return false")
+                .endControlFlow()
+                .addStatement("dest.writeInt(1)")
+                .addStatement("dest.writeInt(data.length)")
+                .addStatement("dest.writeByteArray(buffer, 0, size)")
+                .addStatement("sUncompressedBytes.addAndGet(data.length)")
+                .addStatement("sCompressedBytes.addAndGet(size)")
+                .addStatement("return true")
+                .endControlFlow()
+                .build());
+
+        mMessengerBuilder.addMethod(MethodSpec.methodBuilder("_readCompressed")
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                .returns(byte[].class)
+                .addParameter(parcelType, "in")
+                .addStatement("int length = in.readInt()")
+                .addStatement("byte[] input = _readDeflated(in, length)")
+                .addStatement("byte[] data = new byte[length]")
+                .addStatement("_inflate(input, data, length)")
+                .addStatement("return data")
+                .build());
+
+        mMessengerBuilder.addMethod(MethodSpec.methodBuilder("_readCompressedString")
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                .returns(String.class)
+                .addParameter(parcelType, "in")
+                .addStatement("int length = in.readInt()")
+                .addStatement("byte[] input = _readDeflated(in, length)")
+                .beginControlFlow("synchronized (COMPRESS_LOCK)")
+                .addStatement("sInflateBuffer = _buffer(sInflateBuffer, length)")
+                .addStatement("byte[] buffer = length > COMPRESS_BUFFER_SIZE ? new byte[length] : sInflateBuffer")
+                .addStatement("_inflate(input, buffer, length)")
+                .addStatement("return new String(buffer, 0, length, UTF_8)")
+                .endControlFlow()
+                .build());
+
+        // the shared buffer grown to the length, if not larger than COMPRESS_BUFFER_SIZE
+        mMessengerBuilder.addMethod(MethodSpec.methodBuilder("_buffer")
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                .returns(byte[].class)
+                .addParameter(byte[].class, "buffer")
+                .addParameter(int.class, "length")
+                .beginControlFlow("if (buffer.length < length && length <= COMPRESS_BUFFER_SIZE)")
+                .addStatement("return new byte[length]")
+                .endControlFlow()
+                .addStatement("return buffer")
+                .build());
+
+        // the deflated data, checked against the untrusted length before anything is allocated for it
+        mMessengerBuilder.addMethod(MethodSpec.methodBuilder("_readDeflated")
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                .returns(byte[].class)
+                .addParameter(parcelType, "in")
+                .addParameter(int.class, "length")
+                .addStatement("byte[] input = in.createByteArray()")
+                .beginControlFlow("if (input == null || length < 0 || length > COMPRESS_MAX_LENGTH || length > (long) input.length * COMPRESS_MAX_RATIO)")
+                .addStatement("throw new $T($S + length)", badParcelableExceptionType, "malformed compressed data, length: ")
+                .endControlFlow()
+                .addStatement("return input")
+                .build());
+
+        // the data must be inflated to exactly the length
+        mMessengerBuilder.addMethod(MethodSpec.methodBuilder("_inflate")
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                .addParameter(byte[].class, "input")
+                .addParameter(byte[].class, "out")
+                .addParameter(int.class, "length")
+                .beginControlFlow("synchronized (COMPRESS_LOCK)")
+                .beginControlFlow("if (sInflater == null)")
+                .addStatement("sInflater = new $T()", Inflater.class)
+                .endControlFlow()
+                .addStatement("sInflater.setInput(input)")
+                .beginControlFlow("try")
+                .addStatement("int size = 0")
+                .beginControlFlow("while (size < length)")
+                .addStatement("int count = sInflater.inflate(out, size, length - size)")
+                .beginControlFlow("if (count == 0 && (sInflater.finished() || sInflater.needsInput() || sInflater.needsDictionary()))")
+                .addStatement("break")
+                .endControlFlow()
+                .addStatement("size += count")
+                .endControlFlow()
+                .beginControlFlow("if (size != length)")
+                .addStatement("throw new $T($S)", badParcelableExceptionType, "truncated compressed data")
+                .endControlFlow()
+                .nextControlFlow("catch ($T e)", DataFormatException.class)
+                .addStatement("throw new $T(e)", badParcelableExceptionType)
+                .nextControlFlow("finally")
+                .addStatement("sInflater.reset()")
+                .endControlFlow()
+                .endControlFlow()
+                .build());
+
+        mMessengerBuilder.addMethod(MethodSpec.methodBuilder("getUncompressedByteCount")
+                .addJavadoc("Returns the total size (in bytes) of the arguments compressed by this process, before\n")
+                .addJavadoc("compression.\n")
+                .addModifiers(Modifier.PUBLIC, Modifier.STATIC)
+                .returns(long.class)
+                .addStatement("return sUncompressedBytes.get()")
+                .build());
+
+        mMessengerBuilder.addMethod(MethodSpec.methodBuilder("getCompressedByteCount")
+                .addJavadoc("Returns the total size (in bytes) of the arguments compressed by this process, after\n")
+                .addJavadoc("compression.\n")
+                .addModifiers(Modifier.PUBLIC, Modifier.STATIC)
+                .returns(long.class)
+                .addStatement("return sCompressedBytes.get()")
+                .build());
+    }
+
+    private boolean hasPayload() {
+        for (Pair<String, ExecutableElement> methodPair : getInterfaceMethodPairs()) {
+            if (!methodPair.getValue().getParameters().isEmpty()) {
+                return true;
+            }
         }
 
-        if (isString(element)) {
-            putStringArrayList(builder, param, bundleName);
-            return;
+        return false;
+    }
+
+    // the payload of the call in a batch is Message.obj, otherwise it is the only entry of
+    // Message.data, either marshalled (read by the CREATOR) or Parcelable, null if absent or not
+    // the expected type
+    private void generate_getPayload(TypeSpec.Builder handlerBuilder) {
+        TypeVariableName t = TypeVariableName.get("T");
+        ClassName parcelType = ClassName.get("android.os", "Parcel");
+        ClassName creatorType = ClassName.get("android.os", "Parcelable", "Creator");
+
+        handlerBuilder.addMethod(MethodSpec.methodBuilder("_getPayload")
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                .addTypeVariable(t)
+                .returns(t)
+                .addParameter(mMessageType, "msg")
+                .addParameter(ParameterizedTypeName.get(ClassName.get(Class.class), t), "type")
+                .addParameter(ParameterizedTypeName.get(creatorType, t), "creator")
+                .addStatement("Object payload = msg.obj")
+                .beginControlFlow("if (payload == null)")
+                .addStatement("$T data = msg.peekData()", mBundleType)
+                .beginControlFlow("if (data != null)")
+                .addStatement("data.setClassLoader(type.getClassLoader())")
+                .addStatement("byte[] bytes = data.getByteArray($S)", PAYLOAD_BYTES_KEY)
+                .beginControlFlow("if (bytes != null)")
+                .addStatement("$T parcel = $T.obtain()", parcelType, parcelType)
+                .beginControlFlow("try")
+                .addStatement("parcel.unmarshall(bytes, 0, bytes.length)")
+                .addStatement("parcel.setDataPosition(0)")
+                .addStatement("payload = creator.createFromParcel(parcel)")
+                .nextControlFlow("finally")
+                .addStatement("parcel.recycle()")
+                .endControlFlow()
+                .nextControlFlow("else")
+                .addStatement("payload = data.getParcelable(data.containsKey($S) ? $S : $S)", PAYLOAD_FLAT_KEY, PAYLOAD_FLAT_KEY, PAYLOAD_KEY)
+                .endControlFlow()
+                .endControlFlow()
+                .endControlFlow()
+                .addStatement("return type.isInstance(payload) ? type.cast(payload) : null")
+                .build());
+    }
+
+    private CodeBlock getMarshallPayloadStatement() {
+        if (!mPayloadMarshalled) {
+            return CodeBlock.of("");
         }
+        return CodeBlock.builder().addStatement("_marshallPayload(message)").build();
+    }
 
-        if (isCharSequence(element)) {
-            putCharSequenceArrayList(builder, param, bundleName);
-            return;
+    // the payload written by the typed Parcel methods only, without the class name. The Messenger
+    // in process (a local Binder) passes the Message without Parcel, the payload is left as is.
+    private void generate_marshall() {
+        ClassName parcelType = ClassName.get("android.os", "Parcel");
+        ClassName parcelableType = ClassName.get("android.os", "Parcelable");
+
+        mMessengerBuilder.addMethod(MethodSpec.methodBuilder("_marshallPayload")
+                .addModifiers(Modifier.PRIVATE)
+                .addParameter(mMessageType, "message")
+                .beginControlFlow("if ($N.getBinder() instanceof $T)", mMessengerFieldName, ClassName.get("android.os", "Binder"))
+                .addStatement("return")
+                .endControlFlow()
+                .addStatement("$T data = message.peekData()", mBundleType)
+                .addStatement("$T payload = data != null ? data.<$T>getParcelable($S) : null", parcelableType, parcelableType, PAYLOAD_FLAT_KEY)
+                .beginControlFlow("if (payload != null)")
+                .addStatement("data.remove($S)", PAYLOAD_FLAT_KEY)
+                .addStatement("data.putByteArray($S, _marshall(payload))", PAYLOAD_BYTES_KEY)
+                .endControlFlow()
+                .build());
+
+        mMessengerBuilder.addMethod(MethodSpec.methodBuilder("_marshall")
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                .returns(byte[].class)
+                .addParameter(ClassName.get("android.os", "Parcelable"), "payload")
+                .addStatement("$T parcel = $T.obtain()", parcelType, parcelType)
+                .beginControlFlow("try")
+                .addStatement("payload.writeToParcel(parcel, 0)")
+                .addStatement("return parcel.marshall()")
+                .nextControlFlow("finally")
+                .addStatement("parcel.recycle()")
+                .endControlFlow()
+                .build());
+    }
+
+    // the payload can be marshalled into byte[] if no argument may write a binder or a file
+    // descriptor (Parcel.marshall() rejects them)
+    private boolean isPayloadFlat(ExecutableElement methodElement) {
+        for (VariableElement param : methodElement.getParameters()) {
+            if (!isFlat(param)) {
+                return false;
+            }
         }
 
-        if (isParcelable(element)) {
-            putParcelableArrayList(builder, param, bundleName);
+        return true;
+    }
+
+    // in the order of addWriteStatement(): the Parcelable (also the element of array and Map),
+    // IBinder, SparseArray, untyped List and the shared array may write a binder or a file descriptor
+    private boolean isFlat(VariableElement param) {
+        TypeMirror paramType = param.asType();
+
+        if (isPrimitive(param)) {
+            return true;
+        }
+
+        if (isArray(param)) {
+            TypeMirror componentType = ((ArrayType) paramType).getComponentType();
+            return !isSharedArray(param) &&
+                    (componentType.getKind().isPrimitive() || isCharSequence(mTypes.asElement(componentType)));
+        }
+
+        Element element = mTypes.asElement(paramType);
+
+        if (isSparseArray(element)) {
+            return false;
+        }
+
+        if (isPrimitiveList(paramType)) {
+            return true;
+        }
+
+        if (isFlatMap(paramType)) {
+            return !isParcelable(mTypes.asElement(((DeclaredType) paramType).getTypeArguments().get(1)));
+        }
+
+        if (isList(element)) {
+            return isString(mTypes.asElement(((DeclaredType) paramType).getTypeArguments().get(0)));
+        }
+
+        if (isString(element) || isCharSequence(element)) {
+            return true;
+        }
+
+        return !isIBinder(element) && !isParcelable(element);
+    }
+
+    // the calls of batch are dispatched without MessageQueue, they are due when the batch is due
+    @Override
+    protected CodeBlock getDispatchWhen(String paramName) {
+        if (isBatchEnabled()) {
+            return CodeBlock.of("$N.getWhen() != 0 ? $N.getWhen() : mBatchWhen", paramName, paramName);
+        }
+        return super.getDispatchWhen(paramName);
+    }
+
+    private boolean isBatchEnabled() {
+        return mInterfaceElement.getAnnotation(Messenger.class).batchSize() > 1;
+    }
+
+    // Batch:
+    // 1. the calls of client are buffered by _enqueue() as (what, payload), and sent in one
+    //    Message(what is MSG_BATCH) by flush(), when batchSize calls are buffered, batchWindow
+    //    milliseconds elapsed (posted to the main thread), or flush() is called.
+    // 2. the Batch is written as the count, then the what and the payload of each call without
+    //    the class name, the payload is read by the CREATOR of method.
+    // 3. the receiving Handler dispatches the calls in order by handleMessage(), the payload is
+    //    passed in Message.obj, so the trace and the statistics are recorded for every call.
+    private void generateBatch(TypeSpec.Builder handlerBuilder) {
+        Messenger messenger = mInterfaceElement.getAnnotation(Messenger.class);
+
+        ClassName batchType = ClassName.get("", "Batch");
+        ClassName parcelType = ClassName.get("android.os", "Parcel");
+        ClassName parcelableType = ClassName.get("android.os", "Parcelable");
+        ClassName creatorType = parcelableType.nestedClass("Creator");
+        ClassName handlerType = ClassName.get("android.os", "Handler");
+        ClassName looperType = ClassName.get("android.os", "Looper");
+
+        // Receiving side
+        if (isStatsEnabled()) {
+            handlerBuilder.addField(FieldSpec.builder(long.class, "mBatchWhen", Modifier.PRIVATE)
+                    .addJavadoc("The due time of the batch that is being dispatched.\n")
+                    .build());
+        }
+
+        MethodSpec.Builder dispatchBuilder = MethodSpec.methodBuilder("_dispatchBatch")
+                .addModifiers(Modifier.PRIVATE)
+                .addParameter(mMessageType, "msg")
+                .addStatement("$T batch = _getPayload(msg, $T.class, $T.CREATOR)", batchType, batchType, batchType)
+                .beginControlFlow("if (batch == null)")
+                .addStatement("return")
+                .endControlFlow()
+                .beginControlFlow("for (int i = 0; i < batch.mSize; i++)")
+                .addStatement("$T message = $T.obtain()", mMessageType, mMessageType)
+                .addStatement("message.what = batch.mWhat[i]")
+                .addStatement("message.obj = batch.mPayloads[i]");
+
+        if (isStatsEnabled()) {
+            dispatchBuilder.addStatement("mBatchWhen = msg.getWhen()")
+                    .beginControlFlow("if (message.what > 0 && message.what <= LAST_METHOD_ID)")
+                    .addStatement("_recordCall(message.what)")
+                    .endControlFlow();
+        }
+
+        handlerBuilder.addMethod(dispatchBuilder.addStatement("handleMessage(message)")
+                .addStatement("message.recycle()")
+                .endControlFlow()
+                .build());
+
+        // Calling side
+        mMessengerBuilder.addField(FieldSpec.builder(int.class, "MSG_BATCH", Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                .initializer("-1")
+                .build());
+
+        mMessengerBuilder.addField(FieldSpec.builder(int.class, "BATCH_SIZE", Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                .initializer("$L", messenger.batchSize())
+                .build());
+
+        mMessengerBuilder.addField(FieldSpec.builder(long.class, "BATCH_WINDOW", Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                .initializer("$LL", messenger.batchWindow())
+                .build());
+
+        mMessengerBuilder.addField(FieldSpec.builder(Object.class, "mBatchLock", Modifier.PRIVATE, Modifier.FINAL)
+                .initializer("new Object()")
+                .build());
+
+        mMessengerBuilder.addField(batchType, "mBatch", Modifier.PRIVATE);
+        mMessengerBuilder.addField(handlerType, "mBatchTimer", Modifier.PRIVATE);
+
+        mMessengerBuilder.addField(FieldSpec.builder(Runnable.class, "mFlushTask", Modifier.PRIVATE, Modifier.FINAL)
+                .initializer("$L", TypeSpec.anonymousClassBuilder("")
+                        .addSuperinterface(Runnable.class)
+                        .addMethod(MethodSpec.methodBuilder("run")
+                                .addAnnotation(Override.class)
+                                .addModifiers(Modifier.PUBLIC)
+                                .addStatement("flush()")
+                                .build())
+                        .build())
+                .build());
+
+        mMessengerBuilder.addMethod(MethodSpec.methodBuilder("_enqueue")
+                .addModifiers(Modifier.PRIVATE)
+                .addParameter(int.class, "what")
+                .addParameter(parcelableType, "payload")
+                .beginControlFlow("synchronized (mBatchLock)")
+                .beginControlFlow("if (mBatch == null)")
+                .addStatement("mBatch = new $T(BATCH_SIZE)", batchType)
+                .beginControlFlow("if (BATCH_WINDOW > 0)")
+                .beginControlFlow("if (mBatchTimer == null)")
+                .addStatement("mBatchTimer = new $T($T.getMainLooper())", handlerType, looperType)
+                .endControlFlow()
+                .addStatement("mBatchTimer.postDelayed(mFlushTask, BATCH_WINDOW)")
+                .endControlFlow()
+                .endControlFlow()
+                .addStatement("mBatch.add(what, payload)")
+                .beginControlFlow("if (mBatch.mSize >= BATCH_SIZE)")
+                .addStatement("flush()")
+                .endControlFlow()
+                .endControlFlow()
+                .build());
+
+        // the batch is sent in the lock, so the batches are sent in order
+        MethodSpec.Builder flushBuilder = MethodSpec.methodBuilder("flush")
+                .addJavadoc("Send the buffered calls in one Message now.\n")
+                .addModifiers(Modifier.PUBLIC)
+                .beginControlFlow("synchronized (mBatchLock)")
+                .addStatement("$T batch = mBatch", batchType)
+                .beginControlFlow("if (batch == null)")
+                .addStatement("return")
+                .endControlFlow()
+                .addStatement("mBatch = null")
+                .beginControlFlow("if (mBatchTimer != null)")
+                .addStatement("mBatchTimer.removeCallbacks(mFlushTask)")
+                .endControlFlow()
+                .addStatement("$T message = $T.obtain()", mMessageType, mMessageType)
+                .addStatement("message.what = MSG_BATCH")
+                .addStatement("$T data = new $T()", mBundleType, mBundleType);
+
+        boolean batchFlat = true;
+        for (Pair<String, ExecutableElement> methodPair : getInterfaceMethodPairs()) {
+            if (!returnsFuture(methodPair.getValue()) && !isPayloadFlat(methodPair.getValue())) {
+                batchFlat = false;
+            }
+        }
+
+        addPutPayloadStatement(flushBuilder, "data", "batch", batchFlat);
+        flushBuilder.addStatement("message.setData(data)")
+                .addStatement("_sendMessage(message)");
+
+        // Batch
+        TypeSpec.Builder builder = TypeSpec.classBuilder(batchType.simpleName())
+                .addJavadoc("Wire format of the buffered calls.\n")
+                .addModifiers(Modifier.PUBLIC, Modifier.STATIC, Modifier.FINAL)
+                .addSuperinterface(parcelableType)
+                .addField(int[].class, "mWhat")
+                .addField(ArrayTypeName.of(parcelableType), "mPayloads")
+                .addField(int.class, "mSize");
+
+        builder.addMethod(MethodSpec.constructorBuilder()
+                .addParameter(int.class, "capacity")
+                .addStatement("mWhat = new int[capacity]")
+                .addStatement("mPayloads = new $T[capacity]", parcelableType)
+                .build());
+
+        builder.addMethod(MethodSpec.methodBuilder("add")
+                .addParameter(int.class, "what")
+                .addParameter(parcelableType, "payload")
+                .addStatement("mWhat[mSize] = what")
+                .addStatement("mPayloads[mSize] = payload")
+                .addStatement("mSize++")
+                .build());
+
+        // the size comes from the other process, it is checked before allocated, a flushed Batch never
+        // holds more than BATCH_SIZE calls and each call takes at least 4 bytes (the what)
+        ClassName badParcelableExceptionType = ClassName.get("android.os", "BadParcelableException");
+        builder.addMethod(MethodSpec.methodBuilder("readSize")
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                .returns(int.class)
+                .addParameter(parcelType, "in")
+                .addStatement("int size = in.readInt()")
+                .beginControlFlow("if (size < 0 || size > BATCH_SIZE || size > in.dataAvail() / 4)")
+                .addStatement("throw new $T($S + size)", badParcelableExceptionType, "invalid batch size: ")
+                .endControlFlow()
+                .addStatement("return size")
+                .build());
+
+        MethodSpec.Builder readBuilder = MethodSpec.constructorBuilder()
+                .addModifiers(Modifier.PRIVATE)
+                .addParameter(parcelType, "in")
+                .addStatement("this(readSize(in))")
+                .beginControlFlow("for (int i = 0; i < mWhat.length; i++)")
+                .addStatement("int what = in.readInt()")
+                .addStatement("$T payload = null", parcelableType)
+                .beginControlFlow("switch (what)");
+
+        for (Pair<String, ExecutableElement> methodPair : getInterfaceMethodPairs()) {
+            ExecutableElement methodElement = methodPair.getValue();
+            if (returnsFuture(methodElement)) {
+                continue;
+            }
+
+            readBuilder.addCode("case $N:\n", methodPair.getKey());
+            if (!methodElement.getParameters().isEmpty()) {
+                readBuilder.addStatement("payload = $T.CREATOR.createFromParcel(in)", getPayloadClassName(methodPair.getKey()));
+            }
+            readBuilder.addStatement("break");
         }
+
+        readBuilder.addCode("default:\n")
+                .addComment("the payloads after the unknown call can not be read")
+                .addStatement("throw new $T($S + what)", badParcelableExceptionType, "unknown method: ")
+                .endControlFlow()
+                .addStatement("add(what, payload)")
+                .endControlFlow();
+
+        builder.addMethod(readBuilder.build())
+                .addMethod(MethodSpec.methodBuilder("describeContents")
+                        .addAnnotation(Override.class)
+                        .addModifiers(Modifier.PUBLIC)
+                        .returns(int.class)
+                        .addStatement("return 0")
+                        .build())
+                .addMethod(MethodSpec.methodBuilder("writeToParcel")
+                        .addAnnotation(Override.class)
+                        .addModifiers(Modifier.PUBLIC)
+                        .addParameter(parcelType, "dest")
+                        .addParameter(int.class, "flags")
+                        .addStatement("dest.writeInt(mSize)")
+                        .beginControlFlow("for (int i = 0; i < mSize; i++)")
+                        .addStatement("dest.writeInt(mWhat[i])")
+                        .beginControlFlow("if (mPayloads[i] != null)")
+                        .addStatement("mPayloads[i].writeToParcel(dest, flags)")
+                        .endControlFlow()
+                        .endControlFlow()
+                        .build());
+
+        builder.addField(FieldSpec.builder(ParameterizedTypeName.get(creatorType, batchType), "CREATOR",
+                Modifier.PUBLIC, Modifier.STATIC, Modifier.FINAL)
+                .initializer("$L", TypeSpec.anonymousClassBuilder("")
+                        .addSuperinterface(ParameterizedTypeName.get(creatorType, batchType))
+                        .addMethod(MethodSpec.methodBuilder("createFromParcel")
+                                .addAnnotation(Override.class)
+                                .addModifiers(Modifier.PUBLIC)
+                                .returns(batchType)
+                                .addParameter(parcelType, "in")
+                                .addStatement("return new $T(in)", batchType)
+                                .build())
+                        .addMethod(MethodSpec.methodBuilder("newArray")
+                                .addAnnotation(Override.class)
+                                .addModifiers(Modifier.PUBLIC)
+                                .returns(ArrayTypeName.of(batchType))
+                                .addParameter(int.class, "size")
+                                .addStatement("return new $T[size]", batchType)
+                                .build())
+                        .build())
+                .build());
+
+        mMessengerBuilder.addMethod(flushBuilder.endControlFlow().build());
+        mMessengerBuilder.addType(builder.build());
     }
 
-    private void putIntegerArrayList(MethodSpec.Builder builder, VariableElement param, String bundleName) {
-        String paramName = param.getSimpleName().toString();
-        builder.addStatement("$N.putIntegerArrayList($S, new $T<>($N))", bundleName, paramName, mArrayListType, paramName);
+    // Serializable codec:
+    // the boxed primitives, the enums and the plain classes (only primitive and String fields) are
+    // written field by field instead of Java serialization. The flag written first is 0 if null, 1
+    // if written by the codec, or 2 if written by Java serialization (the subclass of a non-final
+    // class). The other types are written by Java serialization, and reported by a NOTE.
+    private String getSerializableCodec(TypeMirror type) {
+        TypeElement typeElement = (TypeElement) mTypes.asElement(type);
+        String qualifiedName = typeElement.getQualifiedName().toString();
+
+        String codec = mSerializableCodecs.get(qualifiedName);
+        if (codec != null) {
+            return codec;
+        }
+
+        String reason = checkSerializableCodec(typeElement);
+        if (reason != null) {
+            mMessager.printMessage(Diagnostic.Kind.NOTE,
+                    "Java serialization is used for " + qualifiedName + ": " + reason, mInterfaceElement);
+            mSerializableCodecs.put(qualifiedName, "");
+            return "";
+        }
+
+        codec = typeElement.getSimpleName().toString();
+        if (mSerializableCodecs.containsValue(codec)) {
+            codec = codec + mSerializableCodecs.size();
+        }
+
+        mSerializableCodecs.put(qualifiedName, codec);
+        generateSerializableCodec(typeElement, codec);
+        return codec;
     }
 
-    private void putStringArrayList(MethodSpec.Builder builder, VariableElement param, String bundleName) {
-        String paramName = param.getSimpleName().toString();
-        builder.addStatement("$N.putStringArrayList($S, new $T<>($N))", bundleName, paramName, mArrayListType, paramName);
+    // returns the reason if the codec can not be generated, otherwise null
+    private String checkSerializableCodec(TypeElement typeElement) {
+        if (isBoxedPrimitive(typeElement)) {
+            return null;
+        }
+
+        boolean samePackage = mElements.getPackageOf(typeElement).equals(mElements.getPackageOf(mInterfaceElement));
+        Set<Modifier> modifiers = typeElement.getModifiers();
+
+        if (modifiers.contains(Modifier.PRIVATE) || !(modifiers.contains(Modifier.PUBLIC) || samePackage)) {
+            return "the class is not accessible";
+        }
+
+        if (typeElement.getNestingKind() != NestingKind.TOP_LEVEL && !modifiers.contains(Modifier.STATIC)) {
+            return "the class is not top-level or static";
+        }
+
+        if (typeElement.getKind() == ElementKind.ENUM) {
+            return null;
+        }
+
+        if (typeElement.getKind() != ElementKind.CLASS || modifiers.contains(Modifier.ABSTRACT)) {
+            return "not a concrete class";
+        }
+
+        if (!mTypes.isSameType(typeElement.getSuperclass(), mElements.getTypeElement("java.lang.Object").asType())) {
+            return "the super class is not Object";
+        }
+
+        for (ExecutableElement method : ElementFilter.methodsIn(typeElement.getEnclosedElements())) {
+            String name = method.getSimpleName().toString();
+            if (name.equals("writeObject") || name.equals("readObject") || name.equals("readObjectNoData") ||
+                    name.equals("writeReplace") || name.equals("readResolve")) {
+                return "the class customizes the serialization";
+            }
+        }
+
+        boolean hasConstructor = false;
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(typeElement.getEnclosedElements())) {
+            Set<Modifier> constructorModifiers = constructor.getModifiers();
+            if (constructor.getParameters().isEmpty() && !constructorModifiers.contains(Modifier.PRIVATE) &&
+                    (constructorModifiers.contains(Modifier.PUBLIC) || samePackage)) {
+                hasConstructor = true;
+            }
+        }
+
+        if (!hasConstructor) {
+            return "no accessible constructor without parameters";
+        }
+
+        for (VariableElement field : getSerializableFields(typeElement)) {
+            Set<Modifier> fieldModifiers = field.getModifiers();
+
+            if (fieldModifiers.contains(Modifier.PRIVATE) || fieldModifiers.contains(Modifier.FINAL) ||
+                    !(fieldModifiers.contains(Modifier.PUBLIC) || samePackage)) {
+                return "the field " + field.getSimpleName() + " is not accessible or final";
+            }
+
+            TypeMirror fieldType = field.asType();
+            if (!(fieldType.getKind().isPrimitive() || isString(mTypes.asElement(fieldType)))) {
+                return "the type of field " + field.getSimpleName() + " is not primitive or String";
+            }
+        }
+
+        return null;
     }
 
-    private void putCharSequenceArrayList(MethodSpec.Builder builder, VariableElement param, String bundleName) {
-        String paramName = param.getSimpleName().toString();
-        builder.addStatement("$N.putCharSequenceArrayList($S, new $T<>($N))", bundleName, paramName, mArrayListType, paramName);
+    // the fields that are serialized: not static and not transient
+    private List<VariableElement> getSerializableFields(TypeElement typeElement) {
+        List<VariableElement> fields = ElementFilter.fieldsIn(typeElement.getEnclosedElements());
+        List<VariableElement> result = new ArrayList<>();
+
+        for (VariableElement field : fields) {
+            Set<Modifier> modifiers = field.getModifiers();
+            if (!modifiers.contains(Modifier.STATIC) && !modifiers.contains(Modifier.TRANSIENT)) {
+                result.add(field);
+            }
+        }
+
+        return result;
     }
 
-    private void putParcelableArrayList(MethodSpec.Builder builder, VariableElement param, String bundleName) {
-        String paramName = param.getSimpleName().toString();
-        builder.addStatement("$N.putParcelableArrayList($S, new $T<>($N))", bundleName, paramName, mArrayListType, paramName);
+    private boolean isBoxedPrimitive(TypeElement typeElement) {
+        try {
+            mTypes.unboxedType(typeElement.asType());
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private void generateSerializableCodec(TypeElement typeElement, String codec) {
+        ClassName parcelType = ClassName.get("android.os", "Parcel");
+        TypeName type = TypeName.get(typeElement.asType());
+
+        MethodSpec.Builder writeBuilder = MethodSpec.methodBuilder("_write" + codec)
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                .addParameter(parcelType, "dest")
+                .addParameter(type, "value")
+                .beginControlFlow("if (value == null)")
+                .addStatement("dest.writeInt(0)")
+                .addStatement("return")
+                .endControlFlow();
+
+        MethodSpec.Builder readBuilder = MethodSpec.methodBuilder("_read" + codec)
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                .returns(type)
+                .addParameter(parcelType, "in")
+                .addStatement("int flag = in.readInt()")
+                .beginControlFlow("if (flag == 0)")
+                .addStatement("return null")
+                .endControlFlow();
+
+        if (isBoxedPrimitive(typeElement)) {
+            TypeKind kind = mTypes.unboxedType(typeElement.asType()).getKind();
+
+            writeBuilder.addStatement("dest.writeInt(1)");
+            writePrimitive(writeBuilder, kind, "value");
+
+            readBuilder.addStatement("return $L", getReadPrimitiveExpression(kind));
+        } else if (typeElement.getKind() == ElementKind.ENUM) {
+            writeBuilder.addStatement("dest.writeInt(1)")
+                    .addStatement("dest.writeInt(value.ordinal())");
+
+            readBuilder.addStatement("return $T.values()[in.readInt()]", type);
+        } else {
+            if (!typeElement.getModifiers().contains(Modifier.FINAL)) {
+                writeBuilder.beginControlFlow("if (value.getClass() != $T.class)", type)
+                        .addComment("the fields of subclass are unknown")
+                        .addStatement("dest.writeInt(2)")
+                        .addStatement("dest.writeSerializable(value)")
+                        .addStatement("return")
+                        .endControlFlow();
+
+                readBuilder.beginControlFlow("if (flag == 2)")
+                        .addStatement("return ($T) in.readSerializable()", type)
+                        .endControlFlow();
+            }
+
+            writeBuilder.addStatement("dest.writeInt(1)");
+            readBuilder.addStatement("$T value = new $T()", type, type);
+
+            for (VariableElement field : getSerializableFields(typeElement)) {
+                String name = "value." + field.getSimpleName();
+                TypeMirror fieldType = field.asType();
+
+                if (fieldType.getKind().isPrimitive()) {
+                    writePrimitive(writeBuilder, fieldType.getKind(), name);
+                    readPrimitive(readBuilder, fieldType.getKind(), name);
+                } else {
+                    writeBuilder.addStatement("dest.writeString($N)", name);
+                    readBuilder.addStatement("$N = in.readString()", name);
+                }
+            }
+
+            readBuilder.addStatement("return value");
+        }
+
+        mMessengerBuilder.addMethod(writeBuilder.build());
+        mMessengerBuilder.addMethod(readBuilder.build());
     }
 }
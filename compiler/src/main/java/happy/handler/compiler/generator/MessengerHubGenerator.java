@@ -0,0 +1,284 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 jrfeng
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package happy.handler.compiler.generator;
+
+import com.squareup.javapoet.ArrayTypeName;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.TypeName;
+import com.squareup.javapoet.TypeSpec;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.MirroredTypesException;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+
+import happy.handler.Messenger;
+import happy.handler.MessengerHub;
+
+/**
+ * MessengerHub:
+ * 1. the server hosts the Messengers of members (created with receiver) behind the Messenger of
+ *    Router, Router forwards the call to the Messenger of member by the channel (message.arg2)
+ *    on the binder thread, so the call is only enqueued once, to the Looper of member.
+ * 2. the client creates the proxies of members with the same IBinder, each proxy stamps its
+ *    channel on the calls.
+ * <p>
+ * The channel of member is its index in {@link MessengerHub#members()}, start from 1.
+ */
+public class MessengerHubGenerator {
+    private Elements mElements;
+    private Types mTypes;
+    private Messager mMessager;
+
+    private ClassName mBinderType = ClassName.get("android.os", "IBinder");
+    private ClassName mMessengerType = ClassName.get("android.os", "Messenger");
+    private ClassName mMessageType = ClassName.get("android.os", "Message");
+    private ClassName mLooperType = ClassName.get("android.os", "Looper");
+    private ClassName mRouterType = ClassName.get("", "Router");
+
+    public MessengerHubGenerator(ProcessingEnvironment processingEnv) {
+        mElements = processingEnv.getElementUtils();
+        mTypes = processingEnv.getTypeUtils();
+        mMessager = processingEnv.getMessager();
+    }
+
+    /**
+     * Returns null if the members are illegal.
+     */
+    public TypeSpec generate(String className, TypeElement hubElement) {
+        List<TypeElement> members = getMembers(hubElement);
+        if (members == null) {
+            return null;
+        }
+
+        TypeSpec.Builder builder = TypeSpec.classBuilder(className)
+                .addModifiers(Modifier.PUBLIC, Modifier.FINAL)
+                .addField(mMessengerType, "mMessenger", Modifier.PRIVATE, Modifier.VOLATILE)
+                .addField(mRouterType, "mRouter", Modifier.PRIVATE);
+
+        for (TypeElement member : members) {
+            builder.addField(getMessengerClassName(member), getFieldName(member), Modifier.PRIVATE, Modifier.FINAL);
+        }
+
+        generateClientConstructor(builder, members);
+        generateServerConstructors(builder, className, members);
+        generateRouter(builder);
+
+        builder.addMethod(MethodSpec.methodBuilder("attach")
+                .addJavadoc("Connect the proxies of all members to the new target, for example, the IBinder of\n")
+                .addJavadoc("the restarted service. Only for the hub created with IBinder.\n")
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(mBinderType, "target")
+                .beginControlFlow("if (mRouter != null)")
+                .addStatement("throw new $T($S)", IllegalStateException.class, "the hub is created with receivers")
+                .endControlFlow()
+                .addCode(getMembersCode(members, "$N.attach(target)"))
+                .addStatement("mMessenger = new $T(target)", mMessengerType)
+                .build());
+
+        for (TypeElement member : members) {
+            builder.addMethod(MethodSpec.methodBuilder("get" + member.getSimpleName())
+                    .addModifiers(Modifier.PUBLIC)
+                    .returns(getMessengerClassName(member))
+                    .addStatement("return $N", getFieldName(member))
+                    .build());
+        }
+
+        builder.addMethod(MethodSpec.methodBuilder("getBinder")
+                .addModifiers(Modifier.PUBLIC)
+                .returns(mBinderType)
+                .addStatement("return mMessenger.getBinder()")
+                .build());
+
+        builder.addMethod(MethodSpec.methodBuilder("getMessenger")
+                .addModifiers(Modifier.PUBLIC)
+                .returns(mMessengerType)
+                .addStatement("return mMessenger")
+                .build());
+
+        return builder.build();
+    }
+
+    // the interfaces annotated with @Messenger, no duplicate
+    private List<TypeElement> getMembers(TypeElement hubElement) {
+        List<? extends TypeMirror> memberTypes;
+        // the Class values of annotation are not available at compile time, so members() always
+        // throws MirroredTypesException
+        try {
+            hubElement.getAnnotation(MessengerHub.class).members();
+            return null;
+        } catch (MirroredTypesException e) {
+            memberTypes = e.getTypeMirrors();
+        }
+
+        if (memberTypes.isEmpty()) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, "The members of @MessengerHub is empty.", hubElement);
+            return null;
+        }
+
+        List<TypeElement> members = new ArrayList<>();
+        for (TypeMirror memberType : memberTypes) {
+            TypeElement member = (TypeElement) mTypes.asElement(memberType);
+
+            if (member == null || member.getKind() != ElementKind.INTERFACE || member.getAnnotation(Messenger.class) == null) {
+                mMessager.printMessage(Diagnostic.Kind.ERROR, "The member of @MessengerHub is not a @Messenger interface: " + memberType, hubElement);
+                return null;
+            }
+
+            if (members.contains(member)) {
+                mMessager.printMessage(Diagnostic.Kind.ERROR, "The member of @MessengerHub is duplicated: " + memberType, hubElement);
+                return null;
+            }
+
+            members.add(member);
+        }
+
+        return members;
+    }
+
+    private ClassName getMessengerClassName(TypeElement member) {
+        String className = member.getSimpleName() + "Messenger";
+        if (!"".equals(member.getAnnotation(Messenger.class).value())) {
+            className = member.getAnnotation(Messenger.class).value();
+        }
+
+        return ClassName.get(mElements.getPackageOf(member).getQualifiedName().toString(), className);
+    }
+
+    private String getFieldName(TypeElement member) {
+        return "m" + member.getSimpleName();
+    }
+
+    private String getParamName(TypeElement member) {
+        String name = member.getSimpleName().toString();
+        return name.substring(0, 1).toLowerCase() + name.substring(1);
+    }
+
+    // the format is applied to the field of each member
+    private CodeBlock getMembersCode(List<TypeElement> members, String format) {
+        CodeBlock.Builder builder = CodeBlock.builder();
+        for (TypeElement member : members) {
+            builder.addStatement(format, getFieldName(member));
+        }
+        return builder.build();
+    }
+
+    // (IBinder target)
+    private void generateClientConstructor(TypeSpec.Builder builder, List<TypeElement> members) {
+        MethodSpec.Builder constructorBuilder = MethodSpec.constructorBuilder()
+                .addJavadoc("Create the proxies of all members, they share the IBinder of hub.\n")
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(mBinderType, "target")
+                .addStatement("mMessenger = new $T(target)", mMessengerType);
+
+        for (int i = 0; i < members.size(); i++) {
+            TypeElement member = members.get(i);
+            constructorBuilder.addStatement("$N = new $T(target, $L)", getFieldName(member), getMessengerClassName(member), i + 1);
+        }
+
+        builder.addMethod(constructorBuilder.build());
+    }
+
+    // 1. (Looper looper, Receiver1 receiver1, Receiver2 receiver2, ...)
+    // 2. (Messenger1 messenger1, Messenger2 messenger2, ...)
+    private void generateServerConstructors(TypeSpec.Builder builder, String className, List<TypeElement> members) {
+        MethodSpec.Builder receiversBuilder = MethodSpec.constructorBuilder()
+                .addJavadoc("Host the receivers of all members, they are dispatched on the same Looper.\n")
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(mLooperType, "looper");
+
+        MethodSpec.Builder messengersBuilder = MethodSpec.constructorBuilder()
+                .addJavadoc("Host the Messengers of all members, which must be created with receiver.\n")
+                .addModifiers(Modifier.PUBLIC);
+
+        CodeBlock.Builder args = CodeBlock.builder();
+        CodeBlock.Builder channels = CodeBlock.builder().add("null");
+
+        for (TypeElement member : members) {
+            String paramName = getParamName(member);
+            ClassName messengerClassName = getMessengerClassName(member);
+
+            receiversBuilder.addParameter(TypeName.get(member.asType()), paramName);
+            messengersBuilder.addParameter(messengerClassName, paramName)
+                    .addStatement("$N = $N", getFieldName(member), paramName);
+
+            if (!args.isEmpty()) {
+                args.add(", ");
+            }
+            args.add("new $T(looper, $N)", messengerClassName, paramName);
+            channels.add(", $N.getMessenger()", paramName);
+        }
+
+        receiversBuilder.addStatement("this($L)", args.build());
+
+        messengersBuilder.addStatement("mRouter = new $T(new $T[]{$L})", mRouterType, mMessengerType, channels.build())
+                .addStatement("mMessenger = new $T(mRouter)", mMessengerType);
+
+        builder.addMethod(receiversBuilder.build())
+                .addMethod(messengersBuilder.build());
+    }
+
+    // the Router never handles the message, it forwards the call on the binder thread
+    private void generateRouter(TypeSpec.Builder builder) {
+        builder.addType(TypeSpec.classBuilder(mRouterType.simpleName())
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                .superclass(ClassName.get("android.os", "Handler"))
+                .addField(ArrayTypeName.of(mMessengerType), "mChannels", Modifier.PRIVATE, Modifier.FINAL)
+                .addMethod(MethodSpec.constructorBuilder()
+                        .addParameter(ArrayTypeName.of(mMessengerType), "channels")
+                        .addStatement("super($T.getMainLooper())", mLooperType)
+                        .addStatement("mChannels = channels")
+                        .build())
+                .addMethod(MethodSpec.methodBuilder("sendMessageAtTime")
+                        .addAnnotation(Override.class)
+                        .addModifiers(Modifier.PUBLIC)
+                        .returns(boolean.class)
+                        .addParameter(mMessageType, "msg")
+                        .addParameter(long.class, "uptimeMillis")
+                        .addStatement("int channel = msg.arg2")
+                        .beginControlFlow("if (channel <= 0 || channel >= mChannels.length)")
+                        .addComment("unknown channel, the client is not generated from the same hub")
+                        .addStatement("return false")
+                        .endControlFlow()
+                        .beginControlFlow("try")
+                        .addStatement("mChannels[channel].send(msg)")
+                        .addStatement("return true")
+                        .nextControlFlow("catch (android.os.RemoteException e)")
+                        .addStatement("return false")
+                        .endControlFlow()
+                        .build())
+                .build());
+    }
+}
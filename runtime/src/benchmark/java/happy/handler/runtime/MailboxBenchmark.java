@@ -0,0 +1,195 @@
+package happy.handler.runtime;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Timing benchmark of {@link MailboxThread} (with the default {@code ConcurrentLinkedQueue} and
+ * with the intrusive {@link Mailbox}) against a consumer thread that drains a
+ * {@link BlockingQueue} in batches of the same size. Run it on a multi-core machine:
+ * <pre>
+ * ./gradlew :runtime:mailboxBenchmark --args="[producers] [messages]"
+ * </pre>
+ */
+public class MailboxBenchmark {
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int MEASURE_ROUNDS = 5;
+
+    public static void main(String[] args) throws InterruptedException {
+        int producers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+
+        System.out.println(producers + " producers, " + messages + " messages per round");
+
+        report("MailboxThread", new MailboxRunner(false), producers, messages);
+        report("MailboxThread+Mailbox", new MailboxRunner(true), producers, messages);
+        report("ArrayBlockingQueue", new QueueRunner(true), producers, messages);
+        report("LinkedBlockingQueue", new QueueRunner(false), producers, messages);
+    }
+
+    private static void report(String name, Runner runner, int producers, int messages) throws InterruptedException {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            runner.run(producers, messages);
+        }
+
+        long best = Long.MAX_VALUE;
+        long total = 0;
+        for (int i = 0; i < MEASURE_ROUNDS; i++) {
+            long nanos = runner.run(producers, messages);
+            best = Math.min(best, nanos);
+            total += nanos;
+        }
+
+        System.out.printf("%-22s best %8.2f ms, mean %8.2f ms, %6.1f M msg/s%n", name,
+                best / 1e6, total / 1e6 / MEASURE_ROUNDS, messages / (best / 1e3));
+    }
+
+    private interface Runner {
+        /**
+         * Returns the nanoseconds from the start of producers to the last message consumed.
+         */
+        long run(int producers, int messages) throws InterruptedException;
+    }
+
+    private static long produce(int producers, final int messages, final Producer producer, CountDownLatch consumed)
+            throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final int perProducer = messages / producers;
+
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < perProducer; i++) {
+                            producer.send(i);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            threads[p].start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        consumed.await();
+        long nanos = System.nanoTime() - begin;
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return nanos;
+    }
+
+    private interface Producer {
+        void send(int value) throws InterruptedException;
+    }
+
+    private static final class MailboxRunner implements Runner {
+        private final boolean mIntrusive;
+
+        MailboxRunner(boolean intrusive) {
+            mIntrusive = intrusive;
+        }
+
+        @Override
+        public long run(int producers, int messages) throws InterruptedException {
+            final int expected = messages / producers * producers;
+            final CountDownLatch consumed = new CountDownLatch(1);
+
+            MailboxThread mailboxThread = new MailboxThread("MailboxBenchmark", mIntrusive);
+            final CountingActor actor = new CountingActor(mailboxThread, expected, consumed);
+            mailboxThread.start();
+
+            long nanos = produce(producers, messages, new Producer() {
+                @Override
+                public void send(int value) {
+                    actor.post(value);
+                }
+            }, consumed);
+
+            mailboxThread.quit();
+            mailboxThread.getThread().join();
+            return nanos;
+        }
+    }
+
+    private static final class CountingActor extends Actor {
+        private final int mExpected;
+        private final CountDownLatch mConsumed;
+        private int mCount;
+
+        CountingActor(MailboxThread mailboxThread, int expected, CountDownLatch consumed) {
+            super(mailboxThread);
+            mExpected = expected;
+            mConsumed = consumed;
+        }
+
+        void post(int value) {
+            send(0, value);
+        }
+
+        @Override
+        protected void onReceive(int what, Object obj) {
+            if (++mCount == mExpected) {
+                mConsumed.countDown();
+            }
+        }
+    }
+
+    // the consumer blocks on take(), then drains at most DRAIN_BATCH_SIZE - 1 more
+    private static final class QueueRunner implements Runner {
+        private final boolean mArray;
+
+        QueueRunner(boolean array) {
+            mArray = array;
+        }
+
+        @Override
+        public long run(int producers, int messages) throws InterruptedException {
+            final int expected = messages / producers * producers;
+            final CountDownLatch consumed = new CountDownLatch(1);
+            final BlockingQueue<Integer> queue = mArray
+                    ? new ArrayBlockingQueue<Integer>(64 * 1024)
+                    : new LinkedBlockingQueue<Integer>();
+
+            Thread consumer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    List<Integer> batch = new ArrayList<>(MailboxThread.DRAIN_BATCH_SIZE);
+                    int count = 0;
+                    try {
+                        while (count < expected) {
+                            batch.add(queue.take());
+                            queue.drainTo(batch, MailboxThread.DRAIN_BATCH_SIZE - 1);
+                            count += batch.size();
+                            batch.clear();
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    consumed.countDown();
+                }
+            }, "QueueBenchmark");
+            consumer.start();
+
+            long nanos = produce(producers, messages, new Producer() {
+                @Override
+                public void send(int value) throws InterruptedException {
+                    queue.put(value);
+                }
+            }, consumed);
+
+            consumer.join();
+            return nanos;
+        }
+    }
+}
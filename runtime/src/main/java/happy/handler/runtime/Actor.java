@@ -0,0 +1,61 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 jrfeng
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package happy.handler.runtime;
+
+/**
+ * The base class of the generated class of {@code @Handler(target = Handler.ACTOR)}, a pure Java
+ * replacement of {@code android.os.Handler}. The messages are dispatched by
+ * {@link #onReceive(int, Object)} on the {@link MailboxThread}.
+ */
+public abstract class Actor {
+    private final MailboxThread mMailboxThread;
+
+    protected Actor(MailboxThread mailboxThread) {
+        if (mailboxThread == null) {
+            throw new NullPointerException("mailboxThread is null.");
+        }
+
+        mMailboxThread = mailboxThread;
+    }
+
+    public final MailboxThread getMailboxThread() {
+        return mMailboxThread;
+    }
+
+    /**
+     * Returns false if the {@link MailboxThread} is quit.
+     */
+    protected final boolean send(int what, Object obj) {
+        return mMailboxThread.post(this, what, obj);
+    }
+
+    protected abstract void onReceive(int what, Object obj);
+
+    /**
+     * Called on the {@link MailboxThread} for every message that is not dispatched because the
+     * thread quit, for example, to cancel the future of the message. Nothing by default.
+     */
+    protected void onDiscard(int what, Object obj) {
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 jrfeng
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package happy.handler.runtime;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A {@link SharedRegion} backed by a temporary file mapped with {@link FileChannel#map}, the
+ * stand-in of {@code android.os.SharedMemory} on the plain JVM.
+ */
+public final class FileChannelRegion implements SharedRegion {
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        public SharedRegion create(int size) throws IOException {
+            return new FileChannelRegion(size);
+        }
+    };
+
+    private final File mFile;
+    private final RandomAccessFile mRandomAccessFile;
+    private final FileChannel mChannel;
+    private final int mSize;
+
+    private volatile boolean mReadOnly;
+
+    public FileChannelRegion(int size) throws IOException {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be positive: " + size);
+        }
+
+        mFile = File.createTempFile("region", null);
+        mFile.deleteOnExit();
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        mRandomAccessFile.setLength(size);
+        mChannel = mRandomAccessFile.getChannel();
+        mSize = size;
+    }
+
+    @Override
+    public int getSize() {
+        return mSize;
+    }
+
+    @Override
+    public ByteBuffer mapReadWrite() throws IOException {
+        if (mReadOnly) {
+            throw new IOException("the region is read-only");
+        }
+
+        return mChannel.map(FileChannel.MapMode.READ_WRITE, 0, mSize);
+    }
+
+    @Override
+    public ByteBuffer mapReadOnly() throws IOException {
+        return mChannel.map(FileChannel.MapMode.READ_ONLY, 0, mSize);
+    }
+
+    // the mapping is released when the buffer is collected, there is no public API to unmap it
+    @Override
+    public void unmap(ByteBuffer buffer) {
+        if (buffer instanceof MappedByteBuffer && !mReadOnly) {
+            ((MappedByteBuffer) buffer).force();
+        }
+    }
+
+    @Override
+    public void setReadOnly() {
+        mReadOnly = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            mRandomAccessFile.close();
+        } finally {
+            mFile.delete();
+        }
+    }
+}
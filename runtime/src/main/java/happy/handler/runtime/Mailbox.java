@@ -0,0 +1,121 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 jrfeng
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package happy.handler.runtime;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lock-free multi-producer/single-consumer intrusive queue.
+ * <p>
+ * The items extend {@link Node}, so the item itself is linked and {@link #offer(Node)} allocates
+ * nothing. A item can be offered only once, and must not be offered again after it is polled.
+ * <p>
+ * {@link #offer(Node)} can be called by any thread, {@link #poll()}, {@link #drain(Consumer, int)}
+ * and {@link #isEmpty()} must be called by the single consumer thread.
+ * <p>
+ * The producers only exchange the tail node, and the consumer only reads the head node, so there
+ * is no lock. Note that a item is visible to consumer after the producer links it, so the
+ * consumer may see a empty queue for a short time while a producer is in the middle of
+ * {@link #offer(Node)}.
+ */
+public final class Mailbox<T extends Mailbox.Node<T>> {
+    private final AtomicReference<Node<T>> mTail;
+    private Node<T> mHead;
+
+    public Mailbox() {
+        Node<T> stub = new Node<>();
+        mHead = stub;
+        mTail = new AtomicReference<>(stub);
+    }
+
+    /**
+     * Called by any thread.
+     *
+     * @param item not null
+     */
+    public void offer(T item) {
+        if (item == null) {
+            throw new NullPointerException("item is null.");
+        }
+
+        Node<T> prev = mTail.getAndSet(item);
+        prev.mNext = item;
+    }
+
+    /**
+     * Called by the consumer thread. Returns null if empty.
+     * <p>
+     * The polled item stays the head of queue until the next poll, so it should not keep large
+     * objects alive after it is consumed.
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        Node<T> next = mHead.mNext;
+        if (next == null) {
+            return null;
+        }
+
+        mHead = next;
+        return (T) next;
+    }
+
+    /**
+     * Called by the consumer thread. Poll at most {@code limit} items, and pass them to consumer
+     * in order.
+     *
+     * @return the number of items that drained
+     */
+    public int drain(Consumer<T> consumer, int limit) {
+        int count = 0;
+        while (count < limit) {
+            T item = poll();
+            if (item == null) {
+                break;
+            }
+
+            count++;
+            consumer.accept(item);
+        }
+
+        return count;
+    }
+
+    /**
+     * Called by the consumer thread.
+     */
+    public boolean isEmpty() {
+        return mHead.mNext == null;
+    }
+
+    public interface Consumer<T> {
+        void accept(T item);
+    }
+
+    /**
+     * The link of the items, only the initial head of queue is a plain Node.
+     */
+    public static class Node<T extends Node<T>> {
+        volatile Node<T> mNext;
+    }
+}
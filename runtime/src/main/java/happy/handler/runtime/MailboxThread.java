@@ -0,0 +1,257 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 jrfeng
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package happy.handler.runtime;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A thread that dispatches the messages of {@link Actor}, a pure Java replacement of
+ * {@code android.os.HandlerThread}.
+ * <p>
+ * The messages are queued in a {@link LinkedBlockingQueue}, and drained in batches of
+ * {@link #DRAIN_BATCH_SIZE} per wakeup.
+ * <p>
+ * The lock-free intrusive {@link Mailbox} is only used by the package-private constructor for
+ * MailboxBenchmark, it is not the default until it is measured faster than the
+ * {@code java.util.concurrent} queues on multi-core devices.
+ * <p>
+ * An exception thrown by {@link Actor#onReceive(int, Object)} is passed to the
+ * {@link Thread.UncaughtExceptionHandler} set by {@link #setUncaughtExceptionHandler}, and the
+ * dispatch goes on. If no handler is set, the thread quits and rethrows it, so the messages sent
+ * after are rejected instead of being queued forever.
+ */
+public final class MailboxThread {
+    public static final int DRAIN_BATCH_SIZE = 256;
+
+    // offered by quit() to wake up the take() of the queue
+    private static final Envelope QUIT = new Envelope(null, 0, null);
+
+    private final Mailbox<Envelope> mMailbox;
+    private final LinkedBlockingQueue<Envelope> mQueue;
+    private final Thread mThread;
+
+    private volatile boolean mParked;
+    private volatile boolean mQuit;
+    private volatile Thread.UncaughtExceptionHandler mExceptionHandler;
+
+    public MailboxThread(String name) {
+        this(name, false);
+    }
+
+    /**
+     * @param intrusive use the intrusive {@link Mailbox} instead of {@link LinkedBlockingQueue}
+     */
+    MailboxThread(String name, boolean intrusive) {
+        mMailbox = intrusive ? new Mailbox<Envelope>() : null;
+        mQueue = intrusive ? null : new LinkedBlockingQueue<Envelope>();
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (mMailbox != null) {
+                        loopMailbox();
+                    } else {
+                        loopQueue();
+                    }
+                } finally {
+                    // no one drains the mailbox any more
+                    mQuit = true;
+                    discard();
+                }
+            }
+        }, name);
+    }
+
+    public void start() {
+        mThread.start();
+    }
+
+    /**
+     * Stop dispatching, the pending messages are discarded (passed to
+     * {@link Actor#onDiscard(int, Object)}), and the messages that sent after quit are rejected.
+     */
+    public void quit() {
+        mQuit = true;
+        if (mMailbox != null) {
+            LockSupport.unpark(mThread);
+        } else {
+            mQueue.offer(QUIT);
+        }
+    }
+
+    public boolean isQuit() {
+        return mQuit;
+    }
+
+    public boolean isCurrentThread() {
+        return Thread.currentThread() == mThread;
+    }
+
+    public Thread getThread() {
+        return mThread;
+    }
+
+    /**
+     * The handler of the exceptions thrown by {@link Actor#onReceive(int, Object)}, it is called
+     * on this thread. If null, this thread quits on the first exception.
+     */
+    public void setUncaughtExceptionHandler(Thread.UncaughtExceptionHandler handler) {
+        mExceptionHandler = handler;
+    }
+
+    /**
+     * Returns false if this thread is quit.
+     */
+    boolean post(Actor target, int what, Object obj) {
+        if (mQuit) {
+            return false;
+        }
+
+        Envelope envelope = new Envelope(target, what, obj);
+        if (mMailbox == null) {
+            mQueue.offer(envelope);
+            return true;
+        }
+
+        mMailbox.offer(envelope);
+        if (mParked) {
+            LockSupport.unpark(mThread);
+        }
+
+        return true;
+    }
+
+    private Envelope poll() {
+        return mMailbox != null ? mMailbox.poll() : mQueue.poll();
+    }
+
+    // only quit() stops the loop, a interrupt is ignored
+    private void loopQueue() {
+        while (!mQuit) {
+            try {
+                dispatch(mQueue.take());
+            } catch (InterruptedException e) {
+                continue;
+            }
+            drain(DRAIN_BATCH_SIZE - 1);
+        }
+    }
+
+    // mParked is set before the mailbox is checked, and the producers check mParked after the
+    // message is linked, so a message can not be missed by the parking thread.
+    private void loopMailbox() {
+        while (!mQuit) {
+            if (drain(DRAIN_BATCH_SIZE) > 0) {
+                continue;
+            }
+
+            mParked = true;
+            if (mMailbox.isEmpty() && !mQuit) {
+                LockSupport.park(this);
+            }
+            mParked = false;
+        }
+    }
+
+    private int drain(int limit) {
+        int count = 0;
+        Envelope envelope;
+        while (count < limit && (envelope = poll()) != null) {
+            count++;
+            dispatch(envelope);
+        }
+        return count;
+    }
+
+    private void dispatch(Envelope envelope) {
+        if (envelope == QUIT) {
+            return;
+        }
+
+        // the rest of the batch after quit
+        if (mQuit) {
+            discard(envelope);
+            return;
+        }
+
+        try {
+            envelope.mTarget.onReceive(envelope.mWhat, envelope.mObj);
+        } catch (Throwable t) {
+            dispatchException(t);
+        } finally {
+            // the polled envelope stays the head of Mailbox until the next poll
+            envelope.mObj = null;
+        }
+    }
+
+    private void discard() {
+        Envelope envelope;
+        while ((envelope = poll()) != null) {
+            if (envelope != QUIT) {
+                discard(envelope);
+            }
+        }
+    }
+
+    // a exception thrown by onDiscard() is ignored, so the rest are still discarded
+    private static void discard(Envelope envelope) {
+        try {
+            envelope.mTarget.onDiscard(envelope.mWhat, envelope.mObj);
+        } catch (Throwable t) {
+            // ignored
+        } finally {
+            envelope.mObj = null;
+        }
+    }
+
+    private void dispatchException(Throwable t) {
+        Thread.UncaughtExceptionHandler handler = mExceptionHandler;
+        if (handler != null) {
+            handler.uncaughtException(mThread, t);
+            return;
+        }
+
+        mQuit = true;
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        throw new RuntimeException(t);
+    }
+
+    private static final class Envelope extends Mailbox.Node<Envelope> {
+        final Actor mTarget;
+        final int mWhat;
+        Object mObj;
+
+        Envelope(Actor target, int what, Object obj) {
+            mTarget = target;
+            mWhat = what;
+            mObj = obj;
+        }
+    }
+}
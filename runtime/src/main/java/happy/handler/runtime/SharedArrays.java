@@ -0,0 +1,165 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 jrfeng
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package happy.handler.runtime;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Copy the primitive arrays (except {@code boolean[]}) to and from a {@link SharedRegion}, used by
+ * the generated Messenger to transfer the large arrays out of the binder transaction.
+ */
+public final class SharedArrays {
+    private SharedArrays() {
+    }
+
+    /**
+     * Returns the size in bytes of the array, or -1 if it is null or not a supported array.
+     */
+    public static long byteSize(Object array) {
+        if (array instanceof byte[]) {
+            return ((byte[]) array).length;
+        } else if (array instanceof short[]) {
+            return ((short[]) array).length * 2L;
+        } else if (array instanceof char[]) {
+            return ((char[]) array).length * 2L;
+        } else if (array instanceof int[]) {
+            return ((int[]) array).length * 4L;
+        } else if (array instanceof float[]) {
+            return ((float[]) array).length * 4L;
+        } else if (array instanceof long[]) {
+            return ((long[]) array).length * 8L;
+        } else if (array instanceof double[]) {
+            return ((double[]) array).length * 8L;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Copy the array to a new read-only region, if its size is {@code threshold} bytes or more.
+     *
+     * @return the region, or null if the array should be written inline: it is null, smaller than
+     * the threshold, or failed to create the region
+     */
+    public static SharedRegion write(Object array, int threshold, SharedRegion.Factory factory) {
+        long size = byteSize(array);
+        if (threshold <= 0 || size < threshold || size > Integer.MAX_VALUE) {
+            return null;
+        }
+
+        SharedRegion region = null;
+        try {
+            region = factory.create((int) size);
+            ByteBuffer buffer = region.mapReadWrite();
+            try {
+                buffer.order(ByteOrder.nativeOrder());
+                put(buffer, array);
+            } finally {
+                region.unmap(buffer);
+            }
+            region.setReadOnly();
+            return region;
+        } catch (IOException e) {
+            closeQuietly(region);
+            // fallback to inline
+            return null;
+        }
+    }
+
+    /**
+     * Copy the region to a new array of the component type. The region is not closed.
+     */
+    public static Object read(SharedRegion region, Class<?> componentType) throws IOException {
+        ByteBuffer buffer = region.mapReadOnly();
+        try {
+            buffer.order(ByteOrder.nativeOrder());
+
+            if (componentType == byte.class) {
+                byte[] array = new byte[buffer.remaining()];
+                buffer.get(array);
+                return array;
+            } else if (componentType == short.class) {
+                short[] array = new short[buffer.remaining() / 2];
+                buffer.asShortBuffer().get(array);
+                return array;
+            } else if (componentType == char.class) {
+                char[] array = new char[buffer.remaining() / 2];
+                buffer.asCharBuffer().get(array);
+                return array;
+            } else if (componentType == int.class) {
+                int[] array = new int[buffer.remaining() / 4];
+                buffer.asIntBuffer().get(array);
+                return array;
+            } else if (componentType == float.class) {
+                float[] array = new float[buffer.remaining() / 4];
+                buffer.asFloatBuffer().get(array);
+                return array;
+            } else if (componentType == long.class) {
+                long[] array = new long[buffer.remaining() / 8];
+                buffer.asLongBuffer().get(array);
+                return array;
+            } else if (componentType == double.class) {
+                double[] array = new double[buffer.remaining() / 8];
+                buffer.asDoubleBuffer().get(array);
+                return array;
+            }
+
+            throw new IllegalArgumentException("unsupported component type: " + componentType);
+        } finally {
+            region.unmap(buffer);
+        }
+    }
+
+    public static void closeQuietly(SharedRegion region) {
+        if (region == null) {
+            return;
+        }
+
+        try {
+            region.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private static void put(ByteBuffer buffer, Object array) {
+        if (array instanceof byte[]) {
+            buffer.put((byte[]) array);
+        } else if (array instanceof short[]) {
+            buffer.asShortBuffer().put((short[]) array);
+        } else if (array instanceof char[]) {
+            buffer.asCharBuffer().put((char[]) array);
+        } else if (array instanceof int[]) {
+            buffer.asIntBuffer().put((int[]) array);
+        } else if (array instanceof float[]) {
+            buffer.asFloatBuffer().put((float[]) array);
+        } else if (array instanceof long[]) {
+            buffer.asLongBuffer().put((long[]) array);
+        } else {
+            buffer.asDoubleBuffer().put((double[]) array);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package happy.handler.runtime;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MailboxTest {
+    private static final int PRODUCERS = 4;
+    private static final int ITEMS_PER_PRODUCER = 200_000;
+
+    @Test
+    public void pollInOrder() {
+        Mailbox<Item> mailbox = new Mailbox<>();
+        assertTrue(mailbox.isEmpty());
+        assertNull(mailbox.poll());
+
+        for (int i = 0; i < 10; i++) {
+            mailbox.offer(new Item(i));
+        }
+
+        assertFalse(mailbox.isEmpty());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, mailbox.poll().mValue);
+        }
+        assertTrue(mailbox.isEmpty());
+        assertNull(mailbox.poll());
+    }
+
+    @Test
+    public void drainAtMostLimit() {
+        Mailbox<Item> mailbox = new Mailbox<>();
+        for (int i = 0; i < 10; i++) {
+            mailbox.offer(new Item(i));
+        }
+
+        final List<Item> drained = new ArrayList<>();
+        Mailbox.Consumer<Item> consumer = new Mailbox.Consumer<Item>() {
+            @Override
+            public void accept(Item item) {
+                drained.add(item);
+            }
+        };
+
+        assertEquals(3, mailbox.drain(consumer, 3));
+        assertEquals(7, mailbox.drain(consumer, 100));
+        assertEquals(0, mailbox.drain(consumer, 100));
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, drained.get(i).mValue);
+        }
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void offerNull() {
+        new Mailbox<Item>().offer(null);
+    }
+
+    // the items of each producer are polled in the order offered, and none is lost or duplicated
+    @Test(timeout = 60_000)
+    public void multiProducerOrder() throws InterruptedException {
+        final Mailbox<Item> mailbox = new Mailbox<>();
+
+        Thread[] producers = new Thread[PRODUCERS];
+        for (int p = 0; p < PRODUCERS; p++) {
+            final long producer = p;
+            producers[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int seq = 0; seq < ITEMS_PER_PRODUCER; seq++) {
+                        mailbox.offer(new Item((producer << 32) | seq));
+                    }
+                }
+            });
+            producers[p].start();
+        }
+
+        int[] nextSeq = new int[PRODUCERS];
+        int total = PRODUCERS * ITEMS_PER_PRODUCER;
+        int count = 0;
+        while (count < total) {
+            Item item = mailbox.poll();
+            if (item == null) {
+                Thread.yield();
+                continue;
+            }
+
+            int producer = (int) (item.mValue >>> 32);
+            int seq = (int) item.mValue;
+            assertEquals("producer " + producer, nextSeq[producer], seq);
+            nextSeq[producer]++;
+            count++;
+        }
+
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        assertTrue(mailbox.isEmpty());
+        for (int p = 0; p < PRODUCERS; p++) {
+            assertEquals(ITEMS_PER_PRODUCER, nextSeq[p]);
+        }
+    }
+
+    private static final class Item extends Mailbox.Node<Item> {
+        final long mValue;
+
+        Item(long value) {
+            mValue = value;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package happy.handler.runtime;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MailboxThreadTest {
+    private static final int WHAT_THROW = -1;
+
+    private MailboxThread mMailboxThread;
+
+    @Before
+    public void setUp() {
+        mMailboxThread = new MailboxThread("MailboxThreadTest");
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        mMailboxThread.quit();
+        mMailboxThread.getThread().join(5_000);
+    }
+
+    // the messages of each producer are received in the order sent, and none is lost
+    @Test(timeout = 60_000)
+    public void multiProducerOrder() throws InterruptedException {
+        final int producers = 4;
+        final int messagesPerProducer = 100_000;
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final int[] nextSeq = new int[producers];
+        final AtomicReference<String> error = new AtomicReference<>();
+
+        final TestActor actor = new TestActor(mMailboxThread) {
+            int mCount;
+
+            @Override
+            protected void onReceive(int what, Object obj) {
+                int seq = (Integer) obj;
+                if (nextSeq[what] != seq) {
+                    error.compareAndSet(null, "producer " + what + ": expected " + nextSeq[what] + ", actual " + seq);
+                }
+                nextSeq[what] = seq + 1;
+
+                if (++mCount == producers * messagesPerProducer) {
+                    done.countDown();
+                }
+            }
+        };
+        mMailboxThread.start();
+
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int seq = 0; seq < messagesPerProducer; seq++) {
+                        assertTrue(actor.post(producer, seq));
+                    }
+                }
+            });
+            threads[p].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertEquals(null, error.get());
+        for (int p = 0; p < producers; p++) {
+            assertEquals(messagesPerProducer, nextSeq[p]);
+        }
+    }
+
+    // the same with the intrusive Mailbox
+    @Test(timeout = 60_000)
+    public void intrusiveMultiProducerOrder() throws InterruptedException {
+        mMailboxThread = new MailboxThread("MailboxThreadTest", true);
+        multiProducerOrder();
+    }
+
+    // every message wakes up the parked thread, otherwise a round trip times out
+    @Test(timeout = 60_000)
+    public void wakeupNotLost() throws InterruptedException {
+        final Semaphore received = new Semaphore(0);
+        TestActor actor = new TestActor(mMailboxThread) {
+            @Override
+            protected void onReceive(int what, Object obj) {
+                received.release();
+            }
+        };
+        mMailboxThread.start();
+
+        for (int i = 0; i < 20_000; i++) {
+            // wait for the thread to park sometimes, and race with parking the other times
+            if (i % 2 == 0) {
+                awaitParked();
+            }
+
+            assertTrue(actor.post(0, i));
+            assertTrue("round " + i, received.tryAcquire(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void quit() throws InterruptedException {
+        TestActor actor = new TestActor(mMailboxThread) {
+            @Override
+            protected void onReceive(int what, Object obj) {
+            }
+        };
+        mMailboxThread.start();
+
+        assertTrue(actor.post(0, null));
+        awaitParked();
+
+        mMailboxThread.quit();
+        mMailboxThread.getThread().join();
+
+        assertTrue(mMailboxThread.isQuit());
+        assertFalse(mMailboxThread.getThread().isAlive());
+        assertFalse(actor.post(0, null));
+    }
+
+    // the messages that pending when quit are passed to onDiscard() instead of onReceive()
+    @Test(timeout = 10_000)
+    public void quitDiscardsPending() throws InterruptedException {
+        final CountDownLatch receiving = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger received = new AtomicInteger();
+        final AtomicInteger discarded = new AtomicInteger();
+
+        TestActor actor = new TestActor(mMailboxThread) {
+            @Override
+            protected void onReceive(int what, Object obj) {
+                received.incrementAndGet();
+                receiving.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            protected void onDiscard(int what, Object obj) {
+                discarded.incrementAndGet();
+            }
+        };
+        mMailboxThread.start();
+
+        assertTrue(actor.post(0, null));
+        assertTrue(receiving.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 3; i++) {
+            assertTrue(actor.post(0, null));
+        }
+
+        mMailboxThread.quit();
+        release.countDown();
+        mMailboxThread.getThread().join();
+
+        assertEquals(1, received.get());
+        assertEquals(3, discarded.get());
+    }
+
+    @Test(timeout = 10_000)
+    public void exceptionPassedToHandler() throws InterruptedException {
+        final AtomicReference<Throwable> uncaught = new AtomicReference<>();
+        final CountDownLatch received = new CountDownLatch(1);
+
+        mMailboxThread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread thread, Throwable t) {
+                uncaught.set(t);
+            }
+        });
+
+        TestActor actor = new TestActor(mMailboxThread) {
+            @Override
+            protected void onReceive(int what, Object obj) {
+                if (what == WHAT_THROW) {
+                    throw new IllegalStateException("thrown by receiver");
+                }
+                received.countDown();
+            }
+        };
+        mMailboxThread.start();
+
+        assertTrue(actor.post(WHAT_THROW, null));
+        assertTrue(actor.post(0, null));
+
+        // the message after the exception is still dispatched
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+        assertTrue(uncaught.get() instanceof IllegalStateException);
+        assertFalse(mMailboxThread.isQuit());
+    }
+
+    @Test(timeout = 10_000)
+    public void exceptionQuitsWithoutHandler() throws InterruptedException {
+        final AtomicReference<Throwable> uncaught = new AtomicReference<>();
+        mMailboxThread.getThread().setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread thread, Throwable t) {
+                uncaught.set(t);
+            }
+        });
+
+        TestActor actor = new TestActor(mMailboxThread) {
+            @Override
+            protected void onReceive(int what, Object obj) {
+                throw new IllegalStateException("thrown by receiver");
+            }
+        };
+        mMailboxThread.start();
+
+        assertTrue(actor.post(WHAT_THROW, null));
+        mMailboxThread.getThread().join();
+
+        // the messages are rejected instead of being queued to the dead thread
+        assertTrue(mMailboxThread.isQuit());
+        assertFalse(actor.post(0, null));
+        assertTrue(uncaught.get() instanceof IllegalStateException);
+    }
+
+    private void awaitParked() throws InterruptedException {
+        Thread thread = mMailboxThread.getThread();
+        while (thread.getState() != Thread.State.WAITING) {
+            Thread.sleep(0, 100_000);
+        }
+    }
+
+    private abstract static class TestActor extends Actor {
+        TestActor(MailboxThread mailboxThread) {
+            super(mailboxThread);
+        }
+
+        boolean post(int what, Object obj) {
+            return send(what, obj);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package happy.handler.runtime;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SharedArraysTest {
+    private static final int THRESHOLD = 64;
+    private static final int LENGTH = 1000;
+
+    @Test
+    public void roundTripByte() throws IOException {
+        byte[] array = new byte[LENGTH];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = (byte) (i * 31);
+        }
+        assertArrayEquals(array, (byte[]) transfer(array, byte.class, true));
+    }
+
+    @Test
+    public void roundTripShort() throws IOException {
+        short[] array = new short[LENGTH];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = (short) (i * -7919);
+        }
+        assertArrayEquals(array, (short[]) transfer(array, short.class, true));
+    }
+
+    @Test
+    public void roundTripChar() throws IOException {
+        char[] array = new char[LENGTH];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = (char) (i * 7919);
+        }
+        assertArrayEquals(array, (char[]) transfer(array, char.class, true));
+    }
+
+    @Test
+    public void roundTripInt() throws IOException {
+        int[] array = new int[LENGTH];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = i * -104729;
+        }
+        assertArrayEquals(array, (int[]) transfer(array, int.class, true));
+    }
+
+    @Test
+    public void roundTripFloat() throws IOException {
+        float[] array = new float[LENGTH];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = i / 3f;
+        }
+        array[0] = Float.NaN;
+        array[1] = Float.NEGATIVE_INFINITY;
+        assertArrayEquals(array, (float[]) transfer(array, float.class, true), 0f);
+    }
+
+    @Test
+    public void roundTripLong() throws IOException {
+        long[] array = new long[LENGTH];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = i * 0x9E3779B97F4A7C15L;
+        }
+        assertArrayEquals(array, (long[]) transfer(array, long.class, true));
+    }
+
+    @Test
+    public void roundTripDouble() throws IOException {
+        double[] array = new double[LENGTH];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = i / 7.0;
+        }
+        array[0] = Double.NaN;
+        array[1] = Double.MAX_VALUE;
+        assertArrayEquals(array, (double[]) transfer(array, double.class, true), 0);
+    }
+
+    // the array of exactly THRESHOLD bytes is shared, one element less is written inline
+    @Test
+    public void thresholdBoundary() throws IOException {
+        assertArrayEquals(new byte[THRESHOLD], (byte[]) transfer(new byte[THRESHOLD], byte.class, true));
+        assertArrayEquals(new byte[THRESHOLD - 1], (byte[]) transfer(new byte[THRESHOLD - 1], byte.class, false));
+
+        assertArrayEquals(new int[THRESHOLD / 4], (int[]) transfer(new int[THRESHOLD / 4], int.class, true));
+        assertArrayEquals(new int[THRESHOLD / 4 - 1], (int[]) transfer(new int[THRESHOLD / 4 - 1], int.class, false));
+
+        assertArrayEquals(new long[THRESHOLD / 8], (long[]) transfer(new long[THRESHOLD / 8], long.class, true));
+        assertArrayEquals(new long[THRESHOLD / 8 - 1], (long[]) transfer(new long[THRESHOLD / 8 - 1], long.class, false));
+    }
+
+    @Test
+    public void notShared() {
+        assertNull(SharedArrays.write(null, THRESHOLD, FileChannelRegion.FACTORY));
+        assertNull(SharedArrays.write(new boolean[LENGTH], THRESHOLD, FileChannelRegion.FACTORY));
+        // disabled
+        assertNull(SharedArrays.write(new byte[LENGTH], 0, FileChannelRegion.FACTORY));
+    }
+
+    @Test
+    public void byteSize() {
+        assertEquals(-1, SharedArrays.byteSize(null));
+        assertEquals(-1, SharedArrays.byteSize(new boolean[3]));
+        assertEquals(3, SharedArrays.byteSize(new byte[3]));
+        assertEquals(6, SharedArrays.byteSize(new short[3]));
+        assertEquals(6, SharedArrays.byteSize(new char[3]));
+        assertEquals(12, SharedArrays.byteSize(new int[3]));
+        assertEquals(12, SharedArrays.byteSize(new float[3]));
+        assertEquals(24, SharedArrays.byteSize(new long[3]));
+        assertEquals(24, SharedArrays.byteSize(new double[3]));
+    }
+
+    @Test
+    public void regionReadOnlyAfterWritten() throws IOException {
+        SharedRegion region = SharedArrays.write(new byte[LENGTH], THRESHOLD, FileChannelRegion.FACTORY);
+        assertNotNull(region);
+        try {
+            assertEquals(LENGTH, region.getSize());
+            region.mapReadWrite();
+            fail("the region is writable after written");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            region.close();
+        }
+    }
+
+    // the array is written inline if failed to create or map the region
+    @Test
+    public void fallbackIfRegionFailed() {
+        final boolean[] closed = new boolean[1];
+        SharedRegion.Factory factory = new SharedRegion.Factory() {
+            @Override
+            public SharedRegion create(final int size) {
+                return new SharedRegion() {
+                    @Override
+                    public int getSize() {
+                        return size;
+                    }
+
+                    @Override
+                    public ByteBuffer mapReadWrite() throws IOException {
+                        throw new IOException("no memory");
+                    }
+
+                    @Override
+                    public ByteBuffer mapReadOnly() throws IOException {
+                        throw new IOException("no memory");
+                    }
+
+                    @Override
+                    public void unmap(ByteBuffer buffer) {
+                    }
+
+                    @Override
+                    public void setReadOnly() {
+                    }
+
+                    @Override
+                    public void close() {
+                        closed[0] = true;
+                    }
+                };
+            }
+        };
+
+        assertNull(SharedArrays.write(new byte[LENGTH], THRESHOLD, factory));
+        assertTrue(closed[0]);
+    }
+
+    // mimics the generated payload: the flag, then the region or the inline array
+    private static Object transfer(Object array, Class<?> componentType, boolean expectShared) throws IOException {
+        SharedRegion region = SharedArrays.write(array, THRESHOLD, FileChannelRegion.FACTORY);
+        boolean flag = region != null;
+        assertEquals("flag", expectShared, flag);
+
+        if (!flag) {
+            return copyInline(array);
+        }
+
+        try {
+            Object result = SharedArrays.read(region, componentType);
+            assertFalse("the array is not copied", result == array);
+            return result;
+        } finally {
+            region.close();
+        }
+    }
+
+    private static Object copyInline(Object array) {
+        if (array instanceof byte[]) {
+            return Arrays.copyOf((byte[]) array, ((byte[]) array).length);
+        } else if (array instanceof int[]) {
+            return Arrays.copyOf((int[]) array, ((int[]) array).length);
+        } else if (array instanceof long[]) {
+            return Arrays.copyOf((long[]) array, ((long[]) array).length);
+        }
+        throw new AssertionError("unexpected inline array: " + array);
+    }
+}